@@ -0,0 +1,199 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import src.map.MapWithTtlV3;
+import src.map.MapWithTtlV4;
+import src.map.expiry.ManualTicker;
+import src.map.expiry.TimingWheelExpiryEngine;
+import src.utilities.Common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Checks that get allocates nothing, whether the key is found, missing or expired.
+ * <p>
+ * Expired keys are made by advancing a {@link ManualTicker} past their TTL. V3 leaves them in place until its
+ * expiry engine removes them. A read of an expired key in V4 removes it unless its segment is busy, which would turn
+ * every expired read after the first pass over the keys into a plain miss, so the V4 maps with expired keys have a
+ * single segment, held by a helper thread blocked in {@link Map#compute} for the whole of each iteration. Every
+ * expired read then finds the expired node and leaves it in place.
+ * <p>
+ * {@link #main(String[])} runs the benchmark with the GC profiler and fails if any of them allocates, which
+ * {@code gc.alloc.rate.norm} reports as bytes per operation. JMH reports a tiny non-zero rate for code that never
+ * allocates, from its own infrastructure, so anything under {@value #MAX_BYTES_PER_OPERATION} byte per operation
+ * counts as zero.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(AllocationBenchmark.class);
+    }
+
+    private static final double MAX_BYTES_PER_OPERATION = 1.0;
+
+    @Param({"V3", "V4", "V4_BOUNDED", "V4_STATS"})
+    public String implementation;
+
+    @Param({"10000"})
+    public int liveKeys;
+
+    private Map<Integer, Integer> map;
+
+    private Map<Integer, Integer> expiredMap;
+
+    private ManualTicker expiredTicker;
+
+    private KeySet presentKeys;
+
+    private KeySet missingKeys;
+
+    private int next;
+
+    /**
+     * Releases the helper thread holding the segment of the V4 map with expired keys, if any.
+     */
+    private CountDownLatch release;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = create(new ManualTicker(), false);
+        expiredTicker = new ManualTicker();
+        expiredMap = create(expiredTicker, true);
+        presentKeys = new KeySet(0, liveKeys);
+        missingKeys = new KeySet(presentKeys.size(), liveKeys);
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        for (int i = 0; i < presentKeys.size(); i++) {
+            map.put(presentKeys.get(i), i);
+            expiredMap.put(presentKeys.get(i), i);
+        }
+        expiredTicker.advance(1, TimeUnit.HOURS);
+        if (expiredMap instanceof MapWithTtlV4) {
+            holdSegment();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void releaseSegment() {
+        if (release != null) {
+            release.countDown();
+            release = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+        MapImplementation.close(expiredMap);
+    }
+
+    /**
+     * Blocks a helper thread in a computation of a missing key of the map with expired keys, holding the lock of its
+     * only segment until {@link #releaseSegment()}, so that reads cannot remove the expired nodes they find.
+     */
+    private void holdSegment() {
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        Thread holder = new Thread(() -> expiredMap.compute(missingKeys.get(0), (key, value) -> {
+            held.countDown();
+            awaitUninterruptibly(released);
+            return null;
+        }), "segment-holder");
+        holder.setDaemon(true);
+        holder.start();
+        awaitUninterruptibly(held);
+        release = released;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Map<Integer, Integer> create(ManualTicker ticker, boolean singleSegment) {
+        if (implementation.equals("V3")) {
+            return new MapWithTtlV3<>(TimingWheelExpiryEngine::new, ticker);
+        }
+        MapWithTtlV4.Builder<Integer, Integer> builder = MapWithTtlV4.<Integer, Integer>builder()
+                .ttl(1, TimeUnit.MINUTES)
+                .ticker(ticker);
+        if (singleSegment) {
+            builder.concurrencyLevel(1);
+        }
+        return switch (implementation) {
+            case "V4" -> builder.build();
+            case "V4_BOUNDED" -> builder.maximumSize(liveKeys * 2L).build();
+            case "V4_STATS" -> builder.recordStats().build();
+            default -> throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        };
+    }
+
+    @Benchmark
+    public Integer getHit() {
+        return map.get(presentKeys.get(next++));
+    }
+
+    @Benchmark
+    public Integer getMiss() {
+        return map.get(missingKeys.get(next++));
+    }
+
+    @Benchmark
+    public Integer getExpired() {
+        return expiredMap.get(presentKeys.get(next++));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AllocationBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        List<String> allocating = new ArrayList<>();
+        for (RunResult result : results) {
+            Result<?> allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            String name = result.getParams().getBenchmark() + " " + result.getParams().getParam("implementation");
+            LOGGER.info(String.format("%-70s %.4f B/op", name, allocation.getScore()));
+            if (allocation.getScore() >= MAX_BYTES_PER_OPERATION) {
+                allocating.add(name);
+            }
+        }
+        if (!allocating.isEmpty()) {
+            throw new IllegalStateException("get allocates in " + allocating);
+        }
+    }
+}
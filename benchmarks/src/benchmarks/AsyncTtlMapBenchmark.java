@@ -0,0 +1,125 @@
+package src.benchmarks;
+
+import jdk.jfr.consumer.RecordingStream;
+import src.map.AsyncTtlMap;
+import src.map.MapWithTtlV4;
+import src.utilities.Common;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Compares an {@link AsyncTtlMap} with the synchronous {@link MapWithTtlV4} it views, both called by
+ * {@value #CALLERS} virtual threads at once. Every caller makes {@value #OPERATIONS} operations on random keys:
+ * mostly reads loading missing keys from a backend that takes {@value #LOAD_MILLIS} millisecond, then puts and
+ * increments. The synchronous path loads on the calling thread without sharing loads, and increments with
+ * {@link java.util.Map#compute}.
+ * <p>
+ * A JFR stream counts the {@code jdk.VirtualThreadPinned} events raised meanwhile, and the run fails if there are
+ * any. This is a plain harness rather than a JMH benchmark, since the callers are virtual threads; run it with
+ * {@code java -cp benchmarks/target/benchmarks.jar src.benchmarks.AsyncTtlMapBenchmark}.
+ */
+public class AsyncTtlMapBenchmark {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(AsyncTtlMapBenchmark.class);
+    }
+
+    private static final int CALLERS = 100_000;
+
+    private static final int OPERATIONS = 20;
+
+    private static final int KEYS = 1 << 16;
+
+    private static final long LOAD_MILLIS = 1;
+
+    public static void main(String[] args) throws Exception {
+        LongAdder pinned = new LongAdder();
+        long totalPinned = 0;
+        try (RecordingStream events = new RecordingStream()) {
+            events.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            events.onEvent("jdk.VirtualThreadPinned", event -> pinned.increment());
+            events.startAsync();
+            for (int round = 0; round < 3; round++) {
+                totalPinned += report("synchronous", run(false), pinned);
+                totalPinned += report("async", run(true), pinned);
+            }
+        }
+        if (totalPinned > 0) {
+            throw new IllegalStateException(totalPinned + " virtual thread pinned events");
+        }
+    }
+
+    /**
+     * Logs the result of a run with the pinned events raised since the previous one.
+     *
+     * @return the number of pinned events
+     */
+    private static long report(String path, Result result, LongAdder pinned) {
+        long events = pinned.sumThenReset();
+        LOGGER.info(String.format("%-12s callers: %,d | %,10.0f ops/s | loads: %,7d | pinned events: %d",
+                path, CALLERS, result.opsPerSecond, result.loads, events));
+        return events;
+    }
+
+    private static Result run(boolean async) throws InterruptedException {
+        LongAdder loads = new LongAdder();
+        try (MapWithTtlV4<Integer, Long> map = new MapWithTtlV4<>(1, TimeUnit.MINUTES);
+             AsyncTtlMap<Integer, Long> view = AsyncTtlMap.builder(map).build()) {
+            Thread[] callers = new Thread[CALLERS];
+            long start = System.nanoTime();
+            for (int c = 0; c < CALLERS; c++) {
+                callers[c] = Thread.ofVirtual().start(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        int key = random.nextInt(KEYS);
+                        int operation = random.nextInt(100);
+                        if (operation < 80) {
+                            if (async) {
+                                view.getAsync(key, k -> load(k, loads)).join();
+                            } else {
+                                Long value = map.get(key);
+                                if (value == null) {
+                                    map.putIfAbsent(key, load(key, loads));
+                                }
+                            }
+                        } else if (operation < 95) {
+                            if (async) {
+                                view.putAsync(key, (long) i).join();
+                            } else {
+                                map.put(key, (long) i);
+                            }
+                        } else if (async) {
+                            view.computeAsync(key, (k, v) -> v == null ? 1 : v + 1).join();
+                        } else {
+                            map.compute(key, (k, v) -> v == null ? 1 : v + 1);
+                        }
+                    }
+                });
+            }
+            for (Thread caller : callers) {
+                caller.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            return new Result((double) CALLERS * OPERATIONS * TimeUnit.SECONDS.toNanos(1) / elapsed, loads.sum());
+        }
+    }
+
+    private static Long load(int key, LongAdder loads) {
+        loads.increment();
+        try {
+            Thread.sleep(LOAD_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (long) key;
+    }
+
+    private record Result(double opsPerSecond, long loads) {
+    }
+}
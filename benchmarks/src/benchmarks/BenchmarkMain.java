@@ -0,0 +1,73 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import src.utilities.Common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Runs the benchmarks once per thread count and writes the results of each run as JSON, so that they can be
+ * compared across versions of the maps.
+ * <p>
+ * Options, all optional:
+ * <ul>
+ *     <li>{@code --include=<regex>} the benchmarks to run, e.g. {@code ReadBenchmark.getHit}; all by default</li>
+ *     <li>{@code --threads=<n,n,...>} the thread counts, {@code 1,2,4,8,16,32,64} by default</li>
+ *     <li>{@code --label=<name>} the prefix of the result files, e.g. a commit id; {@code dev} by default</li>
+ *     <li>{@code --output=<dir>} the directory of the result files, {@code results} by default</li>
+ * </ul>
+ * A run with label {@code abc123} on 8 threads is written to {@code results/abc123-t8.json}.
+ */
+public final class BenchmarkMain {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(BenchmarkMain.class);
+    }
+
+    private BenchmarkMain() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        String include = "";
+        int[] threads = {1, 2, 4, 8, 16, 32, 64};
+        String label = "dev";
+        Path output = Path.of("results");
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--include=")) {
+                include = value;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--label=")) {
+                label = value;
+            } else if (arg.startsWith("--output=")) {
+                output = Path.of(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        Files.createDirectories(output);
+        for (int threadCount : threads) {
+            Path result = output.resolve(label + "-t" + threadCount + ".json");
+            Options options = new OptionsBuilder()
+                    .include(BenchmarkMain.class.getPackageName() + "\\..*" + include)
+                    .threads(threadCount)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(result.toString())
+                    .build();
+            new Runner(options).run();
+            LOGGER.info("Results for " + threadCount + " threads written to " + result);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures puts while entries keep expiring: keys are drawn from a key space of the given size and live for a few
+ * milliseconds, so the expiry engine removes entries as fast as they are put back.
+ * <p>
+ * Only V4 is measured, as the other versions have a fixed TTL of 15 seconds.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpiryChurnBenchmark {
+
+    @Param({"V4", "V4_LAZY", "V4_EXECUTOR"})
+    public MapImplementation implementation;
+
+    @Param({"10000", "100000", "1000000"})
+    public int liveKeys;
+
+    @Param({"1", "50"})
+    public long ttlMillis;
+
+    private Map<Integer, Integer> map;
+
+    private KeySet keys;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = implementation.create(ttlMillis);
+        keys = new KeySet(0, liveKeys);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+    }
+
+    @Benchmark
+    public Integer put(ThreadState state) {
+        return map.put(keys.get(state.random.nextInt()), 0);
+    }
+}
@@ -0,0 +1,82 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import src.map.expiry.ExpiryEngine;
+import src.map.expiry.ExpiryHandle;
+import src.map.expiry.ScheduledExecutorExpiryEngine;
+import src.map.expiry.TimingWheelExpiryEngine;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compares the expiry engines on the work a map hands them for every put of an existing key, against a live set
+ * of the given size, all expiring in an hour. {@link #replace} cancels the old expiry and schedules a new one, as
+ * V3 does, and {@link #reschedule} moves the existing one, as V4 does. Either keeps the live set at its size.
+ * <p>
+ * A live set of 10^7 keys, e.g. {@code -p liveKeys=10000000}, needs a few GB of heap for the executor engine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpiryEngineBenchmark {
+
+    private static final long TTL_MINUTES = 60;
+
+    @Param({"ScheduledExecutor", "TimingWheel"})
+    public String engine;
+
+    @Param({"10000", "1000000"})
+    public int liveKeys;
+
+    private ExpiryEngine<Integer> expiryEngine;
+
+    private KeySet keys;
+
+    /**
+     * The handle of the expiry of every key, swapped atomically so that concurrent replaces keep one per key.
+     */
+    private AtomicReferenceArray<ExpiryHandle> handles;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        expiryEngine = switch (engine) {
+            case "ScheduledExecutor" -> new ScheduledExecutorExpiryEngine<>(expired -> {
+            });
+            case "TimingWheel" -> new TimingWheelExpiryEngine<>(expired -> {
+            });
+            default -> throw new IllegalArgumentException("Unknown engine: " + engine);
+        };
+        keys = new KeySet(0, liveKeys);
+        handles = new AtomicReferenceArray<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            handles.set(i, expiryEngine.schedule(keys.get(i), TTL_MINUTES, TimeUnit.MINUTES));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        expiryEngine.close();
+    }
+
+    @Benchmark
+    public boolean replace(ThreadState state) {
+        int index = state.random.nextInt(keys.size());
+        ExpiryHandle handle = expiryEngine.schedule(keys.get(index), TTL_MINUTES, TimeUnit.MINUTES);
+        return handles.getAndSet(index, handle).cancel();
+    }
+
+    @Benchmark
+    public boolean reschedule(ThreadState state) {
+        return handles.get(state.random.nextInt(keys.size())).reschedule(TTL_MINUTES, TimeUnit.MINUTES);
+    }
+}
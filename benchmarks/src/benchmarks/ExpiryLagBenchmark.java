@@ -0,0 +1,95 @@
+package src.benchmarks;
+
+import src.map.MapWithTtlV4;
+import src.map.TtlMapStats;
+import src.map.expiry.ExpiryLag;
+import src.map.expiry.SamplingConfig;
+import src.map.expiry.ScheduledExecutorExpiryEngine;
+import src.map.expiry.SharedExpiryService;
+import src.map.expiry.Ticker;
+import src.map.expiry.TimingWheelExpiryEngine;
+import src.utilities.Common;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Measures how late entries are removed compared with their deadline, for each way of expiring entries.
+ * Keys are put at a steady rate for {@value #DURATION_SECONDS}s, all with a TTL of {@value #TTL_MILLIS}ms, so that
+ * entries expire at the same rate; the lag of every expiration is recorded in the stats of the map, read with the
+ * system ticker so that it is accurate to the nanosecond. Entries still present {@value #TIMEOUT_SECONDS}s after the
+ * last put, which lazy expiry can leave behind at high rates, are left out.
+ * <p>
+ * The expiration rates per second can be passed as arguments and default to 10^3, 10^5 and 10^6. This is a plain
+ * harness rather than a JMH benchmark, since it paces its own puts and reports percentiles rather than a rate; run
+ * it with {@code java -cp benchmarks/target/benchmarks.jar src.benchmarks.ExpiryLagBenchmark}.
+ */
+public class ExpiryLagBenchmark {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(ExpiryLagBenchmark.class);
+    }
+
+    private static final long TTL_MILLIS = 100;
+
+    private static final long DURATION_SECONDS = 2;
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    public static void main(String[] args) {
+        long[] rates = args.length == 0
+                ? new long[]{1_000, 100_000, 1_000_000}
+                : Arrays.stream(args).mapToLong(Long::parseLong).toArray();
+        for (long rate : rates) {
+            run("TimingWheel", rate, builder -> builder.expiryEngine(TimingWheelExpiryEngine::new));
+            run("ScheduledExecutor", rate, builder -> builder.expiryEngine(ScheduledExecutorExpiryEngine::new));
+            run("SharedService", rate, builder -> builder.expiryEngine(SharedExpiryService.getDefault()::register));
+            run("LazySampling", rate, builder -> builder.lazyExpiry(SamplingConfig.DEFAULT));
+        }
+    }
+
+    private static void run(String name, long rate,
+                            UnaryOperator<MapWithTtlV4.Builder<Integer, Integer>> expiry) {
+        try (MapWithTtlV4<Integer, Integer> map = expiry.apply(MapWithTtlV4.<Integer, Integer>builder()
+                        .ttl(TTL_MILLIS, TimeUnit.MILLISECONDS)
+                        .ticker(Ticker.system())
+                        .recordStats())
+                .build()) {
+            long total = rate * DURATION_SECONDS;
+            long start = System.nanoTime();
+            int next = 0;
+            while (next < total) {
+                long due = Math.min(total, (System.nanoTime() - start) * rate / TimeUnit.SECONDS.toNanos(1));
+                if (next < due) {
+                    while (next < due) {
+                        map.put(next, next);
+                        next++;
+                    }
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                }
+            }
+            long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (!map.isEmpty() && System.nanoTime() - timeout < 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            TtlMapStats stats = map.stats().orElseThrow();
+            ExpiryLag lag = stats.expiryLag();
+            LOGGER.info(String.format(
+                    "%-17s rate: %,10d/s | expired: %,9d | lag p50: %9.3f ms | p99: %9.3f ms | p999: %9.3f ms | max: %9.3f ms",
+                    name,
+                    rate,
+                    lag.count(),
+                    lag.p50Nanos() / 1e6,
+                    lag.p99Nanos() / 1e6,
+                    lag.p999Nanos() / 1e6,
+                    lag.maxNanos() / 1e6
+            ));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import src.map.MapWithTtlV3;
+import src.map.MapWithTtlV4;
+import src.map.expiry.SharedExpiryService;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how fast a map removes a burst of expired entries. Every iteration fills a new map with keys that all
+ * expire after the same TTL and waits for the deadline of the first one; the measured shot then waits until the map
+ * is empty, so the score is the time taken to expire all the keys, bounded by the put rate for a map whose removals
+ * keep up with the puts.
+ * <p>
+ * V3 always uses its fixed TTL of {@value MapWithTtlV3#DEFAULT_TTL}ms, which makes each of its iterations that
+ * much longer. The V4 maps use {@value #TTL_MILLIS}ms and an expiry listener counting batches, so that notifying
+ * is part of the measure; {@code V4_SHARED} expires through {@link SharedExpiryService#getDefault()}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpiryThroughputBenchmark {
+
+    private static final long TTL_MILLIS = 200;
+
+    private static final long TIMEOUT_SECONDS = 120;
+
+    @Param({"V3", "V4", "V4_SHARED"})
+    public String implementation;
+
+    @Param({"100000", "1000000"})
+    public int keys;
+
+    private final LongAdder batches = new LongAdder();
+
+    private Map<Integer, Integer> map;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        long ttlMillis = implementation.equals("V3") ? MapWithTtlV3.DEFAULT_TTL : TTL_MILLIS;
+        batches.reset();
+        map = create();
+        long firstDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        for (int i = 0; i < keys; i++) {
+            map.put(i, i);
+        }
+        long wait = firstDeadline - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+    }
+
+    private Map<Integer, Integer> create() {
+        return switch (implementation) {
+            case "V3" -> new MapWithTtlV3<>();
+            case "V4" -> MapWithTtlV4.<Integer, Integer>builder()
+                    .ttl(TTL_MILLIS, TimeUnit.MILLISECONDS)
+                    .expiryListener(expired -> batches.increment())
+                    .build();
+            case "V4_SHARED" -> MapWithTtlV4.<Integer, Integer>builder()
+                    .ttl(TTL_MILLIS, TimeUnit.MILLISECONDS)
+                    .expiryEngine(SharedExpiryService.getDefault()::register)
+                    .expiryListener(expired -> batches.increment())
+                    .build();
+            default -> throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        };
+    }
+
+    @Benchmark
+    public long expireAll() {
+        long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!map.isEmpty()) {
+            if (System.nanoTime() - timeout > 0) {
+                throw new IllegalStateException(map.size() + " keys left after " + TIMEOUT_SECONDS + "s");
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        return batches.sum();
+    }
+}
@@ -0,0 +1,159 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import src.map.MapWithTtlV4;
+import src.utilities.Common;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Compares a size-bounded {@link MapWithTtlV4} with a plain LRU cache on a skewed workload. Keys are drawn from a
+ * Zipf distribution over a fixed key space; a miss puts the key, as a cache in front of a slower store would. The
+ * TTL is long enough that only eviction decides what stays.
+ * <p>
+ * Every thread replays the trace against its own cache, counting hits and misses as auxiliary counters next to
+ * the throughput. {@link #main(String[])} runs the benchmark and logs the hit ratio of every configuration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HitRatioBenchmark {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(HitRatioBenchmark.class);
+    }
+
+    private static final int KEY_SPACE = 1_000_000;
+
+    private static final int TRACE_LENGTH = 1 << 22;
+
+    @Param({"LRU", "W_TINY_LFU"})
+    public String policy;
+
+    @Param({"0.7", "0.9", "1.1"})
+    public double exponent;
+
+    @Param({"1000", "10000", "100000"})
+    public int maximumSize;
+
+    /**
+     * The keys requested, shared by all threads.
+     */
+    private Integer[] trace;
+
+    @State(Scope.Thread)
+    public static class Cache {
+
+        private Map<Integer, Integer> map;
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(HitRatioBenchmark benchmark) {
+            next = new SplittableRandom().nextInt(TRACE_LENGTH);
+            map = switch (benchmark.policy) {
+                case "LRU" -> lru(benchmark.maximumSize);
+                case "W_TINY_LFU" -> MapWithTtlV4.<Integer, Integer>builder()
+                        .ttl(1, TimeUnit.HOURS)
+                        .maximumSize(benchmark.maximumSize)
+                        .build();
+                default -> throw new IllegalArgumentException("Unknown policy: " + benchmark.policy);
+            };
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            MapImplementation.close(map);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Requests {
+
+        public long hits;
+
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trace = zipfTrace(exponent);
+    }
+
+    @Benchmark
+    public Integer request(Cache cache, Requests requests) {
+        Integer key = trace[cache.next++ & (TRACE_LENGTH - 1)];
+        Integer value = cache.map.get(key);
+        if (value != null) {
+            requests.hits++;
+            return value;
+        }
+        requests.misses++;
+        return cache.map.put(key, key);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(HitRatioBenchmark.class.getName())
+                .build();
+        for (RunResult result : new Runner(options).run()) {
+            double hits = result.getSecondaryResults().get("hits").getScore();
+            double misses = result.getSecondaryResults().get("misses").getScore();
+            LOGGER.info(String.format("%-10s zipf %s | maximum size: %8s | hit ratio: %5.1f%%",
+                    result.getParams().getParam("policy"),
+                    result.getParams().getParam("exponent"),
+                    result.getParams().getParam("maximumSize"),
+                    hits * 100 / (hits + misses)));
+        }
+    }
+
+    private static Map<Integer, Integer> lru(int maximumSize) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Draws the keys of the trace by inverting the cumulative Zipf distribution of the key space.
+     */
+    private static Integer[] zipfTrace(double exponent) {
+        double[] cumulative = new double[KEY_SPACE];
+        double sum = 0;
+        for (int i = 0; i < KEY_SPACE; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        Integer[] trace = new Integer[TRACE_LENGTH];
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = index < 0 ? -index - 1 : index;
+        }
+        return trace;
+    }
+}
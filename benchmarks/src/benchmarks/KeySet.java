@@ -0,0 +1,31 @@
+package src.benchmarks;
+
+/**
+ * Boxed keys created up front, so that the measured operations do not pay for boxing.
+ */
+final class KeySet {
+
+    private final Integer[] keys;
+
+    private final int mask;
+
+    /**
+     * Creates the keys {@code offset} to {@code offset + size - 1}, with size rounded up to a power of two.
+     */
+    KeySet(int offset, int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.keys = new Integer[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            keys[i] = offset + i;
+        }
+    }
+
+    Integer get(int index) {
+        return keys[index & mask];
+    }
+
+    int size() {
+        return keys.length;
+    }
+}
@@ -0,0 +1,90 @@
+package src.benchmarks;
+
+import src.map.MapWithTtlV1;
+import src.map.MapWithTtlV2;
+import src.map.MapWithTtlV3;
+import src.map.MapWithTtlV4;
+import src.map.expiry.SamplingConfig;
+import src.map.expiry.ScheduledExecutorExpiryEngine;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The map versions and expiry engines the benchmarks can run against, selected through the
+ * {@code implementation} parameter.
+ * <p>
+ * V1 and V2 are backed by a plain HashMap, so they are measured behind {@link Collections#synchronizedMap(Map)}
+ * to keep multithreaded runs meaningful. V3 is backed by a ConcurrentHashMap and measured as is. V1 to V3 always use
+ * their fixed TTL of {@value MapWithTtlV3#DEFAULT_TTL}ms.
+ */
+public enum MapImplementation {
+    V1 {
+        @Override
+        Map<Integer, Integer> create(long ttlMillis) {
+            return Collections.synchronizedMap(new MapWithTtlV1<>());
+        }
+    },
+    V2 {
+        @Override
+        Map<Integer, Integer> create(long ttlMillis) {
+            return Collections.synchronizedMap(new MapWithTtlV2<>());
+        }
+    },
+    V3 {
+        @Override
+        Map<Integer, Integer> create(long ttlMillis) {
+            return new MapWithTtlV3<>();
+        }
+    },
+    V4 {
+        @Override
+        Map<Integer, Integer> create(long ttlMillis) {
+            return new MapWithTtlV4<>(ttlMillis, TimeUnit.MILLISECONDS);
+        }
+    },
+    V4_LAZY {
+        @Override
+        Map<Integer, Integer> create(long ttlMillis) {
+            return MapWithTtlV4.<Integer, Integer>builder()
+                    .ttl(ttlMillis, TimeUnit.MILLISECONDS)
+                    .lazyExpiry(SamplingConfig.DEFAULT)
+                    .build();
+        }
+    },
+    V4_EXECUTOR {
+        @Override
+        Map<Integer, Integer> create(long ttlMillis) {
+            return new MapWithTtlV4<>(ttlMillis, TimeUnit.MILLISECONDS, ScheduledExecutorExpiryEngine::new);
+        }
+    };
+
+    /**
+     * Creates an empty map of this implementation.
+     *
+     * @param ttlMillis the TTL of the entries, ignored by the versions with a fixed TTL
+     * @return a new map
+     */
+    abstract Map<Integer, Integer> create(long ttlMillis);
+
+    /**
+     * Whether the map ignores the requested TTL, so that its entries must be put again before they expire.
+     *
+     * @return true for V1 to V3
+     */
+    boolean hasFixedTtl() {
+        return this == V1 || this == V2 || this == V3;
+    }
+
+    /**
+     * Stops the background threads of a map created by this implementation, where the map allows it.
+     *
+     * @param map the map to be closed
+     */
+    static void close(Map<?, ?> map) throws Exception {
+        if (map instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import src.map.MapWithTtlV4;
+
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a rate limiter counting requests per client with {@code merge(key, 1, Integer::sum)} on a
+ * {@link MapWithTtlV4} keeping existing TTLs, so that every counter expires at the end of its window. All threads
+ * merge random keys of the same clients.
+ * <p>
+ * Every thread counts its merges, and the trial fails if the counters of the map do not add up to them, which only
+ * holds if every merge was atomic. The window outlasts the trial, so no counter expires meanwhile.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    @Param({"1024"})
+    public int clients;
+
+    private MapWithTtlV4<Integer, Integer> map;
+
+    private KeySet keys;
+
+    private final Queue<ThreadState> threads = new ConcurrentLinkedQueue<>();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+
+        private long merges;
+
+        @Setup(Level.Trial)
+        public void register(MergeBenchmark benchmark) {
+            benchmark.threads.add(this);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = MapWithTtlV4.<Integer, Integer>builder()
+                .ttl(1, TimeUnit.HOURS)
+                .keepExistingTtl()
+                .build();
+        keys = new KeySet(0, clients);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            long merges = 0;
+            for (ThreadState thread : threads) {
+                merges += thread.merges;
+            }
+            long counted = 0;
+            for (int count : map.values()) {
+                counted += count;
+            }
+            if (counted != merges) {
+                throw new IllegalStateException("Lost updates: " + merges + " merges, " + counted + " counted");
+            }
+        } finally {
+            map.close();
+        }
+    }
+
+    @Benchmark
+    public Integer merge(ThreadState state) {
+        state.merges++;
+        return map.merge(keys.get(state.random.nextInt()), 1, Integer::sum);
+    }
+}
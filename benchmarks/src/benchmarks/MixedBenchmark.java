@@ -0,0 +1,67 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a mix of gets and puts over a fixed live set, with the share of reads given in percent.
+ * <p>
+ * V1 and V2 are left out: they start one thread per put, which exhausts the process within one measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MixedBenchmark {
+
+    @Param({"V3", "V4", "V4_LAZY", "V4_EXECUTOR"})
+    public MapImplementation implementation;
+
+    @Param({"95", "50"})
+    public int readPercent;
+
+    @Param({"10000"})
+    public int liveKeys;
+
+    private Map<Integer, Integer> map;
+
+    private KeySet keys;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = implementation.create(TimeUnit.HOURS.toMillis(1));
+        keys = new KeySet(0, liveKeys);
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        for (int i = 0; i < keys.size(); i++) {
+            map.put(keys.get(i), i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+    }
+
+    @Benchmark
+    public Integer readWrite(ThreadState state) {
+        int random = state.random.nextInt();
+        Integer key = keys.get(random);
+        if ((random >>> 16) % 100 < readPercent) {
+            return map.get(key);
+        }
+        return map.put(key, random);
+    }
+}
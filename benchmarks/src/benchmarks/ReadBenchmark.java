@@ -0,0 +1,72 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures get on a map holding a fixed live set, for keys that are present and keys that are not.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+    @Param({"V1", "V2", "V3", "V4", "V4_LAZY", "V4_EXECUTOR"})
+    public MapImplementation implementation;
+
+    @Param({"10000"})
+    public int liveKeys;
+
+    private Map<Integer, Integer> map;
+
+    private KeySet presentKeys;
+
+    private KeySet missingKeys;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = implementation.create(TimeUnit.HOURS.toMillis(1));
+        presentKeys = new KeySet(0, liveKeys);
+        missingKeys = new KeySet(presentKeys.size(), liveKeys);
+        fill();
+    }
+
+    @Setup(Level.Iteration)
+    public void refresh() {
+        if (implementation.hasFixedTtl()) {
+            fill();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+    }
+
+    private void fill() {
+        for (int i = 0; i < presentKeys.size(); i++) {
+            map.put(presentKeys.get(i), i);
+        }
+    }
+
+    @Benchmark
+    public Integer getHit(ThreadState state) {
+        return map.get(presentKeys.get(state.random.nextInt()));
+    }
+
+    @Benchmark
+    public Integer getMiss(ThreadState state) {
+        return map.get(missingKeys.get(state.random.nextInt()));
+    }
+}
@@ -0,0 +1,84 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import src.map.DurableTtlMap;
+import src.map.MapWithTtlV4;
+import src.map.SyncPolicy;
+import src.map.TtlMap;
+import src.map.offheap.Serializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the put throughput of a {@link DurableTtlMap} under every {@link SyncPolicy} with the one of the
+ * in-memory {@link MapWithTtlV4} it is built on, {@code IN_MEMORY}. All threads put random keys of the same key
+ * space. The logs are written to a temporary directory that is deleted after the trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class WalBenchmark {
+
+    @Param({"IN_MEMORY", "EVERY_WRITE", "INTERVAL", "OS"})
+    public String syncPolicy;
+
+    @Param({"1048576"})
+    public int liveKeys;
+
+    private TtlMap<Integer, Long> map;
+
+    private KeySet keys;
+
+    private Path directory;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+
+        private long puts;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        keys = new KeySet(0, liveKeys);
+        if (syncPolicy.equals("IN_MEMORY")) {
+            map = new MapWithTtlV4<>(1, TimeUnit.MINUTES);
+            return;
+        }
+        directory = Files.createTempDirectory("ttl-wal");
+        map = DurableTtlMap.<Integer, Long>builder()
+                .directory(directory)
+                .keySerializer(Serializer.ints())
+                .valueSerializer(Serializer.longs())
+                .ttl(1, TimeUnit.MINUTES)
+                .syncPolicy(SyncPolicy.valueOf(syncPolicy))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Long put(ThreadState state) {
+        return map.put(keys.get(state.random.nextInt()), state.puts++);
+    }
+}
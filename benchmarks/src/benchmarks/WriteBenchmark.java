@@ -0,0 +1,93 @@
+package src.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures put of new keys, put over live keys, and remove.
+ * <p>
+ * V1 and V2 are left out: they start one thread per put, which exhausts the process within one measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+
+    @Param({"V3", "V4", "V4_LAZY", "V4_EXECUTOR"})
+    public MapImplementation implementation;
+
+    @Param({"10000"})
+    public int liveKeys;
+
+    /**
+     * The TTL of the entries, short enough that new keys do not pile up over a run.
+     */
+    @Param({"1000"})
+    public long ttlMillis;
+
+    private Map<Integer, Integer> map;
+
+    private KeySet presentKeys;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final SplittableRandom random = new SplittableRandom();
+
+        private int nextKey;
+
+        @Setup(Level.Trial)
+        public void setUp(WriteBenchmark benchmark) {
+            // Every thread writes new keys in its own range, above the live set
+            nextKey = (benchmark.threads.incrementAndGet() << 24) + benchmark.presentKeys.size();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = implementation.create(ttlMillis);
+        presentKeys = new KeySet(0, liveKeys);
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        for (int i = 0; i < presentKeys.size(); i++) {
+            map.put(presentKeys.get(i), i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        MapImplementation.close(map);
+    }
+
+    @Benchmark
+    public Integer putNew(ThreadState state) {
+        return map.put(state.nextKey++, 0);
+    }
+
+    @Benchmark
+    public Integer putOverwrite(ThreadState state) {
+        return map.put(presentKeys.get(state.random.nextInt()), 0);
+    }
+
+    /**
+     * Removes a live key and puts it back, so that the live set keeps its size.
+     * Subtract {@link #putNew} to isolate the cost of the remove.
+     */
+    @Benchmark
+    public Integer remove(ThreadState state) {
+        Integer key = presentKeys.get(state.random.nextInt());
+        Integer removed = map.remove(key);
+        map.put(key, 0);
+        return removed;
+    }
+}
@@ -0,0 +1,46 @@
+package src.map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Computes the value of a key missing from an {@link AsyncTtlMap} without blocking the caller, typically by calling
+ * an asynchronous client of a slower backend.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+@FunctionalInterface
+public interface AsyncCacheLoader<K, V> {
+
+    /**
+     * Starts loading the value of the key.
+     *
+     * @param key      the key whose value is to be loaded
+     * @param executor the executor of the map, on which blocking work can be run
+     * @return a future of the value of the key, which must not complete with null
+     * @throws Exception if the load cannot be started; the future of the read then fails with it
+     */
+    CompletableFuture<? extends V> load(K key, Executor executor) throws Exception;
+
+    /**
+     * Returns a loader running the given blocking loader on the executor of the map.
+     *
+     * @param loader the blocking loader to be run
+     * @param <K>    the type of keys
+     * @param <V>    the type of values
+     * @return an asynchronous loader calling the given one
+     */
+    static <K, V> AsyncCacheLoader<K, V> blocking(CacheLoader<? super K, ? extends V> loader) {
+        return (key, executor) -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return loader.load(key);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,305 @@
+package src.map;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * An asynchronous view of a {@link TtlMap}, meant to be called by many virtual threads.
+ * <p>
+ * Reads are served on the calling thread, since the thread-safe maps of this package read without locking, and
+ * return a completed future. Writes, computations and loads run on the executor of the view, a new virtual thread
+ * per task by default, so that a caller never waits for a lock of the map, a slow remapping function or a
+ * {@link DurableTtlMap} forcing its log.
+ * <p>
+ * Nothing here blocks while holding a monitor, which would pin the carrier thread of a virtual thread, or waits for
+ * a lock: the writes of the view are chained by stripe of keys, each starting on the executor once the previous one
+ * has completed. The writes of a key made through the view therefore run one at a time in the order they were
+ * called, and {@link #computeAsync} is atomic with respect to every one of them, though not to writes made to the
+ * map directly. Concurrent misses on
+ * the same key share one load, whose value is put unless the key has been written meanwhile. Unlike
+ * {@link LoadingTtlMap}, failed loads are not cached.
+ * <p>
+ * Closing the view shuts down the executor it created, if any, but does not close the map.
+ *
+ * @param <K> the type of keys maintained by the map
+ * @param <V> the type of mapped values
+ */
+public class AsyncTtlMap<K, V> implements AutoCloseable {
+
+    private final TtlMap<K, V> map;
+
+    private final Executor executor;
+
+    /**
+     * Whether the executor was created by this view, which then shuts it down when closed.
+     */
+    private final boolean ownsExecutor;
+
+    /**
+     * The completion of the last write called on each stripe of keys, indexed by the hash of the key, which the next
+     * write of the stripe waits for.
+     */
+    private final AtomicReferenceArray<CompletableFuture<Void>> tails;
+
+    /**
+     * The loads in progress, by key.
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+
+    private AsyncTtlMap(Builder<K, V> builder) {
+        this.map = builder.map;
+        this.ownsExecutor = builder.executor == null;
+        this.executor = ownsExecutor ? Executors.newVirtualThreadPerTaskExecutor() : builder.executor;
+        int stripeCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 8 - 1) << 1;
+        this.tails = new AtomicReferenceArray<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            tails.set(i, CompletableFuture.completedFuture(null));
+        }
+    }
+
+    /**
+     * Returns a builder to configure an asynchronous view of the given map.
+     *
+     * @param map the thread-safe map to be viewed
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     * @return a new builder with the default settings
+     */
+    public static <K, V> Builder<K, V> builder(TtlMap<K, V> map) {
+        return new Builder<>(map);
+    }
+
+    /**
+     * Returns the map of this view, to be called synchronously.
+     *
+     * @return the viewed map
+     */
+    public TtlMap<K, V> map() {
+        return map;
+    }
+
+    /**
+     * Returns the value of the key.
+     *
+     * @param key the key whose value is to be returned
+     * @return a completed future of the value of the key, or of null if it has no live mapping
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        return CompletableFuture.completedFuture(map.get(Objects.requireNonNull(key)));
+    }
+
+    /**
+     * Returns the value of the key, loading it on the executor of this view with the given blocking loader if it
+     * is missing.
+     *
+     * @param key    the key whose value is to be returned
+     * @param loader the loader to be called if the key is missing
+     * @return a future of the value of the key, failing if the load fails
+     * @see #getAsync(Object, AsyncCacheLoader)
+     */
+    public CompletableFuture<V> getAsync(K key, CacheLoader<? super K, ? extends V> loader) {
+        return getAsync(key, AsyncCacheLoader.<K, V>blocking(Objects.requireNonNull(loader)));
+    }
+
+    /**
+     * Returns the value of the key, loading it with the given loader if it is missing. Concurrent misses on the
+     * same key share one load. The loaded value is put with the default TTL of the map, unless the key has been
+     * written meanwhile, in which case the future completes with the value written.
+     *
+     * @param key    the key whose value is to be returned
+     * @param loader the loader to be called if the key is missing
+     * @return a future of the value of the key, failing if the load fails
+     */
+    public CompletableFuture<V> getAsync(K key, AsyncCacheLoader<? super K, ? extends V> loader) {
+        Objects.requireNonNull(loader);
+        V value = map.get(Objects.requireNonNull(key));
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> loading = loads.putIfAbsent(key, created);
+        if (loading != null) {
+            return loading.copy();
+        }
+        // A load may have put the value between the read and the claim
+        value = map.get(key);
+        if (value != null) {
+            loads.remove(key, created);
+            created.complete(value);
+            return created.copy();
+        }
+        CompletableFuture<? extends V> loaded;
+        try {
+            loaded = loader.load(key, executor);
+        } catch (Exception e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        loaded.whenComplete((result, failure) -> {
+            if (failure != null) {
+                complete(key, created, null, failure);
+            } else if (result == null) {
+                complete(key, created, null, new NullPointerException("Loader returned null for key " + key));
+            } else {
+                putLoaded(key, result).whenComplete((current, putFailure) ->
+                        complete(key, created, current, putFailure));
+            }
+        });
+        return created.copy();
+    }
+
+    /**
+     * Associates the value with the key, with the default TTL of the map, after the writes of the key already
+     * called through this view.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return a future of the previous value of the key, or of null if it had no live mapping
+     */
+    public CompletableFuture<V> putAsync(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        return write(key, () -> map.put(key, value));
+    }
+
+    /**
+     * Associates the value with the key, expiring after the given TTL, after the writes of the key already called
+     * through this view.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @param ttl   the time after which the mapping expires
+     * @return a future of the previous value of the key, or of null if it had no live mapping
+     */
+    public CompletableFuture<V> putAsync(K key, V value, Duration ttl) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(ttl);
+        return write(key, () -> map.put(key, value, ttl));
+    }
+
+    /**
+     * Computes the value of the key from its current value, or null if it has none, on the executor of this view.
+     * A null result removes the mapping, any other is put with the default TTL of the map. The function is called
+     * once, after the writes of the key already called through this view, and no other write through this view
+     * changes the key while it runs, so it may block, delaying the later writes of the keys sharing its stripe.
+     *
+     * @param key               the key whose value is to be computed
+     * @param remappingFunction the function computing the new value
+     * @return a future of the new value, or of null if the key has no mapping anymore, failing if the function fails
+     */
+    public CompletableFuture<V> computeAsync(K key,
+                                             BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(remappingFunction);
+        return write(key, () -> {
+            V current = map.get(key);
+            V value = remappingFunction.apply(key, current);
+            if (value != null) {
+                map.put(key, value);
+            } else if (current != null) {
+                map.remove(key, current);
+            }
+            return value;
+        });
+    }
+
+    /**
+     * Shuts down the executor of this view if it was created by the view. Writes already started still complete,
+     * writes still waiting for a previous one fail with a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Puts a loaded value unless the key has been written meanwhile.
+     *
+     * @return a future of the value of the key
+     */
+    private CompletableFuture<V> putLoaded(K key, V value) {
+        return write(key, () -> {
+            V current = map.putIfAbsent(key, value);
+            return current == null ? value : current;
+        });
+    }
+
+    /**
+     * Completes a shared load and stops sharing it.
+     */
+    private void complete(K key, CompletableFuture<V> load, V value, Throwable failure) {
+        if (failure != null) {
+            load.completeExceptionally(failure);
+        } else {
+            load.complete(value);
+        }
+        loads.remove(key, load);
+    }
+
+    /**
+     * Runs the write on the executor once the last write called on the stripe of the key has completed, whether it
+     * succeeded or not.
+     *
+     * @return a future of the result of the write
+     */
+    private CompletableFuture<V> write(K key, Supplier<V> write) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = tails.getAndSet(stripeFor(key), done);
+        CompletableFuture<V> result = previous.thenApplyAsync(ignored -> write.get(), executor);
+        result.whenComplete((value, failure) -> done.complete(null));
+        return result;
+    }
+
+    private int stripeFor(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (tails.length() - 1);
+    }
+
+    /**
+     * Configures and creates an {@link AsyncTtlMap}.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     */
+    public static final class Builder<K, V> {
+
+        private final TtlMap<K, V> map;
+
+        private Executor executor;
+
+        private Builder(TtlMap<K, V> map) {
+            this.map = Objects.requireNonNull(map);
+        }
+
+        /**
+         * Sets the executor running the writes, computations and blocking loads, a new virtual thread per task by
+         * default. An executor set here is not shut down when the view is closed.
+         *
+         * @param executor the executor to be used
+         * @return this builder
+         */
+        public Builder<K, V> executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Creates a view with the settings of this builder.
+         *
+         * @return a new view
+         */
+        public AsyncTtlMap<K, V> build() {
+            return new AsyncTtlMap<>(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package src.map;
+
+/**
+ * Computes the value of a key missing from a {@link LoadingTtlMap}, typically by calling a slower backend.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+@FunctionalInterface
+public interface CacheLoader<K, V> {
+
+    /**
+     * Loads the value of the key.
+     *
+     * @param key the key whose value is to be loaded
+     * @return the value of the key, never null
+     * @throws Exception if the value cannot be loaded; the failure is cached for the failure TTL of the map
+     */
+    V load(K key) throws Exception;
+}
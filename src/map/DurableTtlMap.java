@@ -0,0 +1,602 @@
+package src.map;
+
+import src.map.expiry.ExpiryEngineFactory;
+import src.map.expiry.Ticker;
+import src.map.expiry.TimingWheelExpiryEngine;
+import src.map.offheap.Serializer;
+import src.utilities.Common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe map with a Time-To-Live (TTL) whose mutations survive a restart.
+ * <p>
+ * The entries are held by a {@link MapWithTtlV4}, and every put, removal, change of expiry and clear is also
+ * recorded in a {@link WriteAheadLog} in the directory of the map. When the map is built, the log is replayed: the
+ * entries whose deadline has passed meanwhile are left out, the others expire at their original deadline.
+ * <p>
+ * A mutation and the append of its record happen under a lock striped by key, so the log orders the mutations of a
+ * key as the map does. The records are written by one thread in batches; whether a mutation waits for its record
+ * to reach the disk depends on the {@link SyncPolicy}. Once enough segments of the log have been filled, the log is
+ * compacted in the background into a snapshot of the live entries.
+ * <p>
+ * The key, value and entry views are read-only, since removals through them would bypass the log.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class DurableTtlMap<K, V> implements TtlMap<K, V>, AutoCloseable {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(DurableTtlMap.class);
+    }
+
+    /**
+     * The default sync interval in milliseconds.
+     */
+    public static final int DEFAULT_SYNC_INTERVAL = 10;
+
+    /**
+     * The default size in bytes beyond which the log continues in a new segment.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * The default number of filled segments after which the log is compacted.
+     */
+    public static final int DEFAULT_COMPACT_AFTER_SEGMENTS = 4;
+
+    private final MapWithTtlV4<K, V> table;
+
+    private final WriteAheadLog<K, V> log;
+
+    private final Duration ttl;
+
+    /**
+     * The locks ordering the mutations of a key and the appends of their records, indexed by the hash of the key.
+     */
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Compacts the log in the background when it has grown.
+     */
+    private final ExecutorService compactor;
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    private DurableTtlMap(Builder<K, V> builder) {
+        this.ttl = Duration.ofNanos(builder.ttlNanos);
+        this.table = MapWithTtlV4.<K, V>builder()
+                .ttl(builder.ttlNanos, TimeUnit.NANOSECONDS)
+                .expiryEngine(builder.expiryEngineFactory)
+                .ticker(builder.ticker)
+                .build();
+        int stripeCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 8 - 1) << 1;
+        this.stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ttl-wal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            this.log = new WriteAheadLog<>(builder.directory, builder.keySerializer, builder.valueSerializer,
+                    builder.syncPolicy, builder.syncIntervalNanos, builder.segmentSize,
+                    builder.compactAfterSegments, this::scheduleCompaction, this::replay);
+        } catch (IOException e) {
+            table.close();
+            compactor.shutdown();
+            throw new UncheckedIOException("Cannot open the write-ahead log in " + builder.directory, e);
+        }
+    }
+
+    /**
+     * Returns a builder to configure a map.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     * @return a new builder with the default settings
+     */
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>();
+    }
+
+    @Override
+    public int size() {
+        return table.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return table.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return table.containsValue(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        return table.get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, ttl);
+    }
+
+    @Override
+    public V put(K key, V value, Duration ttl) {
+        long deadline = deadlineMillis(ttl);
+        V previous;
+        long sequence;
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            previous = table.put(key, value, ttl);
+            sequence = log.append(WriteAheadLog.PUT, key, value, deadline);
+        } finally {
+            stripe.unlock();
+        }
+        awaitSynced(sequence);
+        return previous;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putIfAbsent(key, value, ttl);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value, Duration ttl) {
+        long deadline = deadlineMillis(ttl);
+        V current;
+        long sequence = 0;
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            current = table.putIfAbsent(key, value, ttl);
+            if (current == null) {
+                sequence = log.append(WriteAheadLog.PUT, key, value, deadline);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        awaitSynced(sequence);
+        return current;
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map, expiring after the given TTL.
+     * The records of the mappings are synced together, after all of them have been put.
+     *
+     * @param m   mappings to be stored in this map
+     * @param ttl the time after which the mappings expire
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m, Duration ttl) {
+        long deadline = deadlineMillis(ttl);
+        long sequence = 0;
+        for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+            ReentrantLock stripe = stripeFor(e.getKey());
+            stripe.lock();
+            try {
+                table.put(e.getKey(), e.getValue(), ttl);
+                sequence = log.append(WriteAheadLog.PUT, e.getKey(), e.getValue(), deadline);
+            } finally {
+                stripe.unlock();
+            }
+        }
+        awaitSynced(sequence);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        putAll(m, ttl);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        V previous;
+        long sequence = 0;
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            previous = table.remove(key);
+            if (previous != null) {
+                sequence = log.append(WriteAheadLog.REMOVE, (K) key, null, 0);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        awaitSynced(sequence);
+        return previous;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object key, Object value) {
+        boolean removed;
+        long sequence = 0;
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            removed = table.remove(key, value);
+            if (removed) {
+                sequence = log.append(WriteAheadLog.REMOVE, (K) key, null, 0);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        awaitSynced(sequence);
+        return removed;
+    }
+
+    @Override
+    public boolean expireAt(K key, Instant deadline) {
+        long deadlineMillis = deadline.isAfter(Instant.ofEpochMilli(Long.MAX_VALUE - 1))
+                ? Long.MAX_VALUE - 1
+                : deadline.toEpochMilli();
+        return changeExpiry(key, deadlineMillis, () -> table.expireAt(key, deadline));
+    }
+
+    @Override
+    public Optional<Instant> getExpiration(K key) {
+        return table.getExpiration(key);
+    }
+
+    @Override
+    public boolean persist(K key) {
+        return changeExpiry(key, Long.MAX_VALUE, () -> table.persist(key));
+    }
+
+    /**
+     * Removes all of the mappings from this map, holding every stripe so that no mutation is ordered around the
+     * record of the clear.
+     */
+    @Override
+    public void clear() {
+        long sequence;
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            table.clear();
+            sequence = log.append(WriteAheadLog.CLEAR, null, null, 0);
+        } finally {
+            for (ReentrantLock stripe : stripes) {
+                stripe.unlock();
+            }
+        }
+        awaitSynced(sequence);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(table.keySet());
+    }
+
+    @Override
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(table.values());
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return Collections.unmodifiableSet(table.entrySet());
+    }
+
+    /**
+     * Replaces the log written so far by a snapshot of the live entries, dropping the records of expired, removed
+     * and overwritten entries. Mutations continue meanwhile, waiting only while the segment of the table they
+     * write is being copied, so that the snapshot holds every entry whose record it replaces. The log is also
+     * compacted in the background once enough segments have been filled.
+     *
+     * @throws UncheckedIOException if the snapshot cannot be written
+     */
+    public void compact() {
+        try {
+            log.compact(sink -> table.forEachExpiration((entry, deadline) ->
+                    sink.accept(WriteAheadLog.PUT, entry.getKey(), entry.getValue(),
+                            deadline.equals(Instant.MAX) ? Long.MAX_VALUE : deadline.toEpochMilli())));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot compact the write-ahead log", e);
+        }
+    }
+
+    /**
+     * Writes and forces the records of all the mutations made, then stops the log and the expiry of this map.
+     */
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        log.close();
+        table.close();
+    }
+
+    private boolean changeExpiry(K key, long deadlineMillis, BooleanSupplier change) {
+        boolean changed;
+        long sequence = 0;
+        ReentrantLock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            changed = change.getAsBoolean();
+            if (changed) {
+                sequence = log.append(WriteAheadLog.EXPIRE_AT, key, null, deadlineMillis);
+            }
+        } finally {
+            stripe.unlock();
+        }
+        awaitSynced(sequence);
+        return changed;
+    }
+
+    private void awaitSynced(long sequence) {
+        if (sequence > 0 && log.syncsEveryWrite()) {
+            log.awaitSynced(sequence);
+        }
+    }
+
+    private ReentrantLock stripeFor(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Background compaction failed", e);
+                } finally {
+                    compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies a record of the log to the table while the map is built.
+     */
+    private void replay(byte type, K key, V value, long deadlineMillis) {
+        long now = System.currentTimeMillis();
+        switch (type) {
+            case WriteAheadLog.PUT -> {
+                if (deadlineMillis <= now) {
+                    table.remove(key);
+                } else if (deadlineMillis == Long.MAX_VALUE) {
+                    table.put(key, value, ttl);
+                    table.persist(key);
+                } else {
+                    table.put(key, value, Duration.ofMillis(deadlineMillis - now));
+                }
+            }
+            case WriteAheadLog.REMOVE -> table.remove(key);
+            case WriteAheadLog.EXPIRE_AT -> {
+                if (deadlineMillis == Long.MAX_VALUE) {
+                    table.persist(key);
+                } else {
+                    table.expireAt(key, Instant.ofEpochMilli(deadlineMillis));
+                }
+            }
+            case WriteAheadLog.CLEAR -> table.clear();
+            default -> throw new IllegalStateException("Unknown record type " + type);
+        }
+    }
+
+    private static long deadlineMillis(Duration ttl) {
+        long now = System.currentTimeMillis();
+        long ttlMillis;
+        try {
+            ttlMillis = ttl.toMillis();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE - 1;
+        }
+        return ttlMillis >= Long.MAX_VALUE - 1 - now ? Long.MAX_VALUE - 1 : now + ttlMillis;
+    }
+
+    /**
+     * Configures a {@link DurableTtlMap}. The directory and the serializers are required.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     */
+    public static final class Builder<K, V> {
+
+        private Path directory;
+
+        private Serializer<K> keySerializer;
+
+        private Serializer<V> valueSerializer;
+
+        private long ttlNanos = TimeUnit.MILLISECONDS.toNanos(MapWithTtlV4.DEFAULT_TTL);
+
+        private SyncPolicy syncPolicy = SyncPolicy.INTERVAL;
+
+        private long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SYNC_INTERVAL);
+
+        private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+        private int compactAfterSegments = DEFAULT_COMPACT_AFTER_SEGMENTS;
+
+        private ExpiryEngineFactory expiryEngineFactory = TimingWheelExpiryEngine::new;
+
+        private Ticker ticker = Ticker.coarse();
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the directory holding the log, created if it does not exist. It must not be shared with another map.
+         *
+         * @param directory the directory of the log
+         * @return this builder
+         */
+        public Builder<K, V> directory(Path directory) {
+            this.directory = Objects.requireNonNull(directory);
+            return this;
+        }
+
+        /**
+         * Sets how the keys are written to the log. Equal keys must be written as equal bytes.
+         *
+         * @param keySerializer the serializer of the keys
+         * @return this builder
+         */
+        public Builder<K, V> keySerializer(Serializer<K> keySerializer) {
+            this.keySerializer = Objects.requireNonNull(keySerializer);
+            return this;
+        }
+
+        /**
+         * Sets how the values are written to the log.
+         *
+         * @param valueSerializer the serializer of the values
+         * @return this builder
+         */
+        public Builder<K, V> valueSerializer(Serializer<V> valueSerializer) {
+            this.valueSerializer = Objects.requireNonNull(valueSerializer);
+            return this;
+        }
+
+        /**
+         * Sets the time after which an entry expires unless put with its own TTL, 15000 milliseconds by default.
+         *
+         * @param ttl  the TTL
+         * @param unit the unit of the TTL
+         * @return this builder
+         */
+        public Builder<K, V> ttl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+            }
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets when the log is forced to disk, {@link SyncPolicy#INTERVAL} by default.
+         *
+         * @param syncPolicy the sync policy
+         * @return this builder
+         */
+        public Builder<K, V> syncPolicy(SyncPolicy syncPolicy) {
+            this.syncPolicy = Objects.requireNonNull(syncPolicy);
+            return this;
+        }
+
+        /**
+         * Sets the longest time a written record waits to be forced with {@link SyncPolicy#INTERVAL},
+         * {@value DurableTtlMap#DEFAULT_SYNC_INTERVAL} milliseconds by default.
+         *
+         * @param interval the sync interval
+         * @param unit     the unit of the interval
+         * @return this builder
+         */
+        public Builder<K, V> syncInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Sync interval must be positive: " + interval + " " + unit);
+            }
+            this.syncIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes beyond which the log continues in a new segment, 64 MiB by default.
+         *
+         * @param segmentSize the segment size
+         * @return this builder
+         */
+        public Builder<K, V> segmentSize(long segmentSize) {
+            if (segmentSize <= 0) {
+                throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of filled segments after which the log is compacted in the background,
+         * {@value DurableTtlMap#DEFAULT_COMPACT_AFTER_SEGMENTS} by default, or 0 to only compact through
+         * {@link DurableTtlMap#compact()}.
+         *
+         * @param segments the number of segments
+         * @return this builder
+         */
+        public Builder<K, V> compactAfterSegments(int segments) {
+            if (segments < 0) {
+                throw new IllegalArgumentException("Number of segments must not be negative: " + segments);
+            }
+            this.compactAfterSegments = segments;
+            return this;
+        }
+
+        /**
+         * Expires entries through the engine created by the given factory, a
+         * {@link TimingWheelExpiryEngine} by default.
+         *
+         * @param expiryEngineFactory the factory of the expiry engine to be used
+         * @return this builder
+         */
+        public Builder<K, V> expiryEngine(ExpiryEngineFactory expiryEngineFactory) {
+            this.expiryEngineFactory = Objects.requireNonNull(expiryEngineFactory);
+            return this;
+        }
+
+        /**
+         * Sets the source of time for expiry, the shared {@link Ticker#coarse()} ticker by default. Deadlines in
+         * the log are always taken from the wall clock.
+         *
+         * @param ticker the ticker to be used
+         * @return this builder
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Objects.requireNonNull(ticker);
+            return this;
+        }
+
+        /**
+         * Creates a map with the settings of this builder, replaying the log found in its directory.
+         *
+         * @return a new map
+         * @throws IllegalStateException if the directory or a serializer is not set
+         * @throws UncheckedIOException  if the log cannot be read or created
+         */
+        public DurableTtlMap<K, V> build() {
+            if (directory == null || keySerializer == null || valueSerializer == null) {
+                throw new IllegalStateException("Directory, key serializer and value serializer must be set");
+            }
+            return new DurableTtlMap<>(this);
+        }
+    }
+}
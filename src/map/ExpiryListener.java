@@ -0,0 +1,23 @@
+package src.map;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the entries a map has removed because their TTL elapsed.
+ * Entries that expire together, e.g. in the same tick of the expiry engine, are reported as one batch.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+@FunctionalInterface
+public interface ExpiryListener<K, V> {
+
+    /**
+     * Called with a batch of expired entries, after they have been removed and without any lock of the map held.
+     * The list is only valid for the duration of the call and must not be retained.
+     *
+     * @param expired the entries that have expired
+     */
+    void onExpired(List<Map.Entry<K, V>> expired);
+}
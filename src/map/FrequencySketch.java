@@ -0,0 +1,117 @@
+package src.map;
+
+/**
+ * A Count-Min sketch estimating how often each key was seen recently, for the admission filter of TinyLFU.
+ * <p>
+ * Every long of the table holds sixteen 4-bit counters. A key is mapped to one counter in each of four longs,
+ * picking the same group of four counters in each, and its frequency is the smallest of them, so collisions can
+ * only make a key look more popular. Counters saturate at 15. Once the number of increments reaches ten times the
+ * capacity, all counters are halved so that the sketch forgets old popularity.
+ * <p>
+ * Not thread-safe, it is guarded by the lock of the segment that owns it.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private long[] table;
+
+    private int tableMask;
+
+    private int sampleSize;
+
+    private int size;
+
+    FrequencySketch(long capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the table to fit the given number of keys. Growing forgets all counts.
+     */
+    void ensureCapacity(long capacity) {
+        int maximum = Math.clamp(capacity, 8, MAXIMUM_CAPACITY);
+        if (table != null && table.length >= maximum) {
+            return;
+        }
+        table = new long[Integer.highestOneBit(maximum - 1) << 1];
+        tableMask = table.length - 1;
+        sampleSize = maximum * 10 > 0 ? maximum * 10 : Integer.MAX_VALUE;
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of times the key was seen, at most 15.
+     */
+    int frequency(int hash) {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            long count = (table[indexOf(h, i)] >>> ((start + i) << 2)) & 0xfL;
+            frequency = Math.min(frequency, (int) count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts one more occurrence of the key, and ages all counters once enough occurrences were counted.
+     */
+    void increment(int hash) {
+        int h = spread(hash);
+        int start = (h & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(h, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter. The counters that were odd lose their remainder, which is subtracted from the size.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    /**
+     * Mixes the bits of the hash again, as the map picks segments by its high bits and all keys of a segment
+     * share them.
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,506 @@
+package src.map;
+
+import src.map.expiry.ExpiryEngineFactory;
+import src.map.expiry.Ticker;
+import src.map.expiry.TimingWheelExpiryEngine;
+import src.utilities.Common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe cache with a Time-To-Live (TTL) that loads the values it is missing.
+ * <p>
+ * The table is a {@link MapWithTtlV4} mapping every key to a {@link CompletableFuture} of its value. On a miss, the
+ * thread that manages to put a new future for the key runs the loader, and every other thread missing on the same
+ * key meanwhile finds that future and waits for it, so a hot key that expires causes a single load instead of a
+ * stampede. The TTL of a loaded value starts once it is loaded.
+ * <p>
+ * A failed load is cached as well, for the shorter failure TTL: until it expires, reads of the key fail with the
+ * same exception without calling the loader again.
+ * <p>
+ * With {@link Builder#refreshAfterWrite(long, TimeUnit)}, a value read once it is older than the refresh time is
+ * still returned right away, but the read also starts one reload in the background. A successful reload replaces
+ * the value and restarts its TTL, so hot keys are reloaded before they expire and reads never wait for them.
+ * A failed reload is logged and leaves the current value in place, to be refreshed again by a later read.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class LoadingTtlMap<K, V> implements AutoCloseable {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(LoadingTtlMap.class);
+    }
+
+    /**
+     * The default TTL of a failed load in milliseconds.
+     */
+    public static final int DEFAULT_FAILURE_TTL = 1000;
+
+    private final MapWithTtlV4<K, Loading<V>> table;
+
+    /**
+     * The loader used by {@link #get(Object)}, null if every read passes its own.
+     */
+    private final CacheLoader<? super K, ? extends V> loader;
+
+    private final Duration ttl;
+
+    private final Duration failureTtl;
+
+    /**
+     * The age from which a read reloads a value in the background, 0 if values are not refreshed.
+     */
+    private final long refreshNanos;
+
+    /**
+     * Runs the background reloads, null if values are not refreshed.
+     */
+    private final Executor refreshExecutor;
+
+    /**
+     * Whether the refresh executor was created by this map, which then shuts it down when closed.
+     */
+    private final boolean ownsRefreshExecutor;
+
+    private final Ticker ticker;
+
+    /**
+     * Records the reads, puts and loads of the map, null unless enabled. The table records the removals.
+     */
+    private final StatsCounter stats;
+
+    private LoadingTtlMap(Builder<K, V> builder) {
+        this.loader = builder.loader;
+        this.ttl = Duration.ofNanos(builder.ttlNanos);
+        this.failureTtl = Duration.ofNanos(builder.failureTtlNanos);
+        this.refreshNanos = builder.refreshNanos;
+        this.ownsRefreshExecutor = refreshNanos > 0 && builder.refreshExecutor == null;
+        this.refreshExecutor = ownsRefreshExecutor
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : builder.refreshExecutor;
+        this.ticker = builder.ticker;
+        this.stats = builder.recordStats ? new StatsCounter() : null;
+        MapWithTtlV4.Builder<K, Loading<V>> tableBuilder = MapWithTtlV4.<K, Loading<V>>builder()
+                .ttl(builder.ttlNanos, TimeUnit.NANOSECONDS)
+                .expiryEngine(builder.expiryEngineFactory)
+                .ticker(builder.ticker);
+        if (builder.recordStats) {
+            tableBuilder.recordStats();
+        }
+        this.table = tableBuilder.build();
+    }
+
+    /**
+     * Returns a builder to configure a map.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     * @return a new builder with the default settings
+     */
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Returns the value of the key, loading it with the loader of this map if it is missing.
+     *
+     * @param key the key whose value is to be returned
+     * @return the value of the key
+     * @throws IllegalStateException if this map has no loader
+     * @throws CompletionException   if the load failed now or within the failure TTL, with the failure as cause
+     */
+    public V get(K key) {
+        if (loader == null) {
+            throw new IllegalStateException("No loader configured, pass one to get(key, loader)");
+        }
+        return get(key, loader);
+    }
+
+    /**
+     * Returns the value of the key, loading it with the given loader if it is missing. Concurrent misses on the
+     * same key share one load, which runs on the thread that missed first. If the value is due for a refresh, the
+     * given loader also reloads it in the background.
+     *
+     * @param key    the key whose value is to be returned
+     * @param loader the loader to be called if the key is missing
+     * @return the value of the key
+     * @throws CompletionException if the load failed now or within the failure TTL, with the failure as cause
+     */
+    public V get(K key, CacheLoader<? super K, ? extends V> loader) {
+        Objects.requireNonNull(loader);
+        Loading<V> entry = table.get(key);
+        if (stats != null) {
+            if (entry == null) {
+                stats.recordMiss();
+            } else {
+                stats.recordHit();
+            }
+        }
+        if (entry == null) {
+            Loading<V> created = new Loading<>(new CompletableFuture<>());
+            entry = table.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                load(key, created, loader);
+            }
+        }
+        V value = entry.future.join();
+        if (refreshNanos > 0 && ticker.read() - entry.loadedAt >= refreshNanos && entry.startRefresh()) {
+            refresh(key, entry, loader);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the key if it is loaded, without loading it or waiting for a load in progress.
+     *
+     * @param key the key whose value is to be returned
+     * @return the value of the key, or null if it is missing, still loading or failed to load
+     */
+    public V getIfPresent(K key) {
+        Loading<V> entry = table.get(key);
+        V value = entry == null || entry.future.isCompletedExceptionally() ? null : entry.future.getNow(null);
+        if (stats != null) {
+            if (value == null) {
+                stats.recordMiss();
+            } else {
+                stats.recordHit();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Associates the value with the key, replacing a value or a failure cached for it. Threads waiting for a load
+     * in progress still get the loaded value.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     */
+    public void put(K key, V value) {
+        table.put(key, loaded(Objects.requireNonNull(value)));
+        if (stats != null) {
+            stats.recordPut();
+        }
+    }
+
+    /**
+     * Removes the value or failure cached for the key, so that the next read loads it again.
+     *
+     * @param key the key whose mapping is to be removed
+     */
+    public void invalidate(K key) {
+        table.remove(key);
+    }
+
+    /**
+     * Returns the number of keys loaded, being loaded or whose load failed, including expired ones not removed yet.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this map, if it records them. Hits and misses count the reads that
+     * found a value or failure cached, or not; the removals and expirations are those of the underlying table.
+     *
+     * @return the statistics of the map, or empty unless enabled with {@link Builder#recordStats()}
+     */
+    public Optional<TtlMapStats> stats() {
+        if (stats == null) {
+            return Optional.empty();
+        }
+        TtlMapStats own = stats.snapshot();
+        TtlMapStats tableStats = table.stats().orElseThrow();
+        return Optional.of(new TtlMapStats(own.hitCount(), own.missCount(), own.putCount(),
+                tableStats.removeCount(), tableStats.expiredCount(), tableStats.evictionCount(),
+                own.loadSuccessCount(), own.loadFailureCount(), own.totalLoadTimeNanos(),
+                tableStats.expiryLag(), tableStats.pendingExpiries()));
+    }
+
+    /**
+     * Stops the background expiry of this map.
+     */
+    @Override
+    public void close() {
+        table.close();
+        if (ownsRefreshExecutor) {
+            ((ExecutorService) refreshExecutor).shutdown();
+        }
+    }
+
+    /**
+     * Runs the loader and completes the future with its outcome, then restarts the TTL of the entry, if the key is
+     * still mapped to the future, with the TTL matching the outcome.
+     */
+    private void load(K key, Loading<V> entry, CacheLoader<? super K, ? extends V> loader) {
+        Duration entryTtl;
+        try {
+            V value = loadValue(key, loader);
+            entry.loadedAt = ticker.read();
+            entry.future.complete(value);
+            entryTtl = ttl;
+        } catch (Exception e) {
+            entry.future.completeExceptionally(e);
+            entryTtl = failureTtl;
+        } catch (Error e) {
+            // Not cached, the next read tries again
+            entry.future.completeExceptionally(e);
+            table.remove(key, entry);
+            throw e;
+        }
+        table.replace(key, entry, entry, entryTtl);
+    }
+
+    /**
+     * Reloads the value of an entry on the refresh executor and replaces the entry with the new value, unless the
+     * key has been put, invalidated or expired since.
+     */
+    private void refresh(K key, Loading<V> entry, CacheLoader<? super K, ? extends V> loader) {
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    table.replace(key, entry, loaded(loadValue(key, loader)), ttl);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, e, () -> "Refresh of key " + key + " failed");
+                    entry.refreshing = false;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing = false;
+        }
+    }
+
+    private V loadValue(K key, CacheLoader<? super K, ? extends V> loader) throws Exception {
+        long start = stats == null ? 0 : System.nanoTime();
+        boolean loaded = false;
+        try {
+            V value = loader.load(key);
+            if (value == null) {
+                throw new NullPointerException("Loader returned null for key " + key);
+            }
+            loaded = true;
+            return value;
+        } finally {
+            if (stats != null) {
+                if (loaded) {
+                    stats.recordLoadSuccess(System.nanoTime() - start);
+                } else {
+                    stats.recordLoadFailure(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private Loading<V> loaded(V value) {
+        Loading<V> entry = new Loading<>(CompletableFuture.completedFuture(value));
+        entry.loadedAt = ticker.read();
+        return entry;
+    }
+
+    /**
+     * Configures and creates a {@link LoadingTtlMap}.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     */
+    public static final class Builder<K, V> {
+
+        private long ttlNanos = TimeUnit.MILLISECONDS.toNanos(MapWithTtlV4.DEFAULT_TTL);
+
+        private long failureTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FAILURE_TTL);
+
+        private CacheLoader<? super K, ? extends V> loader;
+
+        private ExpiryEngineFactory expiryEngineFactory = TimingWheelExpiryEngine::new;
+
+        private Ticker ticker = Ticker.coarse();
+
+        private long refreshNanos;
+
+        private Executor refreshExecutor;
+
+        private boolean recordStats;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the time after which a loaded value expires, 15000 milliseconds by default.
+         *
+         * @param ttl  the TTL
+         * @param unit the unit of the TTL
+         * @return this builder
+         */
+        public Builder<K, V> ttl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+            }
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the time during which a failed load is cached, 1000 milliseconds by default.
+         *
+         * @param ttl  the failure TTL
+         * @param unit the unit of the failure TTL
+         * @return this builder
+         */
+        public Builder<K, V> failureTtl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("Failure TTL must be positive: " + ttl + " " + unit);
+            }
+            this.failureTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the loader used by {@link LoadingTtlMap#get(Object)}.
+         *
+         * @param loader the loader to be used
+         * @return this builder
+         */
+        public Builder<K, V> loader(CacheLoader<? super K, ? extends V> loader) {
+            this.loader = Objects.requireNonNull(loader);
+            return this;
+        }
+
+        /**
+         * Reloads a value in the background when it is read once it is older than the given time, which must be
+         * shorter than the TTL. Values are not refreshed by default.
+         *
+         * @param duration the age of a value from which a read refreshes it
+         * @param unit     the unit of the duration
+         * @return this builder
+         */
+        public Builder<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Refresh time must be positive: " + duration + " " + unit);
+            }
+            this.refreshNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets the executor running the background reloads, a new virtual thread per reload by default.
+         * An executor set here is not shut down when the map is closed.
+         *
+         * @param refreshExecutor the executor to be used
+         * @return this builder
+         */
+        public Builder<K, V> refreshExecutor(Executor refreshExecutor) {
+            this.refreshExecutor = Objects.requireNonNull(refreshExecutor);
+            return this;
+        }
+
+        /**
+         * Enables the statistics returned by {@link LoadingTtlMap#stats()}, including the number and duration of
+         * the loads.
+         *
+         * @return this builder
+         */
+        public Builder<K, V> recordStats() {
+            this.recordStats = true;
+            return this;
+        }
+
+        /**
+         * Expires entries through the engine created by the given factory, a
+         * {@link TimingWheelExpiryEngine} by default.
+         *
+         * @param expiryEngineFactory the factory of the expiry engine to be used
+         * @return this builder
+         */
+        public Builder<K, V> expiryEngine(ExpiryEngineFactory expiryEngineFactory) {
+            this.expiryEngineFactory = Objects.requireNonNull(expiryEngineFactory);
+            return this;
+        }
+
+        /**
+         * Sets the source of time for expiry, the shared {@link Ticker#coarse()} ticker by default.
+         *
+         * @param ticker the ticker to be used
+         * @return this builder
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Objects.requireNonNull(ticker);
+            return this;
+        }
+
+        /**
+         * Creates a map with the settings of this builder.
+         *
+         * @return a new map
+         * @throws IllegalStateException if the refresh time is not shorter than the TTL
+         */
+        public LoadingTtlMap<K, V> build() {
+            if (refreshNanos >= ttlNanos) {
+                throw new IllegalStateException("Refresh time must be shorter than the TTL: " + refreshNanos
+                        + "ns >= " + ttlNanos + "ns");
+            }
+            return new LoadingTtlMap<>(this);
+        }
+    }
+
+    /**
+     * The value of a key, loaded or being loaded, compared by identity in the table.
+     *
+     * @param <V> the type of the value
+     */
+    private static final class Loading<V> {
+
+        private static final VarHandle REFRESHING;
+
+        static {
+            try {
+                REFRESHING = MethodHandles.lookup().findVarHandle(Loading.class, "refreshing", boolean.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final CompletableFuture<V> future;
+
+        /**
+         * The time of the ticker at which the value was loaded, written before the future is completed.
+         */
+        private volatile long loadedAt;
+
+        /**
+         * Whether a reload of the value is in progress.
+         */
+        private volatile boolean refreshing;
+
+        private Loading(CompletableFuture<V> future) {
+            this.future = future;
+        }
+
+        /**
+         * Claims the refresh of the value, so that only one read starts it.
+         *
+         * @return true if no refresh was in progress
+         */
+        private boolean startRefresh() {
+            return !refreshing && REFRESHING.compareAndSet(this, false, true);
+        }
+    }
+}
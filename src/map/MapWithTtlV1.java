@@ -149,9 +149,62 @@ public class MapWithTtlV1<K, V> implements Map<K, V> {
         threadList.forEach(Thread::interrupt);
     }
 
+    /**
+     * Returns a live view of the keys of this map.
+     * Removing a key through the view or its iterator also interrupts the thread associated with the key.
+     */
     @Override
     public Set<K> keySet() {
-        return internalMap.keySet();
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return internalMap.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return internalMap.containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!internalMap.containsKey(o)) {
+                    return false;
+                }
+                MapWithTtlV1.this.remove(o);
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                MapWithTtlV1.this.clear();
+            }
+
+            @Override
+            public Iterator<K> iterator() {
+                Iterator<Entry<K, Value<V>>> iterator = internalMap.entrySet().iterator();
+                return new Iterator<>() {
+                    private Entry<K, Value<V>> lastReturned;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        lastReturned = iterator.next();
+                        return lastReturned.getKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        lastReturned.getValue().t.interrupt();
+                    }
+                };
+            }
+        };
     }
 
     @Override
@@ -1,22 +1,45 @@
 package src.map;
 
+import src.map.expiry.ExpiryEngine;
+import src.map.expiry.ExpiryEngineFactory;
+import src.map.expiry.ExpiryHandle;
+import src.map.expiry.SharedExpiryService;
+import src.map.expiry.Ticker;
+import src.map.offheap.Serializer;
 import src.utilities.Common;
 
-import java.time.Instant;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * This class represents a Map with a Time-To-Live (TTL) feature.
  * Each key-value pair in the map will be automatically removed after a certain period of time.
  * The default TTL is 60000 milliseconds (1 minute).
+ * <p>
+ * By default the map registers with the process-wide {@link SharedExpiryService}, whose workers remove the expired
+ * keys, so creating many maps does not create threads. {@link #close()} unregisters the map.
+ * <p>
+ * The entries are held by a {@link ConcurrentHashMap}, since the expiry handler removes them on a worker thread
+ * while the map is in use. Expiry removes an entry only if its key is still mapped to the very entry that expired,
+ * so it never deletes a value put again since. The key, value and entry views are weakly consistent: they never
+ * throw {@link ConcurrentModificationException}, skip the entries whose TTL has elapsed and allocate nothing per
+ * element. {@link #putIfAbsent}, {@link #replace}, the conditional {@link #remove(Object, Object)} and the compute
+ * methods are atomic under the lock of the bin of the key, which expiry takes as well. Entries they create or update
+ * expire after the fixed TTL, like the ones put; {@link MapWithTtlV4} can be told to keep the deadline of updated
+ * entries instead. Neither keys nor values may be null.
  *
  * @param <K> the type of keys maintained by this map
  * @param <V> the type of mapped values
  */
-public class MapWithTtlV3<K, V> implements Map<K, V> {
+public class MapWithTtlV3<K, V> implements Map<K, V>, AutoCloseable {
 
     private static final Logger LOGGER;
 
@@ -30,21 +53,123 @@ public class MapWithTtlV3<K, V> implements Map<K, V> {
     public static final int DEFAULT_TTL = 15000;
 
     /**
-     * A record that holds the value and the thread associated with it.
+     * An entry of the map: the key, the value, the handle of its expiry and its deadline in ticker nanoseconds.
+     * Entries are handed out by {@link #entrySet()}, so they compare as map entries; the map itself tells them
+     * apart by identity.
      *
+     * @param <K> the type of the key
      * @param <V> the type of the value
      */
-    private record Value<V>(V value, Future<?> t, Instant validTill) {
+    private static final class Value<K, V> implements Entry<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final ExpiryHandle t;
+
+        private final long validTill;
+
+        private Value(K key, V value, ExpiryHandle t, long validTill) {
+            this.key = key;
+            this.value = value;
+            this.t = t;
+            this.validTill = validTill;
+        }
+
+        /**
+         * Whether the TTL of the entry has not elapsed at the given time of the ticker, the one liveness check of
+         * the map.
+         */
+        private boolean isLive(long now) {
+            return now < validTill;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Entries of the map are immutable");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry<?, ?> entry && key.equals(entry.getKey()) && value.equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
     }
 
     /**
      * The internal map that holds the keys and their associated values.
      */
-    private final Map<K, Value<V>> internalMap = new HashMap<>();
+    private final ConcurrentHashMap<K, Value<K, V>> internalMap = new ConcurrentHashMap<>();
+
+    /**
+     * Tracks the deadline of every key and reports the keys that have expired.
+     */
+    private final ExpiryEngine<K> expiryEngine;
+
+    /**
+     * The source of time the deadlines are read from.
+     */
+    private final Ticker ticker;
+
+    /**
+     * Counts the reads of keys found expired, in place of logging each of them.
+     */
+    private final LongAdder expiredReads = new LongAdder();
 
-    private final ScheduledExecutorService executor =
-            new ScheduledThreadPoolExecutor(12);
+    /**
+     * Creates a map whose keys expire through the default {@link SharedExpiryService}.
+     */
+    public MapWithTtlV3() {
+        this(SharedExpiryService.getDefault()::register);
+    }
+
+    /**
+     * Creates a map whose keys expire through the engine created by the given factory.
+     *
+     * @param expiryEngineFactory the factory of the expiry engine to be used
+     */
+    public MapWithTtlV3(ExpiryEngineFactory expiryEngineFactory) {
+        this(expiryEngineFactory, Ticker.coarse());
+    }
 
+    /**
+     * Creates a map whose keys expire through the engine created by the given factory, reading time from the
+     * given ticker.
+     *
+     * @param expiryEngineFactory the factory of the expiry engine to be used
+     * @param ticker              the source of time for the deadlines
+     */
+    public MapWithTtlV3(ExpiryEngineFactory expiryEngineFactory, Ticker ticker) {
+        this.ticker = ticker;
+        this.expiryEngine = expiryEngineFactory.create(this::onExpired);
+    }
+
+    /**
+     * Returns the number of entries, including the ones whose TTL has elapsed but which have not been removed yet.
+     * The views count only the live entries.
+     *
+     * @return the number of entries in the map
+     */
     @Override
     public int size() {
         return internalMap.size();
@@ -55,28 +180,59 @@ public class MapWithTtlV3<K, V> implements Map<K, V> {
         return internalMap.isEmpty();
     }
 
+    /**
+     * Returns true if the map holds an entry for the key, even one whose TTL has elapsed but which has not been
+     * removed yet.
+     *
+     * @param key the key whose presence is to be tested
+     * @return true if the map holds an entry for the key
+     */
     @Override
     public boolean containsKey(Object key) {
         return internalMap.containsKey(key);
     }
 
+    /**
+     * Returns true if a live mapping has the given value.
+     *
+     * @param value value whose presence in this map is to be tested
+     * @return true if a key whose TTL has not elapsed is mapped to the value
+     */
     @Override
     public boolean containsValue(Object value) {
+        long now = ticker.read();
         return internalMap.values().stream()
-                .anyMatch(mapValue -> mapValue.value == value);
+                .anyMatch(mapValue -> mapValue.isLive(now) && mapValue.value.equals(value));
     }
 
+    /**
+     * Returns the value to which the specified key is mapped, or null if there is no live mapping for the key.
+     * Allocates nothing, whether the key is found, missing or expired; reads of expired keys are counted in
+     * {@link #expiredReads()} instead of being logged.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null
+     */
     @Override
     public V get(Object key) {
-        Value<V> potentialValue = internalMap.get(key);
-        if (potentialValue != null && Instant.now().isAfter(potentialValue.validTill)) {
-            LOGGER.warning(() -> String.format(
-                    "Thread:%s => Key: %s doesn't exist",
-                    Common.getThreadName(),
-                    key));
+        Value<K, V> potentialValue = internalMap.get(key);
+        if (potentialValue == null) {
             return null;
         }
-        return potentialValue == null ? null : potentialValue.value;
+        if (!potentialValue.isLive(ticker.read())) {
+            expiredReads.increment();
+            return null;
+        }
+        return potentialValue.value;
+    }
+
+    /**
+     * Returns the number of reads that found a key whose TTL had elapsed but which had not been removed yet.
+     *
+     * @return the number of reads of expired keys since the map was created
+     */
+    public long expiredReads() {
+        return expiredReads.sum();
     }
 
     /**
@@ -89,18 +245,17 @@ public class MapWithTtlV3<K, V> implements Map<K, V> {
      */
     @Override
     public V put(K key, V value) {
-        Value<V> newValue = new Value<>(
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        Value<K, V> newValue = new Value<>(
+                key,
                 value,
-                executor.schedule(
-                        () -> removeKey(key),
-                        DEFAULT_TTL,
-                        TimeUnit.MILLISECONDS
-                ),
-                Instant.now().plusMillis(DEFAULT_TTL)
+                expiryEngine.schedule(key, DEFAULT_TTL, TimeUnit.MILLISECONDS),
+                ticker.read() + TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL)
         );
-        Value<V> originalValue = internalMap.put(key, newValue);
+        Value<K, V> originalValue = internalMap.put(key, newValue);
         if (originalValue != null) {
-            originalValue.t.cancel(true);
+            originalValue.t.cancel();
             return originalValue.value;
         }
         return null;
@@ -115,113 +270,711 @@ public class MapWithTtlV3<K, V> implements Map<K, V> {
      */
     @Override
     public V remove(Object key) {
-        Value<V> removedValue = internalMap.remove(key);
+        Value<K, V> removedValue = internalMap.remove(key);
         if (removedValue != null) {
-            removedValue.t.cancel(true);
+            removedValue.t.cancel();
             return removedValue.value;
         }
         return null;
     }
 
+    /**
+     * Associates the value with the key unless the key has a live mapping, atomically.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return the live value of the key, or null if there was none and the value has been put
+     */
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        return compute(key, (k, current) -> value, true, false, true);
+    }
+
+    /**
+     * Replaces the value of the key, restarting its TTL, only if it has a live mapping, atomically.
+     *
+     * @param key   the key whose value is to be replaced
+     * @param value the value to be associated with the key
+     * @return the previous live value of the key, or null if there was none and nothing was put
+     */
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        return compute(key, (k, current) -> value, false, true, true);
+    }
+
+    /**
+     * Replaces the value of the key, restarting its TTL, only if it is live and mapped to the given value,
+     * atomically.
+     *
+     * @param key      the key whose value is to be replaced
+     * @param oldValue the value expected to be mapped to the key
+     * @param newValue the value to be associated with the key
+     * @return true if the value was replaced
+     */
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        boolean[] replaced = new boolean[1];
+        internalMap.computeIfPresent(key, (k, current) -> {
+            long now = ticker.read();
+            if (!current.isLive(now) || !oldValue.equals(current.value)) {
+                return current;
+            }
+            current.t.cancel();
+            replaced[0] = true;
+            return newValue(k, newValue, now);
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Removes the mapping of the key only if it is live and mapped to the given value, atomically.
+     *
+     * @param key   the key whose mapping is to be removed
+     * @param value the value expected to be mapped to the key
+     * @return true if the mapping was removed
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (key == null || value == null) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+        internalMap.computeIfPresent(k, (ignored, current) -> {
+            if (!current.isLive(ticker.read()) || !value.equals(current.value)) {
+                return current;
+            }
+            current.t.cancel();
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Returns the live value of the key, computing and putting it if the key has none, atomically. The function
+     * is called at most once, under the lock of the bin of the key, so it must be short and must not change this
+     * map; a null result leaves the key unmapped.
+     *
+     * @param key             the key whose value is to be returned
+     * @param mappingFunction the function computing the value of a missing key
+     * @return the current or computed value, or null if the function returned null
+     */
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        return compute(key, (k, current) -> mappingFunction.apply(k), true, false, false);
+    }
+
+    /**
+     * Computes a new value for the key from its live value, if it has one, atomically as described in
+     * {@link #compute(Object, BiFunction)}.
+     *
+     * @param key               the key whose value is to be computed
+     * @param remappingFunction the function computing the new value from the current one
+     * @return the new value, or null if the key has no live mapping anymore
+     */
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, remappingFunction, false, true, false);
+    }
+
+    /**
+     * Computes a new value for the key from its live value, or null if it has none, and puts it with a fresh TTL,
+     * atomically. A null result removes the mapping. The function is called once, under the lock of the bin of the
+     * key, so it must be short and must not change this map.
+     *
+     * @param key               the key whose value is to be computed
+     * @param remappingFunction the function computing the new value from the current one
+     * @return the new value, or null if the key has no live mapping anymore
+     */
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, remappingFunction, false, false, false);
+    }
+
+    /**
+     * Puts the value if the key has no live mapping, or else replaces its value with the result of the function
+     * applied to it and the given value, atomically as described in {@link #compute(Object, BiFunction)}.
+     *
+     * @param key               the key whose value is to be merged
+     * @param value             the value to be put if the key has no live mapping
+     * @param remappingFunction the function combining the current value and the given one
+     * @return the new value, or null if the function removed the mapping
+     */
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, (k, current) -> current == null ? value : remappingFunction.apply(current, value),
+                false, false, false);
+    }
+
+    /**
+     * Maps the key to the value computed from its live value, or removes the mapping if it is null, under the lock
+     * of the bin of the key. Replaced and removed entries have their expiry cancelled, new ones are scheduled.
+     *
+     * @param ifAbsent       only compute if the key has no live mapping
+     * @param ifPresent      only compute if the key has a live mapping
+     * @param returnPrevious return the previous live value rather than the value of the key afterwards
+     */
+    private V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction, boolean ifAbsent,
+                      boolean ifPresent, boolean returnPrevious) {
+        Objects.requireNonNull(key);
+        Object[] result = new Object[2];
+        internalMap.compute(key, (k, current) -> {
+            long now = ticker.read();
+            V previous = current != null && current.isLive(now) ? current.value : null;
+            result[0] = previous;
+            if ((previous != null && ifAbsent) || (previous == null && ifPresent)) {
+                result[1] = previous;
+                return current;
+            }
+            V value = remappingFunction.apply(k, previous);
+            if (current != null) {
+                current.t.cancel();
+            }
+            result[1] = value;
+            return value == null ? null : newValue(k, value, now);
+        });
+        @SuppressWarnings("unchecked")
+        V value = (V) result[returnPrevious ? 0 : 1];
+        return value;
+    }
+
+    /**
+     * Creates the entry of a value put by a compute method, scheduling its expiry after the fixed TTL.
+     */
+    private Value<K, V> newValue(K key, V value, long now) {
+        return new Value<>(
+                key,
+                value,
+                expiryEngine.schedule(key, DEFAULT_TTL, TimeUnit.MILLISECONDS),
+                now + TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL));
+    }
+
     /**
      * Copies all of the mappings from the specified map to this map.
      * The effect of this call is equivalent to that of calling put(k, v) on this map once for each mapping from key k to value v in the specified map.
+     * The expiry of all the keys is scheduled as one batch.
      *
      * @param m mappings to be stored in this map
      */
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
-        Map<K, Value<V>> updatedMap = m.entrySet()
-                .stream()
-                .collect(
-                        Collectors.toMap(
-                                Entry::getKey,
-                                e -> new Value<>(
-                                        e.getValue(),
-                                        executor.schedule(
-                                                () -> removeKey(e.getKey()),
-                                                DEFAULT_TTL,
-                                                TimeUnit.MILLISECONDS
-                                        ),
-                                        Instant.now().plusMillis(DEFAULT_TTL)
-                                )
-                        )
-                );
-        internalMap.putAll(updatedMap);
-    }
-
-    /**
-     * Removes all of the mappings from this map.
-     * The map will be empty after this call returns.
-     * All threads associated with the keys are also interrupted.
+        List<K> keys = new ArrayList<>(m.size());
+        List<V> values = new ArrayList<>(m.size());
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            keys.add(Objects.requireNonNull(entry.getKey()));
+            values.add(Objects.requireNonNull(entry.getValue()));
+        }
+        ExpiryHandle[] handles = expiryEngine.scheduleAll(keys, DEFAULT_TTL, TimeUnit.MILLISECONDS);
+        long validTill = ticker.read() + TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL);
+        for (int i = 0; i < handles.length; i++) {
+            K key = keys.get(i);
+            Value<K, V> originalValue = internalMap.put(key, new Value<>(key, values.get(i), handles[i], validTill));
+            if (originalValue != null) {
+                originalValue.t.cancel();
+            }
+        }
+    }
+
+    /**
+     * Removes all of the mappings from this map, cancelling their expiry.
+     * Mappings put concurrently may be kept.
      */
     @Override
     public void clear() {
-        List<Future<?>> threadList = new ArrayList<>();
-        internalMap.values().stream()
-                .map(vValue -> vValue.t)
-                .forEach(threadList::add);
-        internalMap.clear();
-        threadList.forEach(o -> o.cancel(true));
+        for (Value<K, V> value : internalMap.values()) {
+            if (replaceIfSame(value, null)) {
+                value.t.cancel();
+            }
+        }
     }
 
+    /**
+     * Performs the given action for each live mapping, skipping the ones whose TTL has elapsed when they are
+     * reached. Like the views, it is weakly consistent.
+     *
+     * @param action the action to be performed for each mapping
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        long now = ticker.read();
+        for (Value<K, V> value : internalMap.values()) {
+            if (value.isLive(now)) {
+                action.accept(value.key, value.value);
+            }
+        }
+    }
+
+    /**
+     * Returns a live, weakly consistent view of the keys of this map, whose iterator and spliterator skip the keys
+     * whose TTL has elapsed when they are reached. Its size counts the live keys, in one pass over the map.
+     * Removing a key through the view or its iterator also cancels its expiry.
+     */
     @Override
     public Set<K> keySet() {
-        return internalMap.entrySet().stream()
-                .filter(vValue -> Instant.now().isBefore(vValue.getValue().validTill))
-                .map(Entry::getKey)
-                .collect(Collectors.toSet());
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return liveCount();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return !iterator().hasNext();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o != null && get(o) != null;
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                return MapWithTtlV3.this.remove(o) != null;
+            }
+
+            @Override
+            public void clear() {
+                MapWithTtlV3.this.clear();
+            }
+
+            @Override
+            public Iterator<K> iterator() {
+                return new LiveIterator<>(Value::getKey);
+            }
+
+            @Override
+            public Spliterator<K> spliterator() {
+                return new LiveSpliterator<>(internalMap.values().spliterator(), Value::getKey,
+                        Spliterator.DISTINCT);
+            }
+        };
     }
 
+    /**
+     * Returns a live view of the values of this map, with the same iteration and size as {@link #keySet()}.
+     */
     @Override
     public Collection<V> values() {
-        return internalMap.values().stream()
-                .filter(vValue -> Instant.now().isBefore(vValue.validTill))
-                .map(Value::value)
-                .collect(Collectors.toList());
+        return new AbstractCollection<>() {
+            @Override
+            public int size() {
+                return liveCount();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return !iterator().hasNext();
+            }
+
+            @Override
+            public void clear() {
+                MapWithTtlV3.this.clear();
+            }
+
+            @Override
+            public Iterator<V> iterator() {
+                return new LiveIterator<>(Value::getValue);
+            }
+
+            @Override
+            public Spliterator<V> spliterator() {
+                return new LiveSpliterator<>(internalMap.values().spliterator(), Value::getValue, 0);
+            }
+        };
     }
 
+    /**
+     * Returns a live view of the entries of this map, with the same iteration and size as {@link #keySet()}.
+     * The entries are the immutable entries of the map itself, so iterating allocates nothing per entry.
+     */
     @Override
     public Set<Entry<K, V>> entrySet() {
-        Map<K, V> transformedMap = internalMap.entrySet()
-                .stream()
-                .filter(vValue -> Instant.now().isBefore(vValue.getValue().validTill))
-                .collect(Collectors.toMap(
-                        Entry::getKey,
-                        e -> e.getValue().value));
-        return transformedMap.entrySet();
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return liveCount();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return !iterator().hasNext();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry<?, ?> entry) || entry.getKey() == null) {
+                    return false;
+                }
+                V value = get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            @Override
+            public void clear() {
+                MapWithTtlV3.this.clear();
+            }
+
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new LiveIterator<>(value -> value);
+            }
+
+            @Override
+            public Spliterator<Entry<K, V>> spliterator() {
+                return new LiveSpliterator<>(internalMap.values().spliterator(), value -> value,
+                        Spliterator.DISTINCT);
+            }
+        };
+    }
+
+    /**
+     * Writes the live entries of this map with their absolute deadlines to the given file, replacing it once the
+     * snapshot is complete. See {@link #snapshot(Path, Serializer, Serializer, boolean)}.
+     *
+     * @param path            the file to write
+     * @param keySerializer   the serializer of the keys
+     * @param valueSerializer the serializer of the values
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    public long snapshot(Path path, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        return snapshot(path, keySerializer, valueSerializer, false);
+    }
+
+    /**
+     * Writes the live entries of this map with their absolute deadlines to the given file, replacing it once the
+     * snapshot is complete. The entries are copied by reference in one weakly consistent pass over the map, then
+     * serialized and written without touching the map, so the map keeps serving reads, writes and expiry
+     * meanwhile; an entry put, removed or expired during the pass may or may not be in the snapshot. Deadlines are
+     * converted from the ticker to the wall clock, so a snapshot can be restored by another process.
+     *
+     * @param path            the file to write
+     * @param keySerializer   the serializer of the keys
+     * @param valueSerializer the serializer of the values
+     * @param compress        whether the blocks of the snapshot are deflated
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    public long snapshot(Path path, Serializer<K> keySerializer, Serializer<V> valueSerializer, boolean compress)
+            throws IOException {
+        Objects.requireNonNull(keySerializer);
+        Objects.requireNonNull(valueSerializer);
+        List<Value<K, V>> live = new ArrayList<>(internalMap.size());
+        long now = ticker.read();
+        for (Value<K, V> value : internalMap.values()) {
+            if (value.isLive(now)) {
+                live.add(value);
+            }
+        }
+        long wallNow = System.currentTimeMillis();
+        return SnapshotFormat.<K, V>write(path, sink -> {
+            for (Value<K, V> value : live) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(value.validTill - now + 999_999);
+                sink.accept(value.key, value.value, wallNow + remainingMillis);
+            }
+        }, keySerializer, valueSerializer, compress);
+    }
+
+    /**
+     * Puts the entries of a snapshot written by {@link #snapshot(Path, Serializer, Serializer, boolean)} into this
+     * map, each expiring at its deadline from the snapshot. Entries whose deadline has passed in the meantime are
+     * skipped, and so are keys this map holds live, whose values are newer than the snapshot, including keys put
+     * while the snapshot is being restored: an entry of the snapshot only takes the place of a missing or expired
+     * one, atomically. The map keeps serving reads and writes meanwhile. The blocks of the snapshot are checked and
+     * decoded in parallel, so the serializers must be thread-safe.
+     *
+     * @param path            the file to read
+     * @param keySerializer   the serializer of the keys
+     * @param valueSerializer the serializer of the values
+     * @return the number of entries put into the map
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public long restore(Path path, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        Objects.requireNonNull(keySerializer);
+        Objects.requireNonNull(valueSerializer);
+        long wallNow = System.currentTimeMillis();
+        long now = ticker.read();
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        long[] run = {Long.MIN_VALUE, 0};
+        SnapshotFormat.read(path, keySerializer, valueSerializer, wallNow, (key, value, deadlineMillis) -> {
+            Value<K, V> current = internalMap.get(key);
+            if (current != null && current.isLive(now)) {
+                return;
+            }
+            if (deadlineMillis != run[0]) {
+                run[1] += restoreRun(keys, values, TimeUnit.MILLISECONDS.toNanos(run[0] - wallNow), now);
+                run[0] = deadlineMillis;
+            }
+            keys.add(key);
+            values.add(value);
+        });
+        return run[1] + restoreRun(keys, values, TimeUnit.MILLISECONDS.toNanos(run[0] - wallNow), now);
     }
 
     /**
-     * A factory method to create a thread that sleeps for the default TTL and then removes the key from the map.
+     * Puts restored entries sharing one deadline, scheduling their expiry as one batch, and clears the lists.
+     * An entry is only put if its key has no live mapping; otherwise its expiry is cancelled.
      *
-     * @param key the key to be removed after the default TTL
-     * @throws InterruptedException if any thread has interrupted the current thread
+     * @return the number of entries put
      */
-    private void ttlLogic(K key) throws InterruptedException {
-        Thread.sleep(DEFAULT_TTL);
-        removeKey(key);
+    private int restoreRun(List<K> keys, List<V> values, long remainingNanos, long now) {
+        int size = keys.size();
+        if (size == 0) {
+            return 0;
+        }
+        ExpiryHandle[] handles = expiryEngine.scheduleAll(keys, remainingNanos, TimeUnit.NANOSECONDS);
+        long validTill = now + remainingNanos;
+        int put = 0;
+        for (int i = 0; i < size; i++) {
+            Value<K, V> restored = new Value<>(keys.get(i), values.get(i), handles[i], validTill);
+            Value<K, V> current;
+            while ((current = internalMap.putIfAbsent(restored.key, restored)) != null) {
+                if (current.isLive(ticker.read())) {
+                    break;
+                }
+                if (replaceIfSame(current, restored)) {
+                    current.t.cancel();
+                    current = null;
+                    break;
+                }
+            }
+            if (current == null) {
+                put++;
+            } else {
+                restored.t.cancel();
+            }
+        }
+        keys.clear();
+        values.clear();
+        return put;
+    }
+
+    /**
+     * Stops the expiry of this map, unregistering it from the shared service or stopping its own engine.
+     * Entries are no longer removed once their TTL has elapsed, although reads keep ignoring them.
+     */
+    @Override
+    public void close() {
+        expiryEngine.close();
     }
 
-    private void removeKey(K key) {
-        Instant start = Instant.now();
-        consumeThread(1000, start);
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    /**
+     * Removes the keys reported by the expiry engine in one pass over the batch. With the
+     * {@link SharedExpiryService} this runs on one of its workers, so removals do not hold up the wheel.
+     * A key put again since its expiry was scheduled is kept. A key reported before the ticker has caught up with
+     * its deadline is scheduled again for the remaining time.
+     *
+     * @param expiredKeys the keys whose TTL has elapsed
+     */
+    private void onExpired(List<K> expiredKeys) {
+        long now = ticker.read();
+        int removed = 0;
+        for (K key : expiredKeys) {
+            Value<K, V> value = internalMap.get(key);
+            if (value == null) {
+                continue;
+            }
+            if (!value.isLive(now)) {
+                if (replaceIfSame(value, null)) {
+                    removed++;
+                }
+            } else if (!value.t.reschedule(value.validTill - now, TimeUnit.NANOSECONDS)) {
+                // The expiry of this very value fired early, the one of a newer value would still be pending
+                Value<K, V> rescheduled = new Value<>(
+                        key,
+                        value.value,
+                        expiryEngine.schedule(key, value.validTill - now, TimeUnit.NANOSECONDS),
+                        value.validTill);
+                if (!replaceIfSame(value, rescheduled)) {
+                    rescheduled.t.cancel();
+                }
+            }
         }
-        internalMap.remove(key); // ~ns
-        LOGGER.info(() -> String.format(
-                "Thread:%s => Key: %s removed due to TTL.",
+        int finalRemoved = removed;
+        LOGGER.fine(() -> String.format(
+                "Thread:%s => %d keys removed due to TTL.",
                 Common.getThreadName(),
-                key
+                finalRemoved
         ));
     }
 
-    private static void consumeThread(long timeInMs, Instant start) {
-        while (start.plusMillis(timeInMs).isAfter(Instant.now())) {
-            // Do Nothing
+    /**
+     * Replaces the mapping of the key of the given entry, or removes it if the replacement is null, only if the key
+     * is still mapped to that very entry. Entries compare as map entries, so the check is done by identity under
+     * the lock of the bin of the key.
+     *
+     * @return true if the mapping was replaced or removed
+     */
+    private boolean replaceIfSame(Value<K, V> expected, Value<K, V> replacement) {
+        boolean[] replaced = new boolean[1];
+        internalMap.computeIfPresent(expected.key, (key, current) -> {
+            if (current != expected) {
+                return current;
+            }
+            replaced[0] = true;
+            return replacement;
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Counts the live entries in one pass over the map, for the sizes of the views.
+     */
+    private int liveCount() {
+        long now = ticker.read();
+        int count = 0;
+        for (Value<K, V> value : internalMap.values()) {
+            if (value.isLive(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Iterates the mappings of the internal map whose TTL has not elapsed when they are reached. Like the
+     * iterators of {@link ConcurrentHashMap} it is weakly consistent: it never throws
+     * {@link ConcurrentModificationException}, and reflects some of the changes made while it runs.
+     *
+     * @param <T> the type of the elements returned
+     */
+    private final class LiveIterator<T> implements Iterator<T> {
+
+        private final Iterator<Value<K, V>> iterator = internalMap.values().iterator();
+
+        private final Function<Value<K, V>, T> extractor;
+
+        private Value<K, V> next;
+
+        private Value<K, V> lastReturned;
+
+        private LiveIterator(Function<Value<K, V>, T> extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            long now = ticker.read();
+            while (iterator.hasNext()) {
+                Value<K, V> value = iterator.next();
+                if (value.isLive(now)) {
+                    next = value;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = next;
+            next = null;
+            return extractor.apply(lastReturned);
+        }
+
+        /**
+         * Removes the mapping last returned, unless its key has been put again since.
+         */
+        @Override
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (replaceIfSame(lastReturned, null)) {
+                lastReturned.t.cancel();
+            }
+            lastReturned = null;
+        }
+    }
+
+    /**
+     * Splits and walks the mappings of the internal map like its own spliterator, skipping the ones whose TTL has
+     * elapsed when they are reached. Receives the entries of the underlying spliterator itself, so that walking
+     * allocates nothing per entry.
+     *
+     * @param <T> the type of the elements returned
+     */
+    private final class LiveSpliterator<T> implements Spliterator<T>, Consumer<Value<K, V>> {
+
+        private final Spliterator<Value<K, V>> source;
+
+        private final Function<Value<K, V>, T> extractor;
+
+        private final int characteristics;
+
+        private Value<K, V> current;
+
+        private LiveSpliterator(Spliterator<Value<K, V>> source, Function<Value<K, V>, T> extractor,
+                                int characteristics) {
+            this.source = source;
+            this.extractor = extractor;
+            this.characteristics = characteristics;
+        }
+
+        @Override
+        public void accept(Value<K, V> value) {
+            current = value;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            long now = ticker.read();
+            while (source.tryAdvance(this)) {
+                Value<K, V> value = current;
+                current = null;
+                if (value.isLive(now)) {
+                    action.accept(extractor.apply(value));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            long now = ticker.read();
+            source.forEachRemaining(value -> {
+                if (value.isLive(now)) {
+                    action.accept(extractor.apply(value));
+                }
+            });
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<Value<K, V>> split = source.trySplit();
+            return split == null ? null : new LiveSpliterator<>(split, extractor, characteristics);
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.NONNULL | characteristics;
         }
     }
 }
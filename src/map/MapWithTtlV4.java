@@ -0,0 +1,2797 @@
+package src.map;
+
+import src.map.expiry.ExpiryEngine;
+import src.map.expiry.ExpiryEngineFactory;
+import src.map.expiry.ExpiryHandle;
+import src.map.expiry.SamplingConfig;
+import src.map.expiry.SamplingStats;
+import src.map.expiry.SamplingSweeper;
+import src.map.expiry.Ticker;
+import src.map.expiry.TimingWheelExpiryEngine;
+import src.utilities.Common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class represents a thread-safe Map with a Time-To-Live (TTL) feature.
+ * Each key-value pair in the map will be automatically removed after a certain period of time.
+ * The default TTL is 15000 milliseconds, and every entry can be given its own TTL through {@link TtlMap}.
+ * <p>
+ * The table is split into segments, each guarded by its own lock. Writers lock only the segment of their key,
+ * readers never lock. Expiry is driven by an {@link ExpiryEngine} and removes an entry only if the key is still
+ * mapped to the exact entry that expired, so a late expiry can never delete a value that was put again since.
+ * Alternatively, with {@link Builder#lazyExpiry(SamplingConfig)}, no deadline is tracked at all: reads drop the
+ * expired entries they come across and a {@link SamplingSweeper} removes the rest by sampling random entries.
+ * <p>
+ * With {@link Builder#expireAfterAccess(long, TimeUnit)} an entry also expires once it has not been read or
+ * written for the given time. A read only stores its timestamp in the entry and offers the entry to a small lossy
+ * buffer of its segment, without allocating or waiting for a lock. The buffer is drained in batches under the
+ * segment lock to keep an access-ordered deque per segment, whose head holds the entries idle the longest.
+ * <p>
+ * With {@link Builder#maximumSize(long)} or {@link Builder#maximumWeight(long)} the map also evicts entries to stay
+ * within a bound, following W-TinyLFU. Each segment gets an equal share of the bound and keeps its entries in three
+ * access-ordered deques: a small LRU window taking 1% of the share, and a main region split into a probation and a
+ * protected deque, an entry read while on probation being promoted. An entry pushed out of the window is only
+ * admitted to the main region if a {@link FrequencySketch} of the recent reads and writes has seen its key more
+ * often than the key it would evict, which keeps one-off keys from flushing popular ones. Eviction comes on top of
+ * expiry: an entry still expires after its TTL whether or not it would be evicted.
+ * <p>
+ * {@link #computeIfAbsent}, {@link #computeIfPresent}, {@link #compute} and {@link #merge} run atomically under the
+ * lock of the segment of the key. An entry they create expires after {@link Builder#ttlOnCreate(long, TimeUnit)};
+ * an entry they update restarts {@link Builder#ttlOnUpdate(long, TimeUnit)}, or keeps its deadline with
+ * {@link Builder#keepExistingTtl()}, so that e.g. a counter merged within a fixed window expires with its window.
+ * <p>
+ * Expired entries are never returned, whether or not they have been removed yet. An {@link ExpiryListener} set
+ * through {@link Builder#expiryListener(ExpiryListener)} is told about the entries removed once their TTL elapsed,
+ * in the batches they were removed in; entries that expire for being idle or that are evicted are not reported.
+ * A {@link RemovalListener} set through {@link Builder#removalListener(RemovalListener)} is told about every
+ * removal along with its {@link RemovalCause}, asynchronously through a bounded queue, so that a slow listener
+ * never holds up reads and writes.
+ * <p>
+ * Neither keys nor values may be null.
+ * {@link #size()} counts entries whose TTL has elapsed but which have not been removed yet.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class MapWithTtlV4<K, V> implements TtlMap<K, V>, AutoCloseable {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(MapWithTtlV4.class);
+    }
+
+    /**
+     * The default TTL in milliseconds.
+     */
+    public static final int DEFAULT_TTL = 15000;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private static final int MAXIMUM_SEGMENT_CAPACITY = 1 << 30;
+
+    private static final VarHandle TABLE = MethodHandles.arrayElementVarHandle(Node[].class);
+
+    private static final VarHandle ACCESS_TIME;
+
+    static {
+        try {
+            ACCESS_TIME = MethodHandles.lookup().findVarHandle(Node.class, "accessTime", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The number of reads each segment can buffer, a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 16;
+
+    /**
+     * The number of buffered reads from which a read tries to drain the buffer.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    /**
+     * The least number of entries, or least total weight, per segment when the map is bounded.
+     */
+    private static final int MINIMUM_SEGMENT_MAXIMUM = 20;
+
+    /**
+     * The deque of its segment a node is linked into, if any.
+     */
+    private static final byte NONE = 0;
+
+    private static final byte WINDOW = 1;
+
+    private static final byte PROBATION = 2;
+
+    private static final byte PROTECTED = 3;
+
+    /**
+     * The segments of the table, indexed by the high bits of the hash.
+     */
+    private final Segment<K, V>[] segments;
+
+    private final int segmentShift;
+
+    /**
+     * The source of the timestamps stored in the entries, which are compared as plain longs.
+     */
+    private final Ticker ticker;
+
+    private final long ttlNanos;
+
+    /**
+     * The TTL of the entries created by putIfAbsent and the compute methods.
+     */
+    private final long createTtlNanos;
+
+    /**
+     * The TTL restarted when the compute methods update an entry, unused if they keep its deadline.
+     */
+    private final long updateTtlNanos;
+
+    /**
+     * Whether the compute methods keep the deadline of the entries they update.
+     */
+    private final boolean keepExistingTtl;
+
+    /**
+     * The idle time after which an entry expires, 0 if entries only expire after their TTL.
+     */
+    private final long accessNanos;
+
+    /**
+     * Computes the weight of the entries, null unless the map is bounded by weight.
+     */
+    private final Weigher<? super K, ? super V> weigher;
+
+    /**
+     * Whether reads and writes are recorded in the deques of the segments, for expiry after access or eviction.
+     */
+    private final boolean recordsAccess;
+
+    /**
+     * Receives the entries removed after their TTL, null if none was set.
+     */
+    private final ExpiryListener<K, V> expiryListener;
+
+    /**
+     * Delivers removal notifications to the removal listener, null if none was set.
+     */
+    private final RemovalNotifier<K, V> removalNotifier;
+
+    /**
+     * Records the statistics of the map, null unless enabled.
+     */
+    private final StatsCounter stats;
+
+    /**
+     * Tracks the deadline of every entry and reports the entries that have expired, null with lazy expiry.
+     */
+    private final ExpiryEngine<Node<K, V>> expiryEngine;
+
+    /**
+     * Removes expired entries by sampling, only used with lazy expiry.
+     */
+    private final SamplingSweeper sweeper;
+
+    /**
+     * Periodically drains the read buffers and removes idle entries, only used with expiry after access.
+     */
+    private final ScheduledExecutorService maintenance;
+
+    /**
+     * The views of the map, created on first use.
+     */
+    private KeySet keySet;
+
+    private Values values;
+
+    private EntrySet entrySet;
+
+    /**
+     * Creates a map with the default TTL whose entries expire through a {@link TimingWheelExpiryEngine}.
+     */
+    public MapWithTtlV4() {
+        this(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a map with the given TTL whose entries expire through a {@link TimingWheelExpiryEngine}.
+     *
+     * @param ttl  the time after which an entry expires
+     * @param unit the unit of the TTL
+     */
+    public MapWithTtlV4(long ttl, TimeUnit unit) {
+        this(ttl, unit, TimingWheelExpiryEngine::new);
+    }
+
+    /**
+     * Creates a map with the given TTL whose entries expire through the engine created by the given factory.
+     *
+     * @param ttl                 the time after which an entry expires
+     * @param unit                the unit of the TTL
+     * @param expiryEngineFactory the factory of the expiry engine to be used
+     */
+    public MapWithTtlV4(long ttl, TimeUnit unit, ExpiryEngineFactory expiryEngineFactory) {
+        this(ttl, unit, expiryEngineFactory, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Creates a map with the given TTL, expiry engine and number of segments.
+     *
+     * @param ttl                 the time after which an entry expires
+     * @param unit                the unit of the TTL
+     * @param expiryEngineFactory the factory of the expiry engine to be used
+     * @param concurrencyLevel    the expected number of concurrently writing threads, rounded up to a power of
+     *                            two to give the number of segments
+     */
+    public MapWithTtlV4(long ttl, TimeUnit unit, ExpiryEngineFactory expiryEngineFactory, int concurrencyLevel) {
+        this(MapWithTtlV4.<K, V>builder()
+                .ttl(ttl, unit)
+                .expiryEngine(expiryEngineFactory)
+                .concurrencyLevel(concurrencyLevel));
+    }
+
+    @SuppressWarnings("unchecked")
+    private MapWithTtlV4(Builder<K, V> builder) {
+        long maximum = builder.maximum;
+        int segmentCount = 1;
+        int segmentBits = 0;
+        while (segmentCount < builder.concurrencyLevel && segmentBits < 16
+                && (maximum < 0 || (segmentCount << 1) * (long) MINIMUM_SEGMENT_MAXIMUM <= maximum)) {
+            segmentCount <<= 1;
+            segmentBits++;
+        }
+        this.accessNanos = builder.accessNanos;
+        this.ticker = builder.ticker;
+        this.weigher = builder.weigher;
+        this.expiryListener = builder.expiryListener;
+        this.stats = builder.statsCounter;
+        this.removalNotifier = builder.removalListener == null ? null
+                : new RemovalNotifier<>(builder.removalListener, builder.removalExecutor, builder.removalQueueCapacity);
+        this.recordsAccess = accessNanos > 0 || maximum >= 0;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long segmentMaximum = maximum < 0 ? -1 : maximum / segmentCount + (i < maximum % segmentCount ? 1 : 0);
+            segments[i] = new Segment<>(recordsAccess, segmentMaximum);
+        }
+        this.segmentShift = 32 - segmentBits;
+        if (builder.ttlNanos > 0) {
+            this.ttlNanos = builder.ttlNanos;
+        } else {
+            this.ttlNanos = accessNanos > 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL);
+        }
+        this.createTtlNanos = builder.createTtlNanos > 0 ? builder.createTtlNanos : ttlNanos;
+        this.updateTtlNanos = builder.updateTtlNanos > 0 ? builder.updateTtlNanos : ttlNanos;
+        this.keepExistingTtl = builder.keepExistingTtl;
+        if (builder.samplingConfig == null) {
+            this.expiryEngine = builder.expiryEngineFactory.create(this::onExpired);
+            this.sweeper = null;
+        } else {
+            this.expiryEngine = null;
+            this.sweeper = new SamplingSweeper(this::sampleAndExpire, builder.samplingConfig, "ttl-sampling-sweeper");
+        }
+        if (accessNanos > 0) {
+            long period = Math.clamp(accessNanos / 4, TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(1));
+            this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ttl-access-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            maintenance.scheduleAtFixedRate(this::runMaintenance, period, period, TimeUnit.NANOSECONDS);
+        } else {
+            this.maintenance = null;
+        }
+    }
+
+    /**
+     * Returns a builder to configure a map.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     * @return a new builder with the default settings
+     */
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Returns the number of entries, without locking, including the expired entries not removed yet. The views
+     * count the live entries only.
+     *
+     * @return the number of entries in this map
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment<K, V> segment : segments) {
+            if (segment.count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        Objects.requireNonNull(value);
+        Traverser traverser = new Traverser();
+        for (Node<K, V> e; (e = traverser.advance()) != null; ) {
+            if (value.equals(e.value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the live entries, for the views, whose size must agree with what their iterators return; the size of
+     * the map also counts the expired entries not removed yet.
+     */
+    private int liveCount() {
+        int count = 0;
+        Traverser traverser = new Traverser();
+        while (traverser.advance() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or null if there is no live mapping for the key.
+     * An expired entry found on the way is removed, unless its segment is busy.
+     * With expiry after access, the read is recorded, which extends the lifetime of the entry.
+     * In a bounded map, the read also counts towards keeping the entry when the map is full.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null
+     */
+    @Override
+    public V get(Object key) {
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        Node<K, V> node = segment.find(key, hash);
+        if (node == null) {
+            if (stats != null) {
+                stats.recordMiss();
+            }
+            return null;
+        }
+        long now = now();
+        if (isExpired(node, now)) {
+            if (stats != null) {
+                stats.recordMiss();
+            }
+            expireInline(segment, node);
+            return null;
+        }
+        if (stats != null) {
+            stats.recordHit();
+        }
+        if (accessNanos > 0) {
+            node.setAccessTime(now);
+        }
+        if (recordsAccess) {
+            segment.recordRead(node);
+        }
+        return node.value;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for the key, the old value is replaced and its expiry is cancelled.
+     *
+     * @param key   the key with which the specified value is to be associated
+     * @param value the value to be associated with the specified key
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, ttlNanos, false);
+    }
+
+    @Override
+    public V put(K key, V value, Duration ttl) {
+        return put(key, value, ttlNanos(ttl), false);
+    }
+
+    /**
+     * Associates the value with the key, expiring after the TTL on create, unless the key already has a live
+     * mapping. The check and the put happen atomically.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return the current value associated with key, or null if there was none and the value has been put
+     */
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return put(key, value, createTtlNanos, true);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value, Duration ttl) {
+        return put(key, value, ttlNanos(ttl), true);
+    }
+
+    @Override
+    public boolean expireAt(K key, Instant deadline) {
+        long delay = nanosUntil(deadline);
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        long now = now();
+        Node<K, V> expired = null;
+        segment.lock();
+        try {
+            Node<K, V> node = segment.findLocked(key, hash);
+            if (node == null || isExpired(node, now)) {
+                return false;
+            }
+            if (delay <= 0) {
+                // Expires now, notified like any other expiry
+                segment.unlink(key, hash, node);
+                cancelExpiry(node);
+                node.validTill = now;
+                recordRemoval(node, RemovalCause.EXPIRED);
+                expired = node;
+            } else {
+                node.validTill = deadline(now, delay);
+                rescheduleExpiry(node, now);
+            }
+        } finally {
+            segment.unlock();
+        }
+        if (expired != null && expiryListener != null) {
+            notifyExpired(List.of(new AbstractMap.SimpleImmutableEntry<>(expired.key, expired.value)));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the instant at which the mapping for the key expires, which with expiry after access is the earlier
+     * of its TTL and the end of its idle time if it is not read again.
+     *
+     * @param key the key whose expiry is to be returned
+     * @return the expiry of the mapping, {@link Instant#MAX} if it never expires,
+     * or empty if the key has no live mapping
+     */
+    @Override
+    public Optional<Instant> getExpiration(K key) {
+        int hash = hash(key);
+        Node<K, V> node = segmentFor(hash).find(key, hash);
+        if (node == null) {
+            return Optional.empty();
+        }
+        long now = now();
+        if (isExpired(node, now)) {
+            return Optional.empty();
+        }
+        return Optional.of(expiration(node, now));
+    }
+
+    /**
+     * Passes every live entry and the instant it expires at, as {@link #getExpiration} returns it, to the action.
+     * The nodes of each segment are copied under its lock, so that no entry present when the walk starts is missed
+     * whatever writers do meanwhile, and passed to the action once the lock is released. Meant for the snapshots of
+     * {@link DurableTtlMap}, which replace the records of every entry they do not hold.
+     *
+     * @param action the action to be performed for each live entry
+     */
+    void forEachExpiration(BiConsumer<? super Entry<K, V>, Instant> action) {
+        Objects.requireNonNull(action);
+        List<Node<K, V>> nodes = new ArrayList<>();
+        for (Segment<K, V> segment : segments) {
+            nodes.clear();
+            segment.lock();
+            try {
+                Node<K, V>[] tab = segment.table;
+                for (int i = 0; i < tab.length; i++) {
+                    for (Node<K, V> e = tab[i]; e != null; e = e.next) {
+                        nodes.add(e);
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+            long now = now();
+            for (Node<K, V> node : nodes) {
+                if (!isExpired(node, now)) {
+                    action.accept(node, expiration(node, now));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the instant at which a live node expires, {@link Instant#MAX} if it never does.
+     */
+    private Instant expiration(Node<K, V> node, long now) {
+        long validTill = node.validTill;
+        if (accessNanos > 0) {
+            validTill = Math.min(validTill, deadline(node.getAccessTime(), accessNanos));
+        }
+        return validTill == Long.MAX_VALUE ? Instant.MAX : Instant.now().plusNanos(validTill - now);
+    }
+
+    /**
+     * Removes the TTL of the mapping for the key, so that it stays until removed or replaced.
+     * With expiry after access, the mapping still expires once it has been idle for too long.
+     *
+     * @param key the key whose mapping is to be kept
+     * @return true if the key had a live mapping, false otherwise
+     */
+    @Override
+    public boolean persist(K key) {
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        segment.lock();
+        try {
+            Node<K, V> node = segment.findLocked(key, hash);
+            if (node == null || isExpired(node, now())) {
+                return false;
+            }
+            node.validTill = Long.MAX_VALUE;
+            rescheduleExpiry(node, now());
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Links in a node for the key, replacing the current one unless it is live and onlyIfAbsent is set.
+     *
+     * @return the value of the live mapping found, or null if there was none
+     */
+    private V put(K key, V value, long ttlNanos, boolean onlyIfAbsent) {
+        Objects.requireNonNull(value);
+        int hash = hash(key);
+        int weight = weigh(key, value);
+        Segment<K, V> segment = segmentFor(hash);
+        long now = now();
+        segment.lock();
+        try {
+            Node<K, V>[] tab = segment.table;
+            int index = hash & (tab.length - 1);
+            Node<K, V> first = tabAt(tab, index);
+            Node<K, V> pred = null;
+            for (Node<K, V> e = first; e != null; pred = e, e = e.next) {
+                if (e.hash == hash && key.equals(e.key)) {
+                    boolean live = !isExpired(e, now);
+                    if (live && onlyIfAbsent) {
+                        return e.value;
+                    }
+                    afterLink(segment, relink(segment, tab, index, pred, e, value, ttlNanos, weight, now),
+                            ttlNanos, now);
+                    return live ? e.value : null;
+                }
+            }
+            afterLink(segment, insert(segment, tab, index, key, hash, value, ttlNanos, weight, now), ttlNanos, now);
+            return null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Replaces the value of the key, and restarts its default TTL, only if it is live and mapped to the given value.
+     * The check and the replacement happen atomically.
+     *
+     * @param key      the key whose value is to be replaced
+     * @param oldValue the value expected to be mapped to the key
+     * @param newValue the value to be associated with the key
+     * @return true if the value was replaced
+     */
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return replace(key, oldValue, newValue, ttlNanos);
+    }
+
+    /**
+     * Replaces the value of the key, expiring after the given TTL, only if it is live and mapped to the given value.
+     * The check and the replacement happen atomically.
+     *
+     * @param key      the key whose value is to be replaced
+     * @param oldValue the value expected to be mapped to the key
+     * @param newValue the value to be associated with the key
+     * @param ttl      the time after which the new mapping expires
+     * @return true if the value was replaced
+     */
+    public boolean replace(K key, V oldValue, V newValue, Duration ttl) {
+        return replace(key, oldValue, newValue, ttlNanos(ttl));
+    }
+
+    private boolean replace(K key, V oldValue, V newValue, long ttlNanos) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        int hash = hash(key);
+        int weight = weigh(key, newValue);
+        Segment<K, V> segment = segmentFor(hash);
+        long now = now();
+        segment.lock();
+        try {
+            Node<K, V>[] tab = segment.table;
+            int index = hash & (tab.length - 1);
+            Node<K, V> pred = null;
+            for (Node<K, V> e = tabAt(tab, index); e != null; pred = e, e = e.next) {
+                if (e.hash == hash && key.equals(e.key)) {
+                    if (isExpired(e, now) || !oldValue.equals(e.value)) {
+                        return false;
+                    }
+                    afterLink(segment, relink(segment, tab, index, pred, e, newValue, ttlNanos, weight, now),
+                            ttlNanos, now);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Returns the value of the key, computing and putting it with the TTL on create if the key has no live
+     * mapping. The function is called at most once, under the lock of the segment of the key, so it must be short
+     * and must not change this map; a null result leaves the key unmapped.
+     *
+     * @param key             the key whose value is to be returned
+     * @param mappingFunction the function computing the value of a missing key
+     * @return the current or computed value, or null if the function returned null
+     */
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        return compute(key, (k, v) -> mappingFunction.apply(k), true, false);
+    }
+
+    /**
+     * Computes a new value for the key from its live value, if it has one, atomically as described in
+     * {@link #compute(Object, BiFunction)}.
+     *
+     * @param key               the key whose value is to be computed
+     * @param remappingFunction the function computing the new value from the current one
+     * @return the new value, or null if the key has no live mapping anymore
+     */
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, remappingFunction, false, true);
+    }
+
+    /**
+     * Computes a new value for the key from its live value, or null if it has none. A null result removes the
+     * mapping. A new mapping expires after the TTL on create; an updated one restarts the TTL on update, or keeps
+     * its deadline if the map keeps existing TTLs. The function is called once, under the lock of the segment of
+     * the key, so it must be short and must not change this map.
+     *
+     * @param key               the key whose value is to be computed
+     * @param remappingFunction the function computing the new value from the current one
+     * @return the new value, or null if the key has no live mapping anymore
+     */
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, remappingFunction, false, false);
+    }
+
+    /**
+     * Puts the value if the key has no live mapping, or else replaces its value with the result of the function
+     * applied to it and the given value, atomically as described in {@link #compute(Object, BiFunction)}.
+     *
+     * @param key               the key whose value is to be merged
+     * @param value             the value to be put if the key has no live mapping
+     * @param remappingFunction the function combining the current value and the given one
+     * @return the new value, or null if the function removed the mapping
+     */
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return compute(key, (k, current) -> current == null ? value : remappingFunction.apply(current, value),
+                false, false);
+    }
+
+    /**
+     * Links in the value computed from the live value of the key, or removes the mapping if it is null.
+     *
+     * @param ifAbsent  only compute if the key has no live mapping, returning its value otherwise
+     * @param ifPresent only compute if the key has a live mapping
+     * @return the value of the key afterwards
+     */
+    private V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction, boolean ifAbsent,
+                      boolean ifPresent) {
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        long now = now();
+        segment.lock();
+        try {
+            Node<K, V>[] tab = segment.table;
+            int index = hash & (tab.length - 1);
+            Node<K, V> pred = null;
+            Node<K, V> e = tabAt(tab, index);
+            for (; e != null; pred = e, e = e.next) {
+                if (e.hash == hash && key.equals(e.key)) {
+                    break;
+                }
+            }
+            boolean live = e != null && !isExpired(e, now);
+            if (live && ifAbsent) {
+                if (accessNanos > 0) {
+                    e.setAccessTime(now);
+                }
+                if (recordsAccess) {
+                    segment.recordRead(e);
+                }
+                return e.value;
+            }
+            if (!live && ifPresent) {
+                return null;
+            }
+            V value = remappingFunction.apply(key, live ? e.value : null);
+            if (value == null) {
+                if (live) {
+                    segment.unlink(key, hash, e);
+                    cancelExpiry(e);
+                    recordRemoval(e, RemovalCause.EXPLICIT);
+                }
+                return null;
+            }
+            int weight = weigh(key, value);
+            if (e == null) {
+                afterLink(segment, insert(segment, tab, index, key, hash, value, createTtlNanos, weight, now),
+                        createTtlNanos, now);
+            } else {
+                long ttl;
+                if (!live) {
+                    ttl = createTtlNanos;
+                } else if (keepExistingTtl) {
+                    ttl = e.validTill == Long.MAX_VALUE ? Long.MAX_VALUE : e.validTill - now;
+                } else {
+                    ttl = updateTtlNanos;
+                }
+                afterLink(segment, relink(segment, tab, index, pred, e, value, ttl, weight, now), ttl, now);
+            }
+            return value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Links in a new node for the key of the given one, in its place in the chain and in the deques.
+     * Must be called with the segment lock held, and followed by {@link #afterLink}.
+     */
+    private Node<K, V> relink(Segment<K, V> segment, Node<K, V>[] tab, int index, Node<K, V> pred, Node<K, V> e,
+                              V value, long ttlNanos, int weight, long now) {
+        Node<K, V> node = new Node<>(e.key, e.hash, value, deadline(now, ttlNanos), e.next);
+        if (pred == null) {
+            setTabAt(tab, index, node);
+        } else {
+            pred.next = node;
+        }
+        cancelExpiry(e);
+        recordRemoval(e, isExpired(e, now) ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+        if (stats != null) {
+            stats.recordPut();
+        }
+        if (recordsAccess) {
+            node.setAccessTime(now);
+            node.weight = weight;
+            segment.replaceInOrder(e, node);
+        }
+        return node;
+    }
+
+    /**
+     * Links in a node for a key missing from the segment, at the head of its chain.
+     * Must be called with the segment lock held, and followed by {@link #afterLink}.
+     */
+    private Node<K, V> insert(Segment<K, V> segment, Node<K, V>[] tab, int index, K key, int hash, V value,
+                              long ttlNanos, int weight, long now) {
+        Node<K, V> node = new Node<>(key, hash, value, deadline(now, ttlNanos), tabAt(tab, index));
+        setTabAt(tab, index, node);
+        if (++segment.count > segment.threshold) {
+            segment.rehash();
+        }
+        if (stats != null) {
+            stats.recordPut();
+        }
+        if (recordsAccess) {
+            node.setAccessTime(now);
+            node.weight = weight;
+            segment.linkNew(node);
+        }
+        return node;
+    }
+
+    /**
+     * Schedules the expiry of a node just linked in and brings its segment back within its bounds.
+     * Must be called with the segment lock held.
+     */
+    private void afterLink(Segment<K, V> segment, Node<K, V> node, long ttlNanos, long now) {
+        scheduleExpiry(node, ttlNanos);
+        if (recordsAccess) {
+            afterWrite(segment, now);
+        }
+    }
+
+    /**
+     * Removes the mapping for a key from this map if it is present.
+     * The expiry of the entry is also cancelled.
+     *
+     * @param key the key whose mapping is to be removed from the map
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    @Override
+    public V remove(Object key) {
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        segment.lock();
+        try {
+            Node<K, V> removed = segment.unlink(key, hash, null);
+            if (removed == null) {
+                return null;
+            }
+            cancelExpiry(removed);
+            if (isExpired(removed, now())) {
+                recordRemoval(removed, RemovalCause.EXPIRED);
+                return null;
+            }
+            recordRemoval(removed, RemovalCause.EXPLICIT);
+            return removed.value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping for the key only if it is live and mapped to the given value.
+     * The check and the removal happen atomically.
+     *
+     * @param key   the key whose mapping is to be removed
+     * @param value the value expected to be mapped to the key
+     * @return true if the mapping was removed
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        Objects.requireNonNull(value);
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        segment.lock();
+        try {
+            Node<K, V> node = segment.findLocked(key, hash);
+            if (node == null || isExpired(node, now()) || !value.equals(node.value)) {
+                return false;
+            }
+            segment.unlink(key, hash, node);
+            cancelExpiry(node);
+            recordRemoval(node, RemovalCause.EXPLICIT);
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map.
+     * The effect of this call is equivalent to that of calling put(k, v) on this map once for each mapping from key k to value v in the specified map.
+     * The mappings are grouped by segment, so that each segment is locked once, and the expiry of the mappings of
+     * a segment is scheduled as one batch.
+     *
+     * @param m mappings to be stored in this map
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        putAll(m, ttlNanos);
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map, expiring after the given TTL.
+     * The mappings are grouped by segment, so that each segment is locked once, and the expiry of the mappings of
+     * a segment is scheduled as one batch.
+     *
+     * @param m   mappings to be stored in this map
+     * @param ttl the time after which the mappings expire
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m, Duration ttl) {
+        putAll(m, ttlNanos(ttl));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putAll(Map<? extends K, ? extends V> m, long ttlNanos) {
+        Object[] entries = m.entrySet().toArray();
+        int[] hashes = new int[entries.length];
+        int[] weights = weigher == null ? null : new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            Entry<K, V> e = (Entry<K, V>) entries[i];
+            Objects.requireNonNull(e.getValue());
+            hashes[i] = hash(e.getKey());
+            if (weights != null) {
+                weights[i] = weigh(e.getKey(), e.getValue());
+            }
+        }
+        int[] order = orderBySegment(hashes);
+        List<Node<K, V>> linked = new ArrayList<>();
+        int start = 0;
+        while (start < order.length) {
+            int index = segmentIndex(hashes[order[start]]);
+            Segment<K, V> segment = segments[index];
+            int end = start;
+            segment.lock();
+            try {
+                long now = now();
+                for (; end < order.length && segmentIndex(hashes[order[end]]) == index; end++) {
+                    int i = order[end];
+                    Entry<K, V> e = (Entry<K, V>) entries[i];
+                    linked.add(link(segment, e.getKey(), hashes[i], e.getValue(), ttlNanos,
+                            weights == null ? 1 : weights[i], now));
+                }
+                scheduleExpiry(linked, ttlNanos);
+                if (recordsAccess) {
+                    afterWrite(segment, now);
+                }
+            } finally {
+                segment.unlock();
+            }
+            linked.clear();
+            start = end;
+        }
+    }
+
+    /**
+     * Maps the key to the value, replacing the current node of the key if there is one.
+     * Must be called with the segment lock held; the caller schedules the expiry of the new node.
+     */
+    private Node<K, V> link(Segment<K, V> segment, K key, int hash, V value, long ttlNanos, int weight, long now) {
+        Node<K, V>[] tab = segment.table;
+        int index = hash & (tab.length - 1);
+        Node<K, V> pred = null;
+        for (Node<K, V> e = tabAt(tab, index); e != null; pred = e, e = e.next) {
+            if (e.hash == hash && key.equals(e.key)) {
+                return relink(segment, tab, index, pred, e, value, ttlNanos, weight, now);
+            }
+        }
+        return insert(segment, tab, index, key, hash, value, ttlNanos, weight, now);
+    }
+
+    /**
+     * Removes the mappings of all the given keys. The keys are grouped by segment, so that each segment is locked
+     * once.
+     *
+     * @param keys the keys whose mappings are to be removed
+     * @return the number of live mappings removed
+     */
+    @Override
+    public int removeAll(Iterable<? extends K> keys) {
+        Object[] array;
+        if (keys instanceof Collection<? extends K> collection) {
+            array = collection.toArray();
+        } else {
+            List<K> list = new ArrayList<>();
+            keys.forEach(list::add);
+            array = list.toArray();
+        }
+        int[] hashes = new int[array.length];
+        for (int i = 0; i < array.length; i++) {
+            hashes[i] = hash(array[i]);
+        }
+        int[] order = orderBySegment(hashes);
+        int removed = 0;
+        int start = 0;
+        while (start < order.length) {
+            int index = segmentIndex(hashes[order[start]]);
+            Segment<K, V> segment = segments[index];
+            int end = start;
+            segment.lock();
+            try {
+                long now = now();
+                for (; end < order.length && segmentIndex(hashes[order[end]]) == index; end++) {
+                    int i = order[end];
+                    Node<K, V> node = segment.unlink(array[i], hashes[i], null);
+                    if (node != null) {
+                        cancelExpiry(node);
+                        if (isExpired(node, now)) {
+                            recordRemoval(node, RemovalCause.EXPIRED);
+                        } else {
+                            recordRemoval(node, RemovalCause.EXPLICIT);
+                            removed++;
+                        }
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+            start = end;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all of the mappings from this map.
+     * The expiry of every entry is also cancelled.
+     */
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.lock();
+            try {
+                Node<K, V>[] tab = segment.table;
+                long now = now();
+                for (int i = 0; i < tab.length; i++) {
+                    for (Node<K, V> e = tabAt(tab, i); e != null; e = e.next) {
+                        cancelExpiry(e);
+                        recordRemoval(e, isExpired(e, now) ? RemovalCause.EXPIRED : RemovalCause.CLEARED);
+                    }
+                }
+                segment.table = newTable(tab.length);
+                segment.count = 0;
+                segment.clearOrder();
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Performs the action for every entry whose TTL has not elapsed, without locking and without copying the
+     * table. Concurrent updates may or may not be seen.
+     */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        Traverser traverser = new Traverser();
+        for (Node<K, V> e; (e = traverser.advance()) != null; ) {
+            action.accept(e.key, e.value);
+        }
+    }
+
+    /**
+     * Returns a live view of the keys of this map. Its iterators and spliterators are weakly consistent: they
+     * skip the entries whose TTL has elapsed when they are reached, never throw
+     * {@link ConcurrentModificationException}, return every entry present for the whole walk exactly once, even
+     * across resizes, and may or may not reflect updates made after they were created. The size of the view counts
+     * the live entries, walking the map. Removing a key through the view or its iterator removes the entry from
+     * the map.
+     */
+    @Override
+    public Set<K> keySet() {
+        KeySet keySet = this.keySet;
+        return keySet != null ? keySet : (this.keySet = new KeySet());
+    }
+
+    /**
+     * Returns a live view of the values of this map, with the same consistency as {@link #keySet()}.
+     */
+    @Override
+    public Collection<V> values() {
+        Values values = this.values;
+        return values != null ? values : (this.values = new Values());
+    }
+
+    /**
+     * Returns a live view of the entries of this map, with the same consistency as {@link #keySet()}.
+     * The entries are immutable snapshots of the mappings and do not support {@link Entry#setValue}.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        EntrySet entrySet = this.entrySet;
+        return entrySet != null ? entrySet : (this.entrySet = new EntrySet());
+    }
+
+    /**
+     * Returns the work done by the sampling sweeper, if this map expires entries lazily.
+     *
+     * @return the statistics of the sweeper, or empty if this map uses an expiry engine
+     */
+    public Optional<SamplingStats> samplingStats() {
+        return sweeper == null ? Optional.empty() : Optional.of(sweeper.stats());
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this map, if it records them.
+     * {@link TtlMapStats#registerMBean(String, java.util.function.Supplier)} exposes them over JMX.
+     *
+     * @return the statistics of the map, or empty unless enabled with {@link Builder#recordStats()}
+     */
+    public Optional<TtlMapStats> stats() {
+        return stats == null ? Optional.empty() : Optional.of(stats.snapshot());
+    }
+
+    /**
+     * Returns the notifications sent to the removal listener, if this map has one.
+     *
+     * @return the statistics of the removal notifications, or empty if no removal listener was set
+     */
+    public Optional<RemovalStats> removalStats() {
+        return removalNotifier == null ? Optional.empty() : Optional.of(removalNotifier.stats());
+    }
+
+    /**
+     * Stops the background expiry of this map. Entries are no longer removed once their TTL has elapsed,
+     * although reads keep ignoring them.
+     */
+    @Override
+    public void close() {
+        if (expiryEngine != null) {
+            expiryEngine.close();
+        } else {
+            sweeper.close();
+        }
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return node.validTill <= now || (accessNanos > 0 && node.getAccessTime() <= now - accessNanos);
+    }
+
+    /**
+     * Drains the read buffers and removes the idle entries of every segment.
+     */
+    private void runMaintenance() {
+        long now = now();
+        for (Segment<K, V> segment : segments) {
+            segment.lock();
+            try {
+                segment.drainReadBuffer();
+                expireIdle(segment, now);
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Brings a segment back within its bounds after a write. Must be called with the segment lock held.
+     */
+    private void afterWrite(Segment<K, V> segment, long now) {
+        segment.drainReadBuffer();
+        if (accessNanos > 0) {
+            expireIdle(segment, now);
+        }
+        evict(segment);
+    }
+
+    /**
+     * Removes the entries idle for too long from the heads of the deques of a segment. Each deque is in access
+     * order, so its idle entries are at its head.
+     * Stops at the first entry read recently enough, even if reads of entries behind it were dropped by the read
+     * buffer; those entries are removed once they reach the head. Must be called with the segment lock held.
+     */
+    private void expireIdle(Segment<K, V> segment, long now) {
+        expireIdle(segment, segment.window, now);
+        expireIdle(segment, segment.probation, now);
+        expireIdle(segment, segment.protectedOrder, now);
+    }
+
+    private void expireIdle(Segment<K, V> segment, AccessOrder<K, V> order, long now) {
+        Node<K, V> node;
+        while ((node = order.head) != null && node.getAccessTime() <= now - accessNanos) {
+            removeOrdered(segment, node, RemovalCause.EXPIRED);
+        }
+    }
+
+    /**
+     * Evicts entries until a bounded segment is within its maximum. The entries pushed out of the window are
+     * candidates for the probation deque: while the segment is too big, the first candidate is compared with the
+     * head of the probation deque and the one whose key the sketch has seen less often is evicted.
+     * Must be called with the segment lock held.
+     */
+    private void evict(Segment<K, V> segment) {
+        if (segment.maximum < 0) {
+            return;
+        }
+        Node<K, V> candidate = segment.evictFromWindow();
+        while (segment.weightedSize > segment.maximum) {
+            Node<K, V> victim = segment.probation.head;
+            if (victim == null) {
+                victim = segment.protectedOrder.head != null ? segment.protectedOrder.head : segment.window.head;
+            }
+            Node<K, V> evicted;
+            if (candidate == null || candidate == victim) {
+                evicted = victim;
+            } else if (candidate.weight > segment.maximum) {
+                evicted = candidate;
+            } else {
+                evicted = segment.admit(candidate, victim) ? victim : candidate;
+            }
+            if (evicted == candidate) {
+                // The candidates are the tail of the probation deque
+                candidate = candidate.accessNext;
+            }
+            removeOrdered(segment, evicted, RemovalCause.SIZE);
+        }
+    }
+
+    /**
+     * Removes a node taken from the deques of a segment. Must be called with the segment lock held.
+     */
+    private void removeOrdered(Segment<K, V> segment, Node<K, V> node, RemovalCause cause) {
+        if (segment.unlink(node.key, node.hash, node) == null) {
+            // Not in the table anymore, only drop it from the deques
+            segment.unlinkOrder(node);
+        } else {
+            recordRemoval(node, cause);
+        }
+        cancelExpiry(node);
+    }
+
+    private int weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
+        }
+        int weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight must not be negative: " + weight);
+        }
+        return weight;
+    }
+
+    /**
+     * Schedules the expiry of a node being linked in. Must be called with the segment lock held.
+     */
+    private void scheduleExpiry(Node<K, V> node, long delayNanos) {
+        if (expiryEngine != null && node.validTill != Long.MAX_VALUE) {
+            node.timer = expiryEngine.schedule(node, delayNanos, TimeUnit.NANOSECONDS);
+            if (stats != null) {
+                stats.recordScheduled(1);
+            }
+        }
+    }
+
+    /**
+     * Schedules the expiry of nodes linked in together with the same TTL as one batch.
+     * Must be called with the segment lock held.
+     */
+    private void scheduleExpiry(List<Node<K, V>> nodes, long ttlNanos) {
+        if (expiryEngine == null || nodes.isEmpty() || nodes.get(0).validTill == Long.MAX_VALUE) {
+            return;
+        }
+        ExpiryHandle[] handles = expiryEngine.scheduleAll(nodes, ttlNanos, TimeUnit.NANOSECONDS);
+        for (int i = 0; i < handles.length; i++) {
+            nodes.get(i).timer = handles[i];
+        }
+        if (stats != null) {
+            stats.recordScheduled(handles.length);
+        }
+    }
+
+    /**
+     * Moves the scheduled expiry of a node to its current deadline, which costs O(1) with the timing wheel.
+     * Schedules it again if the previous expiry has already fired. Must be called with the segment lock held.
+     */
+    private void rescheduleExpiry(Node<K, V> node, long now) {
+        if (expiryEngine == null) {
+            return;
+        }
+        if (node.validTill == Long.MAX_VALUE) {
+            cancelExpiry(node);
+            node.timer = null;
+            return;
+        }
+        long delay = node.validTill - now;
+        if (node.timer == null || !node.timer.reschedule(delay, TimeUnit.NANOSECONDS)) {
+            node.timer = expiryEngine.schedule(node, delay, TimeUnit.NANOSECONDS);
+            if (stats != null) {
+                stats.recordScheduled(1);
+            }
+        }
+    }
+
+    /**
+     * Cancels the expiry of a node being unlinked. Must be called with the segment lock held.
+     */
+    private void cancelExpiry(Node<K, V> node) {
+        if (node.timer != null && node.timer.cancel() && stats != null) {
+            stats.recordScheduled(-1);
+        }
+    }
+
+    /**
+     * Removes an expired node found by a read, if its segment can be locked without waiting.
+     */
+    private void expireInline(Segment<K, V> segment, Node<K, V> node) {
+        if (segment.tryLock()) {
+            boolean removed;
+            try {
+                removed = segment.unlink(node.key, node.hash, node) != null;
+                if (removed) {
+                    cancelExpiry(node);
+                    recordRemoval(node, RemovalCause.EXPIRED);
+                }
+            } finally {
+                segment.unlock();
+            }
+            if (removed && expiryListener != null && node.validTill <= now()) {
+                notifyExpired(List.of(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value)));
+            }
+        }
+    }
+
+    /**
+     * Checks random entries and removes the expired ones, for the sampling sweeper.
+     * Picks a random bucket of a random segment and checks its whole chain, until enough entries have been seen.
+     * Gives up after a bounded number of empty buckets, so that a sparse table does not keep it spinning.
+     */
+    private SamplingSweeper.Sample sampleAndExpire(int count, SplittableRandom random) {
+        if (isEmpty()) {
+            return new SamplingSweeper.Sample(0, 0);
+        }
+        long now = now();
+        int sampled = 0;
+        int expired = 0;
+        int emptyProbes = 0;
+        List<Node<K, V>> found = new ArrayList<>();
+        List<Entry<K, V>> removed = expiryListener == null ? null : new ArrayList<>();
+        while (sampled < count && emptyProbes < count * 8) {
+            Segment<K, V> segment = segments[random.nextInt(segments.length)];
+            Node<K, V>[] tab = segment.table;
+            Node<K, V> e = tabAt(tab, random.nextInt(tab.length));
+            if (e == null) {
+                emptyProbes++;
+                continue;
+            }
+            for (; e != null && sampled < count; e = e.next) {
+                sampled++;
+                if (isExpired(e, now)) {
+                    found.add(e);
+                }
+            }
+            if (!found.isEmpty()) {
+                segment.lock();
+                try {
+                    for (Node<K, V> node : found) {
+                        if (segment.unlink(node.key, node.hash, node) != null) {
+                            recordRemoval(node, RemovalCause.EXPIRED);
+                            expired++;
+                            if (removed != null && node.validTill <= now) {
+                                removed.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value));
+                            }
+                        }
+                    }
+                } finally {
+                    segment.unlock();
+                }
+                found.clear();
+            }
+        }
+        if (removed != null && !removed.isEmpty()) {
+            notifyExpired(removed);
+        }
+        return new SamplingSweeper.Sample(sampled, expired);
+    }
+
+    /**
+     * Removes the expired entries reported by the expiry engine, unless their key has been mapped again since.
+     * The entries are grouped by segment first, so that each segment is locked once per batch, and the listener
+     * is told about all of them at once.
+     *
+     * @param expired the entries whose TTL has elapsed
+     */
+    private void onExpired(List<Node<K, V>> expired) {
+        if (stats != null) {
+            stats.recordScheduled(-expired.size());
+        }
+        Node<K, V>[] bySegment = groupBySegment(expired);
+        List<Entry<K, V>> notified = expiryListener == null ? null : new ArrayList<>();
+        int removed = 0;
+        int start = 0;
+        while (start < bySegment.length) {
+            int index = segmentIndex(bySegment[start].hash);
+            Segment<K, V> segment = segments[index];
+            int end = start;
+            segment.lock();
+            try {
+                long now = now();
+                for (; end < bySegment.length && segmentIndex(bySegment[end].hash) == index; end++) {
+                    Node<K, V> node = bySegment[end];
+                    if (node.validTill > now && !isExpired(node, now)) {
+                        // The deadline was moved after this expiry had fired
+                        if (segment.findLocked(node.key, node.hash) == node) {
+                            rescheduleExpiry(node, now);
+                        }
+                    } else if (segment.unlink(node.key, node.hash, node) != null) {
+                        recordRemoval(node, RemovalCause.EXPIRED);
+                        removed++;
+                        if (notified != null && node.validTill <= now) {
+                            notified.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value));
+                        }
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+            start = end;
+        }
+        if (notified != null && !notified.isEmpty()) {
+            notifyExpired(notified);
+        }
+        int finalRemoved = removed;
+        LOGGER.fine(() -> String.format(
+                "Thread:%s => %d keys removed due to TTL.",
+                Common.getThreadName(),
+                finalRemoved
+        ));
+    }
+
+    /**
+     * Orders the nodes by the index of their segment, with a counting sort over the segments.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V>[] groupBySegment(List<Node<K, V>> nodes) {
+        int[] starts = new int[segments.length + 1];
+        for (Node<K, V> node : nodes) {
+            starts[segmentIndex(node.hash) + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        Node<K, V>[] sorted = new Node[nodes.size()];
+        for (Node<K, V> node : nodes) {
+            sorted[starts[segmentIndex(node.hash)]++] = node;
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns the indexes of the hashes ordered by the index of their segment, with a counting sort over the
+     * segments like {@link #groupBySegment}.
+     */
+    private int[] orderBySegment(int[] hashes) {
+        int[] starts = new int[segments.length + 1];
+        for (int hash : hashes) {
+            starts[segmentIndex(hash) + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] order = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            order[starts[segmentIndex(hashes[i])]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Counts a removed node in the stats and queues its notification for the removal listener, if there are any.
+     * Never waits, so it is called with the segment lock held. The expiry lag is only known for entries whose TTL
+     * elapsed, not for idle ones.
+     */
+    private void recordRemoval(Node<K, V> node, RemovalCause cause) {
+        if (stats != null) {
+            long lag = -1;
+            if (cause == RemovalCause.EXPIRED) {
+                long now = now();
+                lag = node.validTill <= now ? now - node.validTill : -1;
+            }
+            stats.recordRemoval(cause, lag);
+        }
+        if (removalNotifier != null) {
+            removalNotifier.offer(node.key, node.value, cause);
+        }
+    }
+
+    private void notifyExpired(List<Entry<K, V>> expired) {
+        try {
+            expiryListener.onExpired(expired);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Expiry listener failed", e);
+        }
+    }
+
+    private Segment<K, V> segmentFor(int hash) {
+        return segments[segmentIndex(hash)];
+    }
+
+    private int segmentIndex(int hash) {
+        return (int) ((hash & 0xFFFFFFFFL) >>> segmentShift) & (segments.length - 1);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private long now() {
+        return ticker.read();
+    }
+
+    private static long deadline(long now, long ttlNanos) {
+        return ttlNanos >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlNanos;
+    }
+
+    private static long ttlNanos(Duration ttl) {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl);
+        }
+        return saturatedNanos(ttl);
+    }
+
+    private static long nanosUntil(Instant deadline) {
+        return saturatedNanos(Duration.between(Instant.now(), deadline));
+    }
+
+    private static long saturatedNanos(Duration duration) {
+        try {
+            return duration.toNanos();
+        } catch (ArithmeticException e) {
+            return duration.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newTable(int capacity) {
+        return (Node<K, V>[]) new Node[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V> tabAt(Node<K, V>[] tab, int index) {
+        return (Node<K, V>) TABLE.getAcquire(tab, index);
+    }
+
+    private static <K, V> void setTabAt(Node<K, V>[] tab, int index, Node<K, V> node) {
+        TABLE.setRelease(tab, index, node);
+    }
+
+    /**
+     * Walks the entries of a range of segments, and first of a range of units of one segment, without locking.
+     * Entries whose TTL has elapsed when they are reached are skipped.
+     * <p>
+     * A unit is the set of buckets whose index is congruent to the unit modulo the capacity the segment table had
+     * when the walk of the segment started. Since a resize doubles the table and moves every node of a bucket to
+     * the bucket of the same index or that index plus the old capacity, a unit always holds the same keys however
+     * much the table grows. The nodes of a unit are copied to a buffer before being returned, and copied again from
+     * the new table if a resize, which relinks chains in place, ran meanwhile. So every entry present for the whole
+     * walk is returned exactly once, and a put links in a new node that may or may not be seen.
+     */
+    private class Traverser {
+
+        int segment;
+
+        int segmentFence;
+
+        /**
+         * The segment whose units are being walked, null before the first one.
+         */
+        Segment<K, V> current;
+
+        /**
+         * The capacity the units of the current segment are counted against.
+         */
+        int base;
+
+        int unit;
+
+        int unitFence;
+
+        /**
+         * The nodes of the last unit copied, which may have expired, from {@code position} to {@code buffered}.
+         */
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] buffer = (Node<K, V>[]) new Node[8];
+
+        int position;
+
+        int buffered;
+
+        private Traverser() {
+            this(0, segments.length, null, 0, 0, 0);
+        }
+
+        private Traverser(int segment, int segmentFence, Segment<K, V> current, int base, int unit, int unitFence) {
+            this.segment = segment;
+            this.segmentFence = segmentFence;
+            this.current = current;
+            this.base = base;
+            this.unit = unit;
+            this.unitFence = unitFence;
+        }
+
+        /**
+         * Returns the next live entry, or null if the walk is done.
+         */
+        final Node<K, V> advance() {
+            long now = now();
+            for (; ; ) {
+                if (position < buffered) {
+                    Node<K, V> e = buffer[position];
+                    buffer[position++] = null;
+                    if (!isExpired(e, now)) {
+                        return e;
+                    }
+                } else if (unit < unitFence) {
+                    copyUnit(unit++);
+                } else if (segment < segmentFence) {
+                    startSegment(segments[segment++]);
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Whether units of the current segment remain to be returned.
+         */
+        final boolean walking() {
+            return position < buffered || unit < unitFence;
+        }
+
+        final void startSegment(Segment<K, V> segment) {
+            current = segment;
+            base = segment.table.length;
+            unit = 0;
+            unitFence = base;
+        }
+
+        /**
+         * Copies the nodes of the unit to the buffer, again until no resize of the segment got in the way.
+         */
+        private void copyUnit(int unit) {
+            Segment<K, V> segment = current;
+            for (; ; ) {
+                int stamp = segment.resizeStamp;
+                position = 0;
+                buffered = 0;
+                if ((stamp & 1) == 0) {
+                    Node<K, V>[] tab = segment.table;
+                    for (int i = unit; i < tab.length; i += base) {
+                        for (Node<K, V> e = tabAt(tab, i); e != null; e = e.next) {
+                            if (buffered == buffer.length) {
+                                buffer = Arrays.copyOf(buffer, buffered << 1);
+                            }
+                            buffer[buffered++] = e;
+                        }
+                    }
+                    if (segment.resizeStamp == stamp) {
+                        return;
+                    }
+                }
+                Arrays.fill(buffer, 0, buffered, null);
+                // Wait for the resize to finish
+                segment.lock();
+                segment.unlock();
+            }
+        }
+    }
+
+    private final class LiveIterator<T> extends Traverser implements Iterator<T> {
+
+        private final Function<Node<K, V>, T> extractor;
+
+        private Node<K, V> nextNode;
+
+        private Node<K, V> lastReturned;
+
+        private LiveIterator(Function<Node<K, V>, T> extractor) {
+            this.extractor = extractor;
+            this.nextNode = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextNode != null;
+        }
+
+        @Override
+        public T next() {
+            Node<K, V> e = nextNode;
+            if (e == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = e;
+            nextNode = advance();
+            return extractor.apply(e);
+        }
+
+        /**
+         * Removes the entry last returned, unless its key has been mapped to another value since.
+         */
+        @Override
+        public void remove() {
+            Node<K, V> e = lastReturned;
+            if (e == null) {
+                throw new IllegalStateException("next() has not been called since the last remove()");
+            }
+            lastReturned = null;
+            MapWithTtlV4.this.remove(e.key, e.value);
+        }
+    }
+
+    /**
+     * Splits the segments in halves, and a single segment in halves of its table, so that parallel streams over
+     * the views walk disjoint parts of the map.
+     */
+    private final class LiveSpliterator<T> extends Traverser implements Spliterator<T> {
+
+        private final Function<Node<K, V>, T> extractor;
+
+        private final int characteristics;
+
+        private long estimate;
+
+        private LiveSpliterator(Function<Node<K, V>, T> extractor, int characteristics) {
+            this.extractor = extractor;
+            this.characteristics = characteristics | Spliterator.CONCURRENT | Spliterator.NONNULL;
+            this.estimate = size();
+        }
+
+        private LiveSpliterator(LiveSpliterator<T> parent, int segment, int segmentFence, Segment<K, V> current,
+                                int base, int unit, int unitFence) {
+            super(segment, segmentFence, current, base, unit, unitFence);
+            this.extractor = parent.extractor;
+            this.characteristics = parent.characteristics;
+            this.estimate = parent.estimate;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int remaining = segmentFence - segment;
+            boolean walking = walking();
+            LiveSpliterator<T> split;
+            if (remaining > 1 || (remaining == 1 && walking)) {
+                // hands over the upper half of the segments, or all of them while a segment is being walked
+                int mid = walking ? segment : (segment + segmentFence) >>> 1;
+                split = new LiveSpliterator<>(this, mid, segmentFence, null, 0, 0, 0);
+                segmentFence = mid;
+            } else {
+                if (remaining == 1) {
+                    startSegment(segments[segment++]);
+                }
+                if (unitFence - unit < 2) {
+                    return null;
+                }
+                int mid = (unit + unitFence) >>> 1;
+                split = new LiveSpliterator<>(this, 0, 0, current, base, mid, unitFence);
+                unitFence = mid;
+            }
+            estimate >>>= 1;
+            split.estimate = estimate;
+            return split;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            Node<K, V> e = advance();
+            if (e == null) {
+                return false;
+            }
+            action.accept(extractor.apply(e));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            for (Node<K, V> e; (e = advance()) != null; ) {
+                action.accept(extractor.apply(e));
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics;
+        }
+    }
+
+    private final class KeySet extends AbstractSet<K> {
+
+        @Override
+        public int size() {
+            return liveCount();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return new Traverser().advance() == null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return MapWithTtlV4.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            MapWithTtlV4.this.clear();
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            return new LiveIterator<>(e -> e.key);
+        }
+
+        @Override
+        public Spliterator<K> spliterator() {
+            return new LiveSpliterator<>(e -> e.key, Spliterator.DISTINCT);
+        }
+
+        @Override
+        public void forEach(Consumer<? super K> action) {
+            Objects.requireNonNull(action);
+            Traverser traverser = new Traverser();
+            for (Node<K, V> e; (e = traverser.advance()) != null; ) {
+                action.accept(e.key);
+            }
+        }
+    }
+
+    private final class Values extends AbstractCollection<V> {
+
+        @Override
+        public int size() {
+            return liveCount();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return new Traverser().advance() == null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            MapWithTtlV4.this.clear();
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new LiveIterator<>(e -> e.value);
+        }
+
+        @Override
+        public Spliterator<V> spliterator() {
+            return new LiveSpliterator<>(e -> e.value, 0);
+        }
+
+        @Override
+        public void forEach(Consumer<? super V> action) {
+            Objects.requireNonNull(action);
+            Traverser traverser = new Traverser();
+            for (Node<K, V> e; (e = traverser.advance()) != null; ) {
+                action.accept(e.value);
+            }
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public int size() {
+            return liveCount();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return new Traverser().advance() == null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry<?, ?> entry) || entry.getKey() == null || entry.getValue() == null) {
+                return false;
+            }
+            V value = get(entry.getKey());
+            return value != null && value.equals(entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return o instanceof Entry<?, ?> entry && entry.getKey() != null && entry.getValue() != null
+                    && MapWithTtlV4.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void clear() {
+            MapWithTtlV4.this.clear();
+        }
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new LiveIterator<>(e -> e);
+        }
+
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            return new LiveSpliterator<>(e -> e, Spliterator.DISTINCT);
+        }
+
+        @Override
+        public void forEach(Consumer<? super Entry<K, V>> action) {
+            Objects.requireNonNull(action);
+            Traverser traverser = new Traverser();
+            for (Node<K, V> e; (e = traverser.advance()) != null; ) {
+                action.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Configures and creates a {@link MapWithTtlV4}.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     */
+    public static final class Builder<K, V> {
+
+        private long ttlNanos;
+
+        private long createTtlNanos;
+
+        private long updateTtlNanos;
+
+        private boolean keepExistingTtl;
+
+        private long accessNanos;
+
+        private ExpiryEngineFactory expiryEngineFactory = TimingWheelExpiryEngine::new;
+
+        private SamplingConfig samplingConfig;
+
+        private int concurrencyLevel = Runtime.getRuntime().availableProcessors() * 4;
+
+        private Ticker ticker = Ticker.coarse();
+
+        private long maximum = -1;
+
+        private boolean weighted;
+
+        private Weigher<? super K, ? super V> weigher;
+
+        private ExpiryListener<K, V> expiryListener;
+
+        private RemovalListener<K, V> removalListener;
+
+        private Executor removalExecutor;
+
+        private int removalQueueCapacity = RemovalNotifier.DEFAULT_CAPACITY;
+
+        private StatsCounter statsCounter;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the time after which an entry expires, 15000 milliseconds by default,
+         * or never by default if {@link #expireAfterAccess(long, TimeUnit)} is set.
+         *
+         * @param ttl  the TTL
+         * @param unit the unit of the TTL
+         * @return this builder
+         */
+        public Builder<K, V> ttl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+            }
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the time after which an entry created by putIfAbsent, computeIfAbsent, compute or merge expires,
+         * the TTL of the map by default.
+         *
+         * @param ttl  the TTL of created entries
+         * @param unit the unit of the TTL
+         * @return this builder
+         */
+        public Builder<K, V> ttlOnCreate(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+            }
+            this.createTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the TTL restarted when computeIfPresent, compute or merge updates a live entry, the TTL of the map
+         * by default.
+         *
+         * @param ttl  the TTL of updated entries
+         * @param unit the unit of the TTL
+         * @return this builder
+         */
+        public Builder<K, V> ttlOnUpdate(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+            }
+            this.updateTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Keeps the deadline of a live entry updated by computeIfPresent, compute or merge instead of restarting
+         * its TTL, so that the entry expires when it would have had it not been updated.
+         *
+         * @return this builder
+         */
+        public Builder<K, V> keepExistingTtl() {
+            this.keepExistingTtl = true;
+            return this;
+        }
+
+        /**
+         * Also expires an entry once it has not been read or written for the given time. Unless a TTL is set as
+         * well, entries put without an explicit TTL then only expire when idle.
+         *
+         * @param duration the idle time after which an entry expires
+         * @param unit     the unit of the idle time
+         * @return this builder
+         */
+        public Builder<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("Idle time must be positive: " + duration + " " + unit);
+            }
+            this.accessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Expires entries through the engine created by the given factory, a {@link TimingWheelExpiryEngine}
+         * by default.
+         *
+         * @param expiryEngineFactory the factory of the expiry engine to be used
+         * @return this builder
+         */
+        public Builder<K, V> expiryEngine(ExpiryEngineFactory expiryEngineFactory) {
+            this.expiryEngineFactory = Objects.requireNonNull(expiryEngineFactory);
+            this.samplingConfig = null;
+            return this;
+        }
+
+        /**
+         * Expires entries lazily instead of through an expiry engine. A put is then only a table insert;
+         * reads drop the expired entries they find and a background sweeper samples the table for the rest.
+         *
+         * @param samplingConfig the settings of the sweeper, e.g. {@link SamplingConfig#DEFAULT}
+         * @return this builder
+         */
+        public Builder<K, V> lazyExpiry(SamplingConfig samplingConfig) {
+            this.samplingConfig = Objects.requireNonNull(samplingConfig);
+            return this;
+        }
+
+        /**
+         * Sets the expected number of concurrently writing threads, rounded up to a power of two to give the
+         * number of segments. Four times the number of processors by default.
+         *
+         * @param concurrencyLevel the concurrency level
+         * @return this builder
+         */
+        public Builder<K, V> concurrencyLevel(int concurrencyLevel) {
+            if (concurrencyLevel <= 0) {
+                throw new IllegalArgumentException("Concurrency level must be positive: " + concurrencyLevel);
+            }
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        /**
+         * Sets the source of time for expiry, the shared {@link Ticker#coarse()} ticker by default.
+         * A {@link src.map.expiry.ManualTicker} makes expiry on reads deterministic in tests.
+         *
+         * @param ticker the ticker to be used
+         * @return this builder
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Objects.requireNonNull(ticker);
+            return this;
+        }
+
+        /**
+         * Bounds the number of entries, evicting the entries least likely to be read again once it is exceeded.
+         * The map may briefly hold more entries while concurrent writes to different segments are in progress.
+         * A bounded map uses fewer segments, so that each has room for at least 20 entries.
+         *
+         * @param maximumSize the maximum number of entries
+         * @return this builder
+         */
+        public Builder<K, V> maximumSize(long maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("Maximum size must not be negative: " + maximumSize);
+            }
+            if (weighted) {
+                throw new IllegalStateException("Maximum weight already set: " + maximum);
+            }
+            this.maximum = maximumSize;
+            return this;
+        }
+
+        /**
+         * Bounds the total weight of the entries as computed by the {@link #weigher(Weigher)}, which must be set
+         * as well. Entries are evicted as with {@link #maximumSize(long)}; an entry heavier than the share of a
+         * segment is evicted right away.
+         *
+         * @param maximumWeight the maximum total weight
+         * @return this builder
+         */
+        public Builder<K, V> maximumWeight(long maximumWeight) {
+            if (maximumWeight < 0) {
+                throw new IllegalArgumentException("Maximum weight must not be negative: " + maximumWeight);
+            }
+            if (maximum >= 0 && !weighted) {
+                throw new IllegalStateException("Maximum size already set: " + maximum);
+            }
+            this.maximum = maximumWeight;
+            this.weighted = true;
+            return this;
+        }
+
+        /**
+         * Sets the weigher of the entries, for a map bounded by {@link #maximumWeight(long)}.
+         *
+         * @param weigher the weigher to be used
+         * @return this builder
+         */
+        public Builder<K, V> weigher(Weigher<? super K, ? super V> weigher) {
+            this.weigher = Objects.requireNonNull(weigher);
+            return this;
+        }
+
+        /**
+         * Sets the listener told about the entries removed once their TTL elapsed, in batches.
+         * It is called on the thread that removed them: the expiry engine, the sampling sweeper or a reader.
+         *
+         * @param expiryListener the listener to be used
+         * @return this builder
+         */
+        public Builder<K, V> expiryListener(ExpiryListener<K, V> expiryListener) {
+            this.expiryListener = Objects.requireNonNull(expiryListener);
+            return this;
+        }
+
+        /**
+         * Sets the listener told about every removed entry and why it was removed. Notifications are queued
+         * without waiting and delivered on the {@link #removalExecutor(Executor) removal executor}; they are
+         * dropped, and counted in {@link MapWithTtlV4#removalStats()}, while the queue is full.
+         *
+         * @param removalListener the listener to be used
+         * @return this builder
+         */
+        public Builder<K, V> removalListener(RemovalListener<K, V> removalListener) {
+            this.removalListener = Objects.requireNonNull(removalListener);
+            return this;
+        }
+
+        /**
+         * Sets the executor delivering removal notifications, by default a single daemon thread shared by all
+         * maps. A map whose listener is slow should have its own, so that it does not delay the others.
+         *
+         * @param removalExecutor the executor to be used
+         * @return this builder
+         */
+        public Builder<K, V> removalExecutor(Executor removalExecutor) {
+            this.removalExecutor = Objects.requireNonNull(removalExecutor);
+            return this;
+        }
+
+        /**
+         * Sets the number of removal notifications that can wait for the listener, rounded up to a power of two,
+         * 1024 by default.
+         *
+         * @param removalQueueCapacity the capacity of the notification queue
+         * @return this builder
+         */
+        public Builder<K, V> removalQueueCapacity(int removalQueueCapacity) {
+            if (removalQueueCapacity <= 0) {
+                throw new IllegalArgumentException("Queue capacity must be positive: " + removalQueueCapacity);
+            }
+            this.removalQueueCapacity = removalQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Enables the statistics returned by {@link MapWithTtlV4#stats()}. Each read and write then increments
+         * a striped counter, which threads update without contending with each other.
+         *
+         * @return this builder
+         */
+        public Builder<K, V> recordStats() {
+            this.statsCounter = new StatsCounter();
+            return this;
+        }
+
+        /**
+         * Creates a map with the settings of this builder.
+         *
+         * @return a new map
+         * @throws IllegalStateException if only one of the maximum weight and the weigher is set, or if both a TTL
+         *                               on update and keeping existing TTLs are set
+         */
+        public MapWithTtlV4<K, V> build() {
+            if (weighted != (weigher != null)) {
+                throw new IllegalStateException(weighted
+                        ? "Maximum weight requires a weigher"
+                        : "Weigher requires a maximum weight");
+            }
+            if (keepExistingTtl && updateTtlNanos > 0) {
+                throw new IllegalStateException("TTL on update cannot be set when keeping existing TTLs");
+            }
+            return new MapWithTtlV4<>(this);
+        }
+    }
+
+    /**
+     * An entry of the table. The key and value never change; a put of an existing key links in a new node.
+     * The deadline can be moved under the segment lock and is {@link Long#MAX_VALUE} if the entry never expires.
+     * Nodes are handed out as the entries of {@link MapWithTtlV4#entrySet()}, so they compare as map entries.
+     *
+     * @param <K> the type of the key
+     * @param <V> the type of the value
+     */
+    private static final class Node<K, V> implements Entry<K, V> {
+
+        private final K key;
+
+        private final int hash;
+
+        private final V value;
+
+        private volatile long validTill;
+
+        private volatile Node<K, V> next;
+
+        /**
+         * The handle of the scheduled expiry, guarded by the segment lock.
+         */
+        private ExpiryHandle timer;
+
+        /**
+         * The time of the last read or write, only kept with expiry after access. Written by reads without
+         * ordering guarantees through {@link #ACCESS_TIME}.
+         */
+        @SuppressWarnings("unused")
+        private long accessTime;
+
+        /**
+         * The neighbours in the deque of the segment the node is linked into, guarded by the segment lock.
+         */
+        private Node<K, V> accessPrev;
+
+        private Node<K, V> accessNext;
+
+        /**
+         * Which deque the node is linked into, {@link #NONE} if it is not, guarded by the segment lock.
+         */
+        private byte queue;
+
+        /**
+         * The weight of the entry, 1 unless the map is bounded by weight.
+         */
+        private int weight;
+
+        private Node(K key, int hash, V value, long validTill, Node<K, V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.validTill = validTill;
+            this.next = next;
+        }
+
+        private long getAccessTime() {
+            return (long) ACCESS_TIME.getOpaque(this);
+        }
+
+        private void setAccessTime(long accessTime) {
+            ACCESS_TIME.setOpaque(this, accessTime);
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Entries of the map are immutable");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry<?, ?> entry && key.equals(entry.getKey()) && value.equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * A hash table of chained nodes guarded by its own lock. Chains are only modified under the lock and the
+     * table and links are published through volatile writes, so lookups can run without locking. A resize moves
+     * nodes between chains, which a lookup or a walk detects through the resize stamp and then retries.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     */
+    private static final class Segment<K, V> extends ReentrantLock {
+
+        private volatile Node<K, V>[] table = newTable(INITIAL_SEGMENT_CAPACITY);
+
+        private volatile int count;
+
+        /**
+         * Odd while a resize is moving nodes, incremented again once it is done.
+         */
+        private volatile int resizeStamp;
+
+        private int threshold = INITIAL_SEGMENT_CAPACITY * 3 / 4;
+
+        /**
+         * The deques of the nodes in access order, only kept with expiry after access or eviction and guarded by
+         * the lock. An unbounded segment only uses the window.
+         */
+        private final AccessOrder<K, V> window = new AccessOrder<>();
+
+        private final AccessOrder<K, V> probation = new AccessOrder<>();
+
+        private final AccessOrder<K, V> protectedOrder = new AccessOrder<>();
+
+        /**
+         * The maximum total weight of the segment, -1 if it is unbounded, and the shares of the window and the
+         * protected deque.
+         */
+        private final long maximum;
+
+        private final long windowMaximum;
+
+        private final long protectedMaximum;
+
+        private long weightedSize;
+
+        private long windowWeight;
+
+        private long protectedWeight;
+
+        /**
+         * The recent frequency of the keys of the segment, null if it is unbounded.
+         */
+        private final FrequencySketch sketch;
+
+        /**
+         * A ring of recent reads, written without locking and drained under the lock. Reads arriving while the
+         * ring is full are dropped, only their position in the access order is lost.
+         */
+        private final AtomicReferenceArray<Node<K, V>> readBuffer;
+
+        private final AtomicLong readBufferWrites;
+
+        private volatile long readBufferReads;
+
+        private Segment(boolean accessOrder, long maximum) {
+            this.readBuffer = accessOrder ? new AtomicReferenceArray<>(READ_BUFFER_SIZE) : null;
+            this.readBufferWrites = accessOrder ? new AtomicLong() : null;
+            this.maximum = maximum;
+            if (maximum < 0) {
+                this.windowMaximum = Long.MAX_VALUE;
+                this.protectedMaximum = 0;
+                this.sketch = null;
+            } else {
+                this.windowMaximum = Math.ceilDiv(maximum, 100);
+                long mainMaximum = maximum - windowMaximum;
+                this.protectedMaximum = mainMaximum - mainMaximum / 5;
+                this.sketch = new FrequencySketch(Math.min(INITIAL_SEGMENT_CAPACITY, maximum));
+            }
+        }
+
+        /**
+         * Finds the node of the given key without locking.
+         */
+        private Node<K, V> find(Object key, int hash) {
+            int stamp = resizeStamp;
+            if ((stamp & 1) == 0) {
+                Node<K, V>[] tab = table;
+                for (Node<K, V> e = tabAt(tab, hash & (tab.length - 1)); e != null; e = e.next) {
+                    if (e.hash == hash && key.equals(e.key)) {
+                        return e;
+                    }
+                }
+                if (resizeStamp == stamp) {
+                    return null;
+                }
+            }
+            // A resize got in the way, wait for it to finish
+            lock();
+            try {
+                return findLocked(key, hash);
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Finds the node of the given key. Must be called with the lock held.
+         */
+        private Node<K, V> findLocked(Object key, int hash) {
+            Node<K, V>[] tab = table;
+            for (Node<K, V> e = tab[hash & (tab.length - 1)]; e != null; e = e.next) {
+                if (e.hash == hash && key.equals(e.key)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Unlinks the node of the given key. Must be called with the lock held.
+         *
+         * @param expected if not null, the node is only unlinked if it is this exact node
+         * @return the unlinked node, or null if nothing was unlinked
+         */
+        private Node<K, V> unlink(Object key, int hash, Node<K, V> expected) {
+            Node<K, V>[] tab = table;
+            int index = hash & (tab.length - 1);
+            Node<K, V> pred = null;
+            for (Node<K, V> e = tabAt(tab, index); e != null; pred = e, e = e.next) {
+                if (e.hash == hash && key.equals(e.key)) {
+                    if (expected != null && e != expected) {
+                        return null;
+                    }
+                    if (pred == null) {
+                        setTabAt(tab, index, e.next);
+                    } else {
+                        pred.next = e.next;
+                    }
+                    count--;
+                    unlinkOrder(e);
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Offers a read to the read buffer, and drains the buffer if it is filling up and the lock is free.
+         * Neither allocates nor waits.
+         */
+        private void recordRead(Node<K, V> node) {
+            long writes = readBufferWrites.get();
+            long pending = writes - readBufferReads;
+            if (pending < READ_BUFFER_SIZE && readBufferWrites.compareAndSet(writes, writes + 1)) {
+                readBuffer.lazySet((int) writes & (READ_BUFFER_SIZE - 1), node);
+                pending++;
+            }
+            if (pending >= READ_BUFFER_DRAIN_THRESHOLD && tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    unlock();
+                }
+            }
+        }
+
+        /**
+         * Applies the buffered reads to the deques. Must be called with the lock held.
+         */
+        private void drainReadBuffer() {
+            if (readBuffer == null) {
+                return;
+            }
+            long reads = readBufferReads;
+            long writes = readBufferWrites.get();
+            for (; reads < writes; reads++) {
+                int index = (int) reads & (READ_BUFFER_SIZE - 1);
+                Node<K, V> node = readBuffer.get(index);
+                if (node == null) {
+                    // The slot was claimed but the node is not stored yet
+                    break;
+                }
+                readBuffer.lazySet(index, null);
+                onRead(node);
+            }
+            readBufferReads = reads;
+        }
+
+        /**
+         * Moves a node that was read to the tail of its deque, or from probation to the tail of the protected
+         * deque, demoting the least recently used protected nodes if the protected deque is then too big.
+         * Must be called with the lock held.
+         */
+        private void onRead(Node<K, V> node) {
+            switch (node.queue) {
+                case WINDOW -> window.moveToBack(node);
+                case PROTECTED -> protectedOrder.moveToBack(node);
+                case PROBATION -> {
+                    probation.unlink(node);
+                    node.queue = PROTECTED;
+                    protectedOrder.linkLast(node);
+                    protectedWeight += node.weight;
+                    Node<K, V> demoted;
+                    while (protectedWeight > protectedMaximum && (demoted = protectedOrder.head) != node) {
+                        protectedOrder.unlink(demoted);
+                        protectedWeight -= demoted.weight;
+                        demoted.queue = PROBATION;
+                        probation.linkLast(demoted);
+                    }
+                }
+                default -> {
+                    // Removed since it was read
+                    return;
+                }
+            }
+            if (sketch != null) {
+                sketch.increment(node.hash);
+            }
+        }
+
+        /**
+         * Links a new node at the tail of the window. Must be called with the lock held.
+         */
+        private void linkNew(Node<K, V> node) {
+            node.queue = WINDOW;
+            window.linkLast(node);
+            windowWeight += node.weight;
+            weightedSize += node.weight;
+            if (sketch != null) {
+                sketch.increment(node.hash);
+            }
+        }
+
+        /**
+         * Links a node replacing another one of the same key at the tail of the deque of the replaced node,
+         * as a write counts as an access. Must be called with the lock held.
+         */
+        private void replaceInOrder(Node<K, V> replaced, Node<K, V> node) {
+            byte queue = replaced.queue;
+            if (queue == NONE) {
+                linkNew(node);
+                return;
+            }
+            unlinkOrder(replaced);
+            node.queue = queue;
+            orderOf(queue).linkLast(node);
+            weightedSize += node.weight;
+            if (queue == WINDOW) {
+                windowWeight += node.weight;
+            } else if (queue == PROTECTED) {
+                protectedWeight += node.weight;
+            }
+            if (sketch != null) {
+                sketch.increment(node.hash);
+            }
+        }
+
+        /**
+         * Removes the node from its deque, if it is linked into one. Must be called with the lock held.
+         */
+        private void unlinkOrder(Node<K, V> node) {
+            byte queue = node.queue;
+            if (queue == NONE) {
+                return;
+            }
+            orderOf(queue).unlink(node);
+            node.queue = NONE;
+            weightedSize -= node.weight;
+            if (queue == WINDOW) {
+                windowWeight -= node.weight;
+            } else if (queue == PROTECTED) {
+                protectedWeight -= node.weight;
+            }
+        }
+
+        /**
+         * Moves the least recently used nodes of the window to the tail of the probation deque while the window
+         * is too big. Must be called with the lock held.
+         *
+         * @return the first node moved, or null if none was
+         */
+        private Node<K, V> evictFromWindow() {
+            Node<K, V> first = null;
+            Node<K, V> node;
+            while (windowWeight > windowMaximum && (node = window.head) != null) {
+                window.unlink(node);
+                windowWeight -= node.weight;
+                node.queue = PROBATION;
+                probation.linkLast(node);
+                if (first == null) {
+                    first = node;
+                }
+            }
+            return first;
+        }
+
+        /**
+         * Decides whether a candidate for the main region should replace the victim, which is the case if its
+         * key was seen more often recently. Must be called with the lock held.
+         */
+        private boolean admit(Node<K, V> candidate, Node<K, V> victim) {
+            return sketch.frequency(candidate.hash) > sketch.frequency(victim.hash);
+        }
+
+        private AccessOrder<K, V> orderOf(byte queue) {
+            return switch (queue) {
+                case WINDOW -> window;
+                case PROBATION -> probation;
+                default -> protectedOrder;
+            };
+        }
+
+        /**
+         * Forgets the deques after the table has been cleared. Must be called with the lock held.
+         */
+        private void clearOrder() {
+            window.clear();
+            probation.clear();
+            protectedOrder.clear();
+            weightedSize = 0;
+            windowWeight = 0;
+            protectedWeight = 0;
+            if (readBuffer != null) {
+                drainReadBuffer();
+            }
+        }
+
+        /**
+         * Doubles the table, splitting every chain in two while keeping the order of its nodes.
+         * Must be called with the lock held.
+         */
+        private void rehash() {
+            Node<K, V>[] oldTab = table;
+            int oldCapacity = oldTab.length;
+            if (oldCapacity >= MAXIMUM_SEGMENT_CAPACITY) {
+                threshold = Integer.MAX_VALUE;
+                return;
+            }
+            Node<K, V>[] newTab = newTable(oldCapacity << 1);
+            resizeStamp++;
+            for (int i = 0; i < oldCapacity; i++) {
+                Node<K, V> loHead = null, loTail = null, hiHead = null, hiTail = null;
+                for (Node<K, V> e = oldTab[i]; e != null; e = e.next) {
+                    if ((e.hash & oldCapacity) == 0) {
+                        if (loTail == null) {
+                            loHead = e;
+                        } else {
+                            loTail.next = e;
+                        }
+                        loTail = e;
+                    } else {
+                        if (hiTail == null) {
+                            hiHead = e;
+                        } else {
+                            hiTail.next = e;
+                        }
+                        hiTail = e;
+                    }
+                }
+                if (loTail != null) {
+                    loTail.next = null;
+                }
+                if (hiTail != null) {
+                    hiTail.next = null;
+                }
+                newTab[i] = loHead;
+                newTab[i + oldCapacity] = hiHead;
+            }
+            table = newTab;
+            threshold = newTab.length * 3 / 4;
+            resizeStamp++;
+            if (sketch != null) {
+                sketch.ensureCapacity(Math.min(newTab.length, maximum));
+            }
+        }
+    }
+
+    /**
+     * A deque of nodes linked through their access links, least recently used first.
+     * Guarded by the lock of its segment.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     */
+    private static final class AccessOrder<K, V> {
+
+        private Node<K, V> head;
+
+        private Node<K, V> tail;
+
+        private void linkLast(Node<K, V> node) {
+            node.accessPrev = tail;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.accessNext = node;
+            }
+            tail = node;
+        }
+
+        /**
+         * Removes a node linked into this deque.
+         */
+        private void unlink(Node<K, V> node) {
+            if (node.accessPrev == null) {
+                head = node.accessNext;
+            } else {
+                node.accessPrev.accessNext = node.accessNext;
+            }
+            if (node.accessNext == null) {
+                tail = node.accessPrev;
+            } else {
+                node.accessNext.accessPrev = node.accessPrev;
+            }
+            node.accessPrev = null;
+            node.accessNext = null;
+        }
+
+        private void moveToBack(Node<K, V> node) {
+            if (node != tail) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+
+        /**
+         * Unlinks every node, so that late reads of them are ignored.
+         */
+        private void clear() {
+            for (Node<K, V> node = head; node != null; ) {
+                Node<K, V> next = node.accessNext;
+                node.accessPrev = null;
+                node.accessNext = null;
+                node.queue = NONE;
+                node = next;
+            }
+            head = null;
+            tail = null;
+        }
+    }
+}
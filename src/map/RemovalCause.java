@@ -0,0 +1,32 @@
+package src.map;
+
+/**
+ * The reason an entry was removed from a map, as reported to a {@link RemovalListener}.
+ */
+public enum RemovalCause {
+
+    /**
+     * The TTL or the idle time of the entry elapsed. Also reported for an expired entry found by a later write.
+     */
+    EXPIRED,
+
+    /**
+     * The entry was removed by a call to remove.
+     */
+    EXPLICIT,
+
+    /**
+     * The value of the entry was replaced by a put or a replace.
+     */
+    REPLACED,
+
+    /**
+     * The entry was evicted to keep a bounded map within its maximum size or weight.
+     */
+    SIZE,
+
+    /**
+     * The entry was removed by a call to clear.
+     */
+    CLEARED
+}
@@ -0,0 +1,22 @@
+package src.map;
+
+/**
+ * Receives every entry a map removes, whatever the cause.
+ * Notifications are delivered asynchronously, after the removal, so the listener may be slow without holding up
+ * reads and writes of the map.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+@FunctionalInterface
+public interface RemovalListener<K, V> {
+
+    /**
+     * Called once for each removed entry, on the executor of the map and never concurrently with itself.
+     *
+     * @param key   the key of the entry
+     * @param value the value of the entry
+     * @param cause the reason the entry was removed
+     */
+    void onRemoval(K key, V value, RemovalCause cause);
+}
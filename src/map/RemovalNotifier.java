@@ -0,0 +1,157 @@
+package src.map;
+
+import src.utilities.Common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers removal notifications to a {@link RemovalListener} off the threads that removed the entries.
+ * <p>
+ * Writers offer notifications to a bounded multi-producer single-consumer ring buffer, which neither locks nor
+ * waits, and schedule one drain on the executor if none is pending. A notification offered to a full buffer is
+ * dropped and counted, so a listener that cannot keep up loses notifications rather than slowing the map down.
+ * Only one drain runs at a time, which makes it the single consumer of the buffer.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+final class RemovalNotifier<K, V> {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(RemovalNotifier.class);
+    }
+
+    /**
+     * The default number of notifications waiting for the listener.
+     */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final class DefaultHolder {
+        private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ttl-removal-notifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final RemovalListener<K, V> listener;
+
+    private final Executor executor;
+
+    private final AtomicReferenceArray<Notification<K, V>> buffer;
+
+    private final int mask;
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private volatile long reads;
+
+    /**
+     * Whether a drain has been handed to the executor and not finished yet.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates a notifier whose buffer holds the given number of notifications, rounded up to a power of two.
+     *
+     * @param listener the listener to be notified
+     * @param executor the executor running the listener, or null for the single thread shared by all maps
+     * @param capacity the number of notifications waiting for the listener before new ones are dropped
+     */
+    RemovalNotifier(RemovalListener<K, V> listener, Executor executor, int capacity) {
+        this.listener = listener;
+        this.executor = executor == null ? DefaultHolder.EXECUTOR : executor;
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Queues a notification and makes sure a drain is scheduled. Never waits; drops the notification if the
+     * buffer is full.
+     */
+    void offer(K key, V value, RemovalCause cause) {
+        Notification<K, V> notification = new Notification<>(key, value, cause);
+        while (true) {
+            long claimed = writes.get();
+            if (claimed - reads > mask) {
+                dropped.increment();
+                return;
+            }
+            if (writes.compareAndSet(claimed, claimed + 1)) {
+                buffer.lazySet((int) claimed & mask, notification);
+                break;
+            }
+        }
+        scheduleDrain();
+    }
+
+    RemovalStats stats() {
+        return new RemovalStats(delivered.sum(), dropped.sum(), failed.sum());
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Retried by the next offer
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Delivers the queued notifications until the buffer is empty. Runs on the executor.
+     */
+    private void drain() {
+        do {
+            long read = reads;
+            long written = writes.get();
+            while (read < written) {
+                int index = (int) read & mask;
+                Notification<K, V> notification = buffer.get(index);
+                if (notification == null) {
+                    // The slot was claimed but the notification is not stored yet
+                    Thread.onSpinWait();
+                    continue;
+                }
+                buffer.lazySet(index, null);
+                reads = ++read;
+                deliver(notification);
+            }
+            draining.set(false);
+            // A notification offered after the last check may have found the drain still running
+        } while (writes.get() != reads && draining.compareAndSet(false, true));
+    }
+
+    private void deliver(Notification<K, V> notification) {
+        try {
+            listener.onRemoval(notification.key, notification.value, notification.cause);
+        } catch (RuntimeException e) {
+            failed.increment();
+            LOGGER.log(Level.WARNING, "Removal listener failed", e);
+        }
+        delivered.increment();
+    }
+
+    private record Notification<K, V>(K key, V value, RemovalCause cause) {
+    }
+}
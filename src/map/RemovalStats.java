@@ -0,0 +1,11 @@
+package src.map;
+
+/**
+ * A snapshot of the notifications sent to the {@link RemovalListener} of a map.
+ *
+ * @param delivered the number of notifications the listener was called with
+ * @param dropped   the number of notifications lost because the queue was full
+ * @param failed    the number of notifications the listener threw an exception for, included in delivered
+ */
+public record RemovalStats(long delivered, long dropped, long failed) {
+}
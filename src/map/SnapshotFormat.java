@@ -0,0 +1,423 @@
+package src.map;
+
+import src.map.offheap.Serializer;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Writes and reads snapshots of the live entries of a map, each with its absolute deadline.
+ * <p>
+ * A snapshot starts with a header of the magic number, the format version, the flags and the wall clock time it
+ * was taken at. The entries follow in blocks of about {@value #BLOCK_SIZE} bytes, each preceded by its number of
+ * entries, its raw and stored lengths and the CRC32C of the stored bytes, which are deflated if the snapshot is
+ * compressed. A block of zero entries ends the snapshot. Every entry is its deadline in epoch milliseconds followed
+ * by the length-prefixed bytes of its key and of its value.
+ * <p>
+ * Snapshots are written to a temporary file that is moved over the target once complete, so a snapshot that fails
+ * midway leaves the previous one in place. Blocks are read sequentially and decoded in parallel on the common
+ * {@link ForkJoinPool}, while the entries are handed over in the order of the file on the calling thread.
+ */
+final class SnapshotFormat {
+
+    private static final int MAGIC = 0x54544C53;
+
+    private static final byte VERSION = 1;
+
+    private static final byte COMPRESSED = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int BLOCK_HEADER_SIZE = 16;
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    /**
+     * The upper bound of the raw length of a block, which only exceeds {@link #BLOCK_SIZE} for a single huge entry.
+     */
+    private static final int MAX_BLOCK_SIZE = 1 << 30;
+
+    private SnapshotFormat() {
+    }
+
+    /**
+     * Receives the entries of a snapshot.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    @FunctionalInterface
+    interface EntrySink<K, V> {
+
+        void accept(K key, V value, long deadlineMillis);
+    }
+
+    /**
+     * Writes a snapshot of the entries the source passes to the sink it is given.
+     *
+     * @param path            the file to write, replaced once the snapshot is complete
+     * @param source          passes every entry to be written to the sink
+     * @param keySerializer   the serializer of the keys
+     * @param valueSerializer the serializer of the values
+     * @param compress        whether the blocks are deflated
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    static <K, V> long write(Path path,
+                             Consumer<EntrySink<K, V>> source,
+                             Serializer<K> keySerializer,
+                             Serializer<V> valueSerializer,
+                             boolean compress) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            long written;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 Writer<K, V> writer = new Writer<>(channel, keySerializer, valueSerializer, compress)) {
+                source.accept(writer);
+                writer.finish();
+                channel.force(true);
+                written = writer.entries;
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return written;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Reads a snapshot, passing the entries whose deadline is after the given time to the sink.
+     * The serializers are called from several threads at once.
+     *
+     * @param path            the file to read
+     * @param keySerializer   the serializer of the keys
+     * @param valueSerializer the serializer of the values
+     * @param notAfterMillis  the epoch milliseconds up to which deadlines have passed
+     * @param sink            receives the live entries, on the calling thread
+     * @return the number of entries passed to the sink
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    static <K, V> long read(Path path,
+                            Serializer<K> keySerializer,
+                            Serializer<V> valueSerializer,
+                            long notAfterMillis,
+                            EntrySink<K, V> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot: " + path);
+            }
+            byte version = header.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + path);
+            }
+            boolean compressed = (header.get() & COMPRESSED) != 0;
+            int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+            Deque<CompletableFuture<Block<K, V>>> pending = new ArrayDeque<>();
+            long read = 0;
+            boolean done = false;
+            while (!done || !pending.isEmpty()) {
+                while (!done && pending.size() < window) {
+                    ByteBuffer blockHeader = readFully(channel, BLOCK_HEADER_SIZE);
+                    int count = blockHeader.getInt();
+                    int rawLength = blockHeader.getInt();
+                    int storedLength = blockHeader.getInt();
+                    int checksum = blockHeader.getInt();
+                    if (count < 0 || rawLength < 0 || rawLength > MAX_BLOCK_SIZE
+                            || storedLength < 0 || storedLength > MAX_BLOCK_SIZE) {
+                        throw new IOException("Corrupt block header in snapshot " + path);
+                    }
+                    if (count == 0) {
+                        done = true;
+                        break;
+                    }
+                    ByteBuffer stored = readFully(channel, storedLength);
+                    pending.add(CompletableFuture.supplyAsync(() -> decode(
+                            stored, count, rawLength, checksum, compressed,
+                            keySerializer, valueSerializer, notAfterMillis)));
+                }
+                if (!pending.isEmpty()) {
+                    Block<K, V> block = await(pending.poll(), path);
+                    for (int i = 0; i < block.size; i++) {
+                        sink.accept(block.keys[i], block.values[i], block.deadlines[i]);
+                    }
+                    read += block.size;
+                }
+            }
+            return read;
+        }
+    }
+
+    private static <K, V> Block<K, V> await(CompletableFuture<Block<K, V>> future, Path path) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Corrupt snapshot " + path, e.getCause());
+        }
+    }
+
+    private static <K, V> Block<K, V> decode(ByteBuffer stored,
+                                             int count,
+                                             int rawLength,
+                                             int checksum,
+                                             boolean compressed,
+                                             Serializer<K> keySerializer,
+                                             Serializer<V> valueSerializer,
+                                             long notAfterMillis) {
+        CRC32C crc = new CRC32C();
+        crc.update(stored.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IllegalStateException("Checksum mismatch");
+        }
+        ByteBuffer raw = compressed ? inflate(stored, rawLength) : stored;
+        Block<K, V> block = new Block<>(count);
+        for (int i = 0; i < count; i++) {
+            long deadline = raw.getLong();
+            int keyLength = raw.getInt();
+            int keyEnd = raw.position() + keyLength;
+            if (deadline <= notAfterMillis) {
+                raw.position(keyEnd);
+                raw.position(raw.getInt() + raw.position());
+                continue;
+            }
+            K key = keySerializer.deserialize(raw.slice(raw.position(), keyLength));
+            raw.position(keyEnd);
+            int valueLength = raw.getInt();
+            V value = valueSerializer.deserialize(raw.slice(raw.position(), valueLength));
+            raw.position(raw.position() + valueLength);
+            block.add(key, value, deadline);
+        }
+        if (raw.hasRemaining()) {
+            throw new IllegalStateException("Trailing bytes in block");
+        }
+        return block;
+    }
+
+    private static ByteBuffer inflate(ByteBuffer stored, int rawLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            ByteBuffer raw = ByteBuffer.allocate(rawLength);
+            while (raw.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(raw) == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Truncated compressed block");
+                }
+            }
+            if (raw.hasRemaining()) {
+                throw new IllegalStateException("Short compressed block");
+            }
+            return raw.flip();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated snapshot");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * The decoded live entries of a block.
+     */
+    private static final class Block<K, V> {
+
+        private final K[] keys;
+
+        private final V[] values;
+
+        private final long[] deadlines;
+
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        private Block(int capacity) {
+            this.keys = (K[]) new Object[capacity];
+            this.values = (V[]) new Object[capacity];
+            this.deadlines = new long[capacity];
+        }
+
+        private void add(K key, V value, long deadline) {
+            keys[size] = key;
+            values[size] = value;
+            deadlines[size] = deadline;
+            size++;
+        }
+    }
+
+    /**
+     * Encodes the entries into blocks and writes each block once it is full.
+     * Write failures are kept and rethrown by {@link #finish()}, since the sink cannot throw them.
+     */
+    private static final class Writer<K, V> implements EntrySink<K, V>, AutoCloseable {
+
+        private final FileChannel channel;
+
+        private final Serializer<K> keySerializer;
+
+        private final Serializer<V> valueSerializer;
+
+        private final Deflater deflater;
+
+        private final CRC32C crc = new CRC32C();
+
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        private ByteBuffer stored;
+
+        private int blockEntries;
+
+        private long entries;
+
+        private IOException failure;
+
+        private Writer(FileChannel channel, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                       boolean compress) throws IOException {
+            this.channel = channel;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .put(VERSION)
+                    .put(compress ? COMPRESSED : 0)
+                    .putShort((short) 0)
+                    .putLong(System.currentTimeMillis())
+                    .flip();
+            writeFully(channel, header);
+        }
+
+        @Override
+        public void accept(K key, V value, long deadlineMillis) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                while (!tryEncode(key, value, deadlineMillis)) {
+                    if (blockEntries > 0) {
+                        flush();
+                    } else if (block.capacity() < MAX_BLOCK_SIZE) {
+                        block = ByteBuffer.allocate(block.capacity() * 2);
+                    } else {
+                        throw new IOException("Entry larger than " + MAX_BLOCK_SIZE + " bytes");
+                    }
+                }
+                entries++;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private boolean tryEncode(K key, V value, long deadlineMillis) {
+            int start = block.position();
+            try {
+                block.putLong(deadlineMillis);
+                putLengthPrefixed(key, keySerializer);
+                putLengthPrefixed(value, valueSerializer);
+                blockEntries++;
+                return true;
+            } catch (BufferOverflowException e) {
+                block.position(start);
+                return false;
+            }
+        }
+
+        private <T> void putLengthPrefixed(T object, Serializer<T> serializer) {
+            int lengthAt = block.position();
+            block.putInt(0);
+            serializer.serialize(object, block);
+            block.putInt(lengthAt, block.position() - lengthAt - Integer.BYTES);
+        }
+
+        private void flush() throws IOException {
+            block.flip();
+            int rawLength = block.remaining();
+            ByteBuffer out = deflater == null ? block : deflate(block);
+            crc.reset();
+            crc.update(out.duplicate());
+            writeBlockHeader(blockEntries, rawLength, out.remaining(), (int) crc.getValue());
+            writeFully(channel, out);
+            block.clear();
+            blockEntries = 0;
+        }
+
+        private ByteBuffer deflate(ByteBuffer raw) {
+            int bound = raw.remaining() + (raw.remaining() >> 3) + 64;
+            if (stored == null || stored.capacity() < bound) {
+                stored = ByteBuffer.allocate(bound);
+            }
+            stored.clear();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!stored.hasRemaining()) {
+                    stored = ByteBuffer.allocate(stored.capacity() * 2).put(stored.flip());
+                }
+                deflater.deflate(stored);
+            }
+            return stored.flip();
+        }
+
+        private void writeBlockHeader(int count, int rawLength, int storedLength, int checksum) throws IOException {
+            writeFully(channel, ByteBuffer.allocate(BLOCK_HEADER_SIZE)
+                    .putInt(count)
+                    .putInt(rawLength)
+                    .putInt(storedLength)
+                    .putInt(checksum)
+                    .flip());
+        }
+
+        /**
+         * Writes the last block and the end marker.
+         *
+         * @throws IOException if any write failed
+         */
+        private void finish() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (blockEntries > 0) {
+                flush();
+            }
+            writeBlockHeader(0, 0, 0, 0);
+        }
+
+        @Override
+        public void close() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+}
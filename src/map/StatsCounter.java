@@ -0,0 +1,92 @@
+package src.map;
+
+import src.map.expiry.LagHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the statistics of a map with striped counters, so that threads recording at the same time do not
+ * contend on a shared field. Every method only increments counters, without allocating or locking.
+ */
+final class StatsCounter {
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder puts = new LongAdder();
+
+    private final LongAdder removes = new LongAdder();
+
+    private final LongAdder expirations = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder loadSuccesses = new LongAdder();
+
+    private final LongAdder loadFailures = new LongAdder();
+
+    private final LongAdder loadTimeNanos = new LongAdder();
+
+    private final LongAdder pendingExpiries = new LongAdder();
+
+    private final LagHistogram expiryLag = new LagHistogram();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordPut() {
+        puts.increment();
+    }
+
+    /**
+     * Records a removal. Replaced and cleared entries are not counted.
+     *
+     * @param cause    the reason the entry was removed
+     * @param lagNanos the time since the deadline of an expired entry, or a negative value if it is not known
+     */
+    void recordRemoval(RemovalCause cause, long lagNanos) {
+        switch (cause) {
+            case EXPLICIT -> removes.increment();
+            case SIZE -> evictions.increment();
+            case EXPIRED -> {
+                expirations.increment();
+                if (lagNanos >= 0) {
+                    expiryLag.record(lagNanos);
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    void recordLoadSuccess(long loadNanos) {
+        loadSuccesses.increment();
+        loadTimeNanos.add(loadNanos);
+    }
+
+    void recordLoadFailure(long loadNanos) {
+        loadFailures.increment();
+        loadTimeNanos.add(loadNanos);
+    }
+
+    /**
+     * Records a change in the number of entries whose expiry is scheduled on the expiry engine.
+     *
+     * @param delta the number of expiries scheduled, negative for expiries cancelled or fired
+     */
+    void recordScheduled(int delta) {
+        pendingExpiries.add(delta);
+    }
+
+    TtlMapStats snapshot() {
+        return new TtlMapStats(hits.sum(), misses.sum(), puts.sum(), removes.sum(), expirations.sum(),
+                evictions.sum(), loadSuccesses.sum(), loadFailures.sum(), loadTimeNanos.sum(), expiryLag.snapshot(),
+                Math.max(0, pendingExpiries.sum()));
+    }
+}
@@ -0,0 +1,25 @@
+package src.map;
+
+/**
+ * When the write-ahead log of a {@link DurableTtlMap} forces its records to disk.
+ */
+public enum SyncPolicy {
+
+    /**
+     * Every mutation returns once its record has been forced to disk. Mutations made while a force is running are
+     * forced together by the next one, so concurrent writers share the cost of a sync.
+     */
+    EVERY_WRITE,
+
+    /**
+     * Mutations return once their record is queued, and the log is forced at most the sync interval after a record
+     * is written. A crash loses at most the mutations of the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Records are written without being forced, leaving it to the operating system when they reach the disk.
+     * A crash of the process loses nothing, a crash of the machine loses what the operating system had not written.
+     */
+    OS
+}
@@ -0,0 +1,124 @@
+package src.map;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Map whose entries can each have their own Time-To-Live (TTL).
+ * The methods inherited from {@link Map} use the default TTL of the map.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public interface TtlMap<K, V> extends Map<K, V> {
+
+    /**
+     * Associates the specified value with the specified key in this map, expiring after the given TTL.
+     *
+     * @param key   the key with which the specified value is to be associated
+     * @param value the value to be associated with the specified key
+     * @param ttl   the time after which the mapping expires
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    V put(K key, V value, Duration ttl);
+
+    /**
+     * Associates the specified value with the specified key in this map, expiring after the given TTL.
+     *
+     * @param key   the key with which the specified value is to be associated
+     * @param value the value to be associated with the specified key
+     * @param ttl   the time after which the mapping expires
+     * @param unit  the unit of the TTL
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    default V put(K key, V value, long ttl, TimeUnit unit) {
+        return put(key, value, Duration.of(ttl, unit.toChronoUnit()));
+    }
+
+    /**
+     * Associates the specified value with the specified key, expiring after the given TTL, unless the key already
+     * has a live mapping. The check and the put happen atomically.
+     *
+     * @param key   the key with which the specified value is to be associated
+     * @param value the value to be associated with the specified key
+     * @param ttl   the time after which the mapping expires
+     * @return the current value associated with key, or null if there was none and the value has been put
+     */
+    V putIfAbsent(K key, V value, Duration ttl);
+
+    /**
+     * Returns the live mappings of the given keys. Keys without a live mapping are left out of the result.
+     *
+     * @param keys the keys whose values are to be returned
+     * @return a new map of the keys found to their values
+     */
+    default Map<K, V> getAll(Iterable<? extends K> keys) {
+        Map<K, V> found = new HashMap<>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) {
+                found.put(key, value);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map, expiring after the given TTL.
+     *
+     * @param m   mappings to be stored in this map
+     * @param ttl the time after which the mappings expire
+     */
+    default void putAll(Map<? extends K, ? extends V> m, Duration ttl) {
+        for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+            put(e.getKey(), e.getValue(), ttl);
+        }
+    }
+
+    /**
+     * Removes the mappings of all the given keys.
+     *
+     * @param keys the keys whose mappings are to be removed
+     * @return the number of live mappings removed
+     */
+    default int removeAll(Iterable<? extends K> keys) {
+        int removed = 0;
+        for (K key : keys) {
+            if (remove(key) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Moves the expiry of the mapping for the key to the given instant.
+     * An instant in the past removes the mapping right away.
+     *
+     * @param key      the key whose mapping expires
+     * @param deadline the instant at which the mapping expires
+     * @return true if the key had a live mapping, false otherwise
+     */
+    boolean expireAt(K key, Instant deadline);
+
+    /**
+     * Returns the instant at which the mapping for the key expires.
+     *
+     * @param key the key whose expiry is to be returned
+     * @return the expiry of the mapping, {@link Instant#MAX} if it never expires,
+     * or empty if the key has no live mapping
+     */
+    Optional<Instant> getExpiration(K key);
+
+    /**
+     * Removes the TTL of the mapping for the key, so that it stays until removed or replaced.
+     *
+     * @param key the key whose mapping is to be kept
+     * @return true if the key had a live mapping, false otherwise
+     */
+    boolean persist(K key);
+}
@@ -0,0 +1,86 @@
+package src.map;
+
+import src.map.expiry.ExpiryLag;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * A snapshot of the statistics of a map built with stats recording enabled.
+ * <p>
+ * The expiry lag is the time between the deadline of an entry and its removal after its TTL elapsed, as measured
+ * by the ticker of the map. With the default coarse ticker, lags are only accurate to about a millisecond.
+ *
+ * @param hitCount           the number of reads that found a live entry
+ * @param missCount          the number of reads that did not
+ * @param putCount           the number of entries written by puts, replaces and loads
+ * @param removeCount        the number of live entries removed by a call to remove
+ * @param expiredCount       the number of entries removed because their TTL or idle time elapsed
+ * @param evictionCount      the number of entries evicted to stay within the maximum size or weight
+ * @param loadSuccessCount   the number of values loaded successfully
+ * @param loadFailureCount   the number of loads that failed
+ * @param totalLoadTimeNanos the time spent loading values, successfully or not
+ * @param expiryLag          the percentiles of the expiry lag
+ * @param pendingExpiries    the number of entries whose expiry is scheduled on the expiry engine
+ */
+public record TtlMapStats(long hitCount,
+                          long missCount,
+                          long putCount,
+                          long removeCount,
+                          long expiredCount,
+                          long evictionCount,
+                          long loadSuccessCount,
+                          long loadFailureCount,
+                          long totalLoadTimeNanos,
+                          ExpiryLag expiryLag,
+                          long pendingExpiries) {
+
+    /**
+     * Returns the share of reads that found a live entry.
+     *
+     * @return the hit rate, 1.0 if there were no reads
+     */
+    public double hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    /**
+     * Returns the average time spent loading a value.
+     *
+     * @return the average load time in nanoseconds, 0.0 if nothing was loaded
+     */
+    public double averageLoadPenalty() {
+        long loads = loadSuccessCount + loadFailureCount;
+        return loads == 0 ? 0.0 : (double) totalLoadTimeNanos / loads;
+    }
+
+    /**
+     * Registers the stats of a map with the platform MBean server, under
+     * {@code src.map:type=TtlMapStats,name=<name>}.
+     *
+     * @param name  the name identifying the map, quoted in the object name
+     * @param stats the source of the snapshots, e.g. {@code () -> map.stats().orElseThrow()}
+     * @return the object name of the MBean, to unregister it with
+     * @throws IllegalStateException if an MBean is already registered under the name
+     */
+    public static ObjectName registerMBean(String name, Supplier<TtlMapStats> stats) {
+        Objects.requireNonNull(stats);
+        ObjectName objectName;
+        try {
+            objectName = new ObjectName("src.map:type=TtlMapStats,name=" + ObjectName.quote(name));
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid MBean name: " + name, e);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TtlMapStatsBean(stats), objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + objectName, e);
+        }
+        return objectName;
+    }
+}
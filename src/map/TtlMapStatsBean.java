@@ -0,0 +1,95 @@
+package src.map;
+
+import java.util.function.Supplier;
+
+/**
+ * The MXBean registered by {@link TtlMapStats#registerMBean(String, Supplier)}.
+ */
+final class TtlMapStatsBean implements TtlMapStatsMXBean {
+
+    private final Supplier<TtlMapStats> stats;
+
+    TtlMapStatsBean(Supplier<TtlMapStats> stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public long getHitCount() {
+        return stats.get().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return stats.get().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return stats.get().hitRate();
+    }
+
+    @Override
+    public long getPutCount() {
+        return stats.get().putCount();
+    }
+
+    @Override
+    public long getRemoveCount() {
+        return stats.get().removeCount();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return stats.get().expiredCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return stats.get().evictionCount();
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return stats.get().loadSuccessCount();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return stats.get().loadFailureCount();
+    }
+
+    @Override
+    public long getTotalLoadTimeNanos() {
+        return stats.get().totalLoadTimeNanos();
+    }
+
+    @Override
+    public double getAverageLoadPenalty() {
+        return stats.get().averageLoadPenalty();
+    }
+
+    @Override
+    public long getExpiryLagP50Nanos() {
+        return stats.get().expiryLag().p50Nanos();
+    }
+
+    @Override
+    public long getExpiryLagP99Nanos() {
+        return stats.get().expiryLag().p99Nanos();
+    }
+
+    @Override
+    public long getExpiryLagP999Nanos() {
+        return stats.get().expiryLag().p999Nanos();
+    }
+
+    @Override
+    public long getExpiryLagMaxNanos() {
+        return stats.get().expiryLag().maxNanos();
+    }
+
+    @Override
+    public long getPendingExpiries() {
+        return stats.get().pendingExpiries();
+    }
+}
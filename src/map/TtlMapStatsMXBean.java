@@ -0,0 +1,40 @@
+package src.map;
+
+/**
+ * Exposes the {@link TtlMapStats} of a map over JMX, each attribute being read from a fresh snapshot.
+ * Registered through {@link TtlMapStats#registerMBean(String, java.util.function.Supplier)}.
+ */
+public interface TtlMapStatsMXBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRate();
+
+    long getPutCount();
+
+    long getRemoveCount();
+
+    long getExpiredCount();
+
+    long getEvictionCount();
+
+    long getLoadSuccessCount();
+
+    long getLoadFailureCount();
+
+    long getTotalLoadTimeNanos();
+
+    double getAverageLoadPenalty();
+
+    long getExpiryLagP50Nanos();
+
+    long getExpiryLagP99Nanos();
+
+    long getExpiryLagP999Nanos();
+
+    long getExpiryLagMaxNanos();
+
+    long getPendingExpiries();
+}
@@ -0,0 +1,21 @@
+package src.map;
+
+/**
+ * Computes the weight of an entry, for maps bounded by a total weight rather than a number of entries.
+ * The weight of an entry is computed once when it is put and does not change while it is in the map.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+@FunctionalInterface
+public interface Weigher<K, V> {
+
+    /**
+     * Returns the weight of the entry, e.g. its approximate size in bytes.
+     *
+     * @param key   the key of the entry
+     * @param value the value of the entry
+     * @return the weight of the entry, never negative
+     */
+    int weigh(K key, V value);
+}
@@ -0,0 +1,665 @@
+package src.map;
+
+import src.map.offheap.Serializer;
+import src.utilities.Common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of the mutations of a {@link DurableTtlMap}, split into numbered segment files in one
+ * directory.
+ * <p>
+ * Records are encoded on the thread making the mutation and appended to an in-memory batch. A single writer thread
+ * swaps the batch out, writes it to the current segment and forces it as the {@link SyncPolicy} requires, so the
+ * records appended while a write or a force is running go out together in the next one. Once a segment is larger
+ * than the segment size, the writer continues in a new one.
+ * <p>
+ * A record is the length and the CRC32C of the bytes that follow, the type, the deadline of the entry in epoch
+ * milliseconds ({@link Long#MAX_VALUE} if it never expires), the length-prefixed key and, for a put, the value.
+ * A record torn by a crash fails its checksum and ends the replay of its segment.
+ * <p>
+ * Compaction writes the live entries of the map to a snapshot named after the first segment it does not cover,
+ * then deletes the older segments and snapshots, which drops the records of expired and overwritten entries.
+ * Replay applies the newest snapshot, then the segments from its number on.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+final class WriteAheadLog<K, V> implements AutoCloseable {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(WriteAheadLog.class);
+    }
+
+    static final byte PUT = 1;
+
+    static final byte REMOVE = 2;
+
+    static final byte EXPIRE_AT = 3;
+
+    static final byte CLEAR = 4;
+
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The length and the checksum preceding the body of every record.
+     */
+    private static final int RECORD_PREFIX = 8;
+
+    /**
+     * The type, the deadline and the key length starting the body of every record.
+     */
+    private static final int RECORD_HEADER = 13;
+
+    private static final int MAX_RECORD = 1 << 30;
+
+    /**
+     * The bytes of records waiting for the writer beyond which appends wait for it to catch up.
+     */
+    private static final int MAX_PENDING = 16 << 20;
+
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    /**
+     * Receives the records of the log.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    @FunctionalInterface
+    interface RecordSink<K, V> {
+
+        /**
+         * Receives one record.
+         *
+         * @param type           the type of the record
+         * @param key            the key, null for {@link #CLEAR}
+         * @param value          the value of a {@link #PUT}, null otherwise
+         * @param deadlineMillis the deadline of a {@link #PUT} or {@link #EXPIRE_AT} in epoch milliseconds
+         */
+        void accept(byte type, K key, V value, long deadlineMillis);
+    }
+
+    private final Path directory;
+
+    private final Serializer<K> keySerializer;
+
+    private final Serializer<V> valueSerializer;
+
+    private final SyncPolicy syncPolicy;
+
+    private final long syncIntervalNanos;
+
+    private final long segmentSize;
+
+    /**
+     * The number of segments filled since the last compaction after which the trigger is run, 0 to never run it.
+     */
+    private final int compactAfterSegments;
+
+    private final Runnable compactionTrigger;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when the writer has work: records, a roll or closing.
+     */
+    private final Condition work = lock.newCondition();
+
+    /**
+     * Signalled when the writer has taken a batch, synced records, rolled the segment or failed.
+     */
+    private final Condition progress = lock.newCondition();
+
+    /**
+     * Serializes compactions.
+     */
+    private final ReentrantLock compaction = new ReentrantLock();
+
+    /**
+     * The records appended since the writer last took a batch, guarded by the lock.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * The number of records appended, guarded by the lock.
+     */
+    private long appended;
+
+    /**
+     * The number of records written and, as far as the sync policy requires, forced, guarded by the lock.
+     */
+    private long synced;
+
+    /**
+     * Whether a compaction waits for the writer to start a new segment, guarded by the lock.
+     */
+    private boolean rollRequested;
+
+    /**
+     * The number of the segment started by the last requested roll, guarded by the lock.
+     */
+    private long rolledTo;
+
+    private boolean closed;
+
+    private IOException failure;
+
+    private final Thread writer;
+
+    /**
+     * The buffer the next batch is swapped for, only used by the writer.
+     */
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+
+    private FileChannel channel;
+
+    private long segmentId;
+
+    private long segmentBytes;
+
+    /**
+     * Whether records have been written since the last force, only used by the writer.
+     */
+    private boolean dirty;
+
+    private long lastForce = System.nanoTime();
+
+    private int segmentsSinceCompaction;
+
+    /**
+     * Opens the log in the directory, passing the records found there to the sink before any new record can be
+     * appended.
+     *
+     * @throws IOException if the directory cannot be read or the first segment cannot be created
+     */
+    WriteAheadLog(Path directory,
+                  Serializer<K> keySerializer,
+                  Serializer<V> valueSerializer,
+                  SyncPolicy syncPolicy,
+                  long syncIntervalNanos,
+                  long segmentSize,
+                  int compactAfterSegments,
+                  Runnable compactionTrigger,
+                  RecordSink<K, V> replay) throws IOException {
+        this.directory = directory;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = syncIntervalNanos;
+        this.segmentSize = segmentSize;
+        this.compactAfterSegments = compactAfterSegments;
+        this.compactionTrigger = compactionTrigger;
+        Files.createDirectories(directory);
+        this.segmentId = replay(replay);
+        this.channel = openSegment(segmentId);
+        this.writer = new Thread(this::run, "ttl-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record, which the writer will write with the next batch.
+     *
+     * @return the sequence number of the record, to be passed to {@link #awaitSynced(long)}
+     * @throws IllegalStateException if the log is closed
+     * @throws UncheckedIOException  if the log failed to write earlier records
+     */
+    long append(byte type, K key, V value, long deadlineMillis) {
+        ByteBuffer record = encode(type, key, value, deadlineMillis);
+        lock.lock();
+        try {
+            while (pending.position() > MAX_PENDING && !closed && failure == null) {
+                progress.awaitUninterruptibly();
+            }
+            checkOpen();
+            if (pending.remaining() < record.remaining()) {
+                pending = grow(pending, record.remaining());
+            }
+            boolean wasEmpty = pending.position() == 0;
+            pending.put(record);
+            if (wasEmpty) {
+                work.signal();
+            }
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record of the given sequence number has been written and, as far as the sync policy requires,
+     * forced.
+     *
+     * @throws UncheckedIOException if the log failed before the record was synced
+     */
+    void awaitSynced(long sequence) {
+        lock.lock();
+        try {
+            while (synced < sequence && failure == null) {
+                progress.awaitUninterruptibly();
+            }
+            if (synced < sequence) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether mutations have to wait for their record to be synced before returning.
+     */
+    boolean syncsEveryWrite() {
+        return syncPolicy == SyncPolicy.EVERY_WRITE;
+    }
+
+    /**
+     * Replaces the segments written so far by a snapshot of the live entries, which the source passes to the sink
+     * it is given. Appends continue meanwhile, into the segments following the snapshot. The source must read the
+     * entries only once it is called, so that it sees every mutation whose record went to an earlier segment, and
+     * must pass every live entry, since the earlier segments are deleted once it returns and the snapshot has been
+     * forced. A source that fails leaves them in place.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    void compact(Consumer<RecordSink<K, V>> source) throws IOException {
+        compaction.lock();
+        try {
+            long base;
+            lock.lock();
+            try {
+                checkOpen();
+                long previous = rolledTo;
+                rollRequested = true;
+                work.signal();
+                while (rolledTo == previous && !closed && failure == null) {
+                    progress.awaitUninterruptibly();
+                }
+                checkOpen();
+                base = rolledTo;
+            } finally {
+                lock.unlock();
+            }
+            Path snapshot = directory.resolve(fileName(base, SNAPSHOT_SUFFIX));
+            Path temp = directory.resolve(fileName(base, SNAPSHOT_SUFFIX) + TEMP_SUFFIX);
+            long records = writeSnapshot(temp, source);
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteBefore(base);
+            LOGGER.fine(() -> String.format(
+                    "Thread:%s => Compacted the log into %d records of %s",
+                    Common.getThreadName(),
+                    records,
+                    snapshot
+            ));
+        } finally {
+            compaction.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces the records appended so far, then stops the writer.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            work.signal();
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Write-ahead log is closed");
+        }
+    }
+
+    /**
+     * Takes the batches of records and writes them until the log is closed.
+     */
+    private void run() {
+        try {
+            boolean done = false;
+            while (!done) {
+                ByteBuffer batch;
+                long batchEnd;
+                boolean roll;
+                lock.lock();
+                try {
+                    while (pending.position() == 0 && !rollRequested && !closed) {
+                        if (!dirty || syncPolicy != SyncPolicy.INTERVAL) {
+                            work.awaitUninterruptibly();
+                        } else {
+                            long wait = lastForce + syncIntervalNanos - System.nanoTime();
+                            if (wait <= 0) {
+                                break;
+                            }
+                            work.awaitNanos(wait);
+                        }
+                    }
+                    batch = pending;
+                    pending = spare;
+                    batchEnd = appended;
+                    roll = rollRequested;
+                    rollRequested = false;
+                    done = closed && !roll;
+                    progress.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                write(batch.flip());
+                spare = batch.clear();
+                if (done || syncPolicy == SyncPolicy.EVERY_WRITE
+                        || (syncPolicy == SyncPolicy.INTERVAL && System.nanoTime() - lastForce >= syncIntervalNanos)) {
+                    force();
+                }
+                boolean compact = false;
+                if (roll || (segmentBytes >= segmentSize && !done)) {
+                    roll();
+                    if (roll) {
+                        segmentsSinceCompaction = 0;
+                    } else {
+                        compact = compactAfterSegments > 0 && ++segmentsSinceCompaction >= compactAfterSegments;
+                    }
+                }
+                lock.lock();
+                try {
+                    synced = batchEnd;
+                    if (roll) {
+                        rolledTo = segmentId;
+                    }
+                    progress.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (compact) {
+                    compactionTrigger.run();
+                }
+            }
+            channel.close();
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "Write-ahead log failed", e);
+            lock.lock();
+            try {
+                failure = e instanceof IOException io ? io : new IOException(e);
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(ByteBuffer batch) throws IOException {
+        segmentBytes += batch.remaining();
+        dirty |= batch.hasRemaining();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+    }
+
+    private void force() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+        lastForce = System.nanoTime();
+    }
+
+    /**
+     * Closes the current segment, forced unless the operating system decides, and starts the next one.
+     */
+    private void roll() throws IOException {
+        if (syncPolicy != SyncPolicy.OS) {
+            force();
+        }
+        channel.close();
+        channel = openSegment(++segmentId);
+        segmentBytes = 0;
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(directory.resolve(fileName(id, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private ByteBuffer encode(byte type, K key, V value, long deadlineMillis) {
+        ByteBuffer buffer = SCRATCH.get();
+        while (true) {
+            try {
+                buffer.clear().position(RECORD_PREFIX);
+                buffer.put(type).putLong(deadlineMillis);
+                int keyLengthAt = buffer.position();
+                buffer.putInt(0);
+                if (key != null) {
+                    keySerializer.serialize(key, buffer);
+                    buffer.putInt(keyLengthAt, buffer.position() - keyLengthAt - Integer.BYTES);
+                }
+                if (value != null) {
+                    valueSerializer.serialize(value, buffer);
+                }
+                break;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= MAX_RECORD) {
+                    throw new IllegalArgumentException("Record larger than " + MAX_RECORD + " bytes");
+                }
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                SCRATCH.set(buffer);
+            }
+        }
+        int length = buffer.position() - RECORD_PREFIX;
+        CRC32C crc = CRC.get();
+        crc.reset();
+        crc.update(buffer.array(), RECORD_PREFIX, length);
+        buffer.putInt(0, length).putInt(Integer.BYTES, (int) crc.getValue());
+        return buffer.flip();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) {
+            capacity *= 2;
+        }
+        return ByteBuffer.allocate(capacity).put(buffer.flip());
+    }
+
+    private long writeSnapshot(Path temp, Consumer<RecordSink<K, V>> source) throws IOException {
+        long[] records = new long[1];
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            try {
+                source.accept((type, key, value, deadlineMillis) -> {
+                    ByteBuffer record = encode(type, key, value, deadlineMillis);
+                    try {
+                        if (buffer.remaining() < record.remaining()) {
+                            writeFully(out, buffer.flip());
+                            buffer.clear();
+                        }
+                        if (buffer.remaining() < record.remaining()) {
+                            writeFully(out, record);
+                        } else {
+                            buffer.put(record);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    records[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writeFully(out, buffer.flip());
+            out.force(true);
+        }
+        return records[0];
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the newest snapshot and the segments following it, and deletes the files they replace.
+     *
+     * @return the number of the segment to append to next
+     */
+    private long replay(RecordSink<K, V> sink) throws IOException {
+        deleteTemporaryFiles();
+        TreeMap<Long, Path> snapshots = list(SNAPSHOT_SUFFIX);
+        TreeMap<Long, Path> segments = list(SEGMENT_SUFFIX);
+        long base = 0;
+        if (!snapshots.isEmpty()) {
+            base = snapshots.lastKey();
+            read(snapshots.lastEntry().getValue(), sink);
+        }
+        for (Path segment : segments.tailMap(base, true).values()) {
+            if (Files.size(segment) == 0) {
+                Files.delete(segment);
+            } else {
+                read(segment, sink);
+            }
+        }
+        deleteBefore(base);
+        return Math.max(base, segments.isEmpty() ? 0 : segments.lastKey()) + 1;
+    }
+
+    private void read(Path file, RecordSink<K, V> sink) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            CRC32C crc = new CRC32C();
+            byte[] body = new byte[256];
+            long offset = 0;
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < RECORD_HEADER || length > MAX_RECORD) {
+                    warnTorn(file, offset);
+                    return;
+                }
+                if (body.length < length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                try {
+                    in.readFully(body, 0, length);
+                } catch (EOFException e) {
+                    warnTorn(file, offset);
+                    return;
+                }
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    warnTorn(file, offset);
+                    return;
+                }
+                ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+                byte type = record.get();
+                long deadlineMillis = record.getLong();
+                int keyLength = record.getInt();
+                K key = type == CLEAR ? null : keySerializer.deserialize(record.slice(record.position(), keyLength));
+                record.position(record.position() + keyLength);
+                V value = type == PUT ? valueSerializer.deserialize(record.slice()) : null;
+                sink.accept(type, key, value, deadlineMillis);
+                offset += RECORD_PREFIX + length;
+            }
+        }
+    }
+
+    private static void warnTorn(Path file, long offset) {
+        LOGGER.warning(String.format("Ignoring the torn end of %s from byte %d", file, offset));
+    }
+
+    private TreeMap<Long, Path> list(String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(0, name.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Ignoring unexpected file " + file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Deletes the segments and snapshots numbered below the given segment, which the snapshot of that number
+     * replaces.
+     */
+    private void deleteBefore(long base) throws IOException {
+        for (String suffix : new String[]{SEGMENT_SUFFIX, SNAPSHOT_SUFFIX}) {
+            for (Map.Entry<Long, Path> e : list(suffix).headMap(base, false).entrySet()) {
+                Files.deleteIfExists(e.getValue());
+            }
+        }
+    }
+
+    private void deleteTemporaryFiles() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static String fileName(long id, String suffix) {
+        return String.format("%019d%s", id, suffix);
+    }
+}
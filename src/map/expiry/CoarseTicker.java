@@ -0,0 +1,73 @@
+package src.map.expiry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ticker whose time is refreshed by a background daemon thread at a fixed resolution, so that reading it is a
+ * single volatile load instead of a clock call. The time read can lag behind the real time by about the
+ * resolution, which only delays expiry by as much.
+ */
+public final class CoarseTicker implements Ticker, AutoCloseable {
+
+    /**
+     * The default resolution in milliseconds.
+     */
+    public static final long DEFAULT_RESOLUTION_MILLIS = 1;
+
+    private static final class DefaultHolder {
+        private static final CoarseTicker INSTANCE =
+                new CoarseTicker(DEFAULT_RESOLUTION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private final long origin = System.nanoTime();
+
+    private final long resolutionNanos;
+
+    private final Thread thread;
+
+    private volatile long now;
+
+    private volatile boolean running = true;
+
+    public CoarseTicker(long resolution, TimeUnit unit) {
+        this.resolutionNanos = unit.toNanos(resolution);
+        if (resolutionNanos <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive: " + resolution + " " + unit);
+        }
+        this.thread = new Thread(this::run, "ttl-coarse-ticker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the process-wide ticker with a resolution of {@value #DEFAULT_RESOLUTION_MILLIS} millisecond,
+     * starting its thread on first use.
+     *
+     * @return the default coarse ticker
+     */
+    public static CoarseTicker getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    @Override
+    public long read() {
+        return now;
+    }
+
+    /**
+     * Stops refreshing the time. The default ticker is shared and should not be closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            now = System.nanoTime() - origin;
+            LockSupport.parkNanos(this, resolutionNanos);
+        }
+    }
+}
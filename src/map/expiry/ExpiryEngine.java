@@ -0,0 +1,47 @@
+package src.map.expiry;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An expiry engine keeps track of deadlines for the items handed to it and reports the items whose deadline
+ * has passed to the {@link ExpiryHandler} it was created with.
+ * Maps use it in place of scheduling one executor task per key.
+ *
+ * @param <T> the type of the items being tracked
+ */
+public interface ExpiryEngine<T> extends AutoCloseable {
+
+    /**
+     * Starts tracking the given item, which will be reported as expired once the delay has elapsed.
+     *
+     * @param item  the item to track
+     * @param delay the time from now after which the item expires
+     * @param unit  the unit of the delay
+     * @return a handle that can be used to cancel or reschedule the expiry of the item
+     */
+    ExpiryHandle schedule(T item, long delay, TimeUnit unit);
+
+    /**
+     * Starts tracking all the given items, which will be reported as expired once the delay has elapsed.
+     * Engines override this to insert the whole batch at once.
+     *
+     * @param items the items to track
+     * @param delay the time from now after which the items expire
+     * @param unit  the unit of the delay
+     * @return the handles of the items, in the order of the list
+     */
+    default ExpiryHandle[] scheduleAll(List<? extends T> items, long delay, TimeUnit unit) {
+        ExpiryHandle[] handles = new ExpiryHandle[items.size()];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = schedule(items.get(i), delay, unit);
+        }
+        return handles;
+    }
+
+    /**
+     * Stops the engine. Pending items are discarded without being reported.
+     */
+    @Override
+    void close();
+}
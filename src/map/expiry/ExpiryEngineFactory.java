@@ -0,0 +1,18 @@
+package src.map.expiry;
+
+/**
+ * Creates the expiry engine used by a map, so that the engine can be chosen when the map is constructed,
+ * e.g. {@code new MapWithTtlV3<>(ScheduledExecutorExpiryEngine::new)}.
+ */
+@FunctionalInterface
+public interface ExpiryEngineFactory {
+
+    /**
+     * Creates an engine that reports expired items to the given handler.
+     *
+     * @param <T>     the type of the items being tracked
+     * @param handler the handler to be notified of expired items
+     * @return a new expiry engine
+     */
+    <T> ExpiryEngine<T> create(ExpiryHandler<T> handler);
+}
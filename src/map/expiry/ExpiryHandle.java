@@ -0,0 +1,25 @@
+package src.map.expiry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle to an item scheduled on an {@link ExpiryEngine}.
+ */
+public interface ExpiryHandle {
+
+    /**
+     * Cancels the expiry of the item.
+     *
+     * @return true if the item was still pending, false if it already expired or was cancelled before
+     */
+    boolean cancel();
+
+    /**
+     * Moves the deadline of the item to the given delay from now.
+     *
+     * @param delay the new time from now after which the item expires
+     * @param unit  the unit of the delay
+     * @return true if the item was still pending and has been rescheduled, false otherwise
+     */
+    boolean reschedule(long delay, TimeUnit unit);
+}
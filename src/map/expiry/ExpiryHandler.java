@@ -0,0 +1,21 @@
+package src.map.expiry;
+
+import java.util.List;
+
+/**
+ * Receives the items whose deadline has passed.
+ * Engines report all the items that came due in the same tick as one batch.
+ *
+ * @param <T> the type of the expired items
+ */
+@FunctionalInterface
+public interface ExpiryHandler<T> {
+
+    /**
+     * Called with a batch of expired items.
+     * The list is only valid for the duration of the call and must not be retained.
+     *
+     * @param expired the items that have expired
+     */
+    void onExpired(List<T> expired);
+}
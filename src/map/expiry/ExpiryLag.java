@@ -0,0 +1,14 @@
+package src.map.expiry;
+
+/**
+ * A snapshot of a {@link LagHistogram} of the time between the deadline of entries and their removal.
+ * The percentiles are accurate to about 3%.
+ *
+ * @param count     the number of expirations recorded
+ * @param p50Nanos  the median lag
+ * @param p99Nanos  the 99th percentile of the lag
+ * @param p999Nanos the 99.9th percentile of the lag
+ * @param maxNanos  the largest lag recorded
+ */
+public record ExpiryLag(long count, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+}
@@ -0,0 +1,12 @@
+package src.map.expiry;
+
+/**
+ * A snapshot of the expiry work done for one map registered with a {@link SharedExpiryService}.
+ *
+ * @param scheduled        the number of items scheduled, including those cancelled or rescheduled since
+ * @param expired          the number of expired items reported to the handler of the map
+ * @param batches          the number of batches reported to the handler
+ * @param handlerTimeNanos the wall clock time spent in the handler
+ */
+public record ExpiryStats(long scheduled, long expired, long batches, long handlerTimeNanos) {
+}
@@ -0,0 +1,136 @@
+package src.map.expiry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of durations in nanoseconds, laid out like an HdrHistogram.
+ * <p>
+ * Durations under {@value #SUB_BUCKETS}ns each get their own bucket. Above, every power of two is split into
+ * {@value #HALF_SUB_BUCKETS} equal buckets, so a duration is known to within about 3% whatever its magnitude.
+ * Durations of {@code 2^46}ns (about 19.5 hours) and more are counted in the last bucket. The maximum is kept
+ * exactly.
+ * <p>
+ * Recording is a handful of shifts and one atomic increment, and never allocates. Snapshots may miss durations
+ * recorded while they are taken.
+ */
+public final class LagHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private static final int MAX_VALUE_BITS = 46;
+
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration. Negative durations are counted as 0.
+     *
+     * @param nanos the duration to record
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.getAndIncrement(indexOf(value));
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Another thread raised the maximum, compare again
+        }
+    }
+
+    /**
+     * Returns the number of durations recorded so far.
+     *
+     * @return the total count
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the duration at or below which the given share of the recorded durations lie, rounded up to the
+     * highest duration of its bucket and capped by the maximum recorded.
+     *
+     * @param percentile the share of durations, between 0 and 100
+     * @return the duration at the percentile in nanoseconds, 0 if nothing was recorded
+     */
+    public long valueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return valueAtPercentile(snapshot, total, percentile);
+    }
+
+    /**
+     * Returns the count and the usual percentiles of the durations recorded so far.
+     *
+     * @return a snapshot of this histogram
+     */
+    public ExpiryLag snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return new ExpiryLag(
+                total,
+                valueAtPercentile(snapshot, total, 50),
+                valueAtPercentile(snapshot, total, 99),
+                valueAtPercentile(snapshot, total, 99.9),
+                max.get());
+    }
+
+    private long valueAtPercentile(long[] snapshot, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_VALUE_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift) - HALF_SUB_BUCKETS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,42 @@
+package src.map.expiry;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ticker that only moves when told to, for deterministic tests of expiry.
+ * Entries of a map using it expire on reads as soon as it has been advanced past their deadline;
+ * background expiry engines still run in real time and only remove entries once both clocks agree.
+ */
+public final class ManualTicker implements Ticker {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Override
+    public long read() {
+        return now.get();
+    }
+
+    /**
+     * Moves the time forward.
+     *
+     * @param duration the time to move by
+     * @param unit     the unit of the duration
+     */
+    public void advance(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("A ticker cannot go back in time: " + duration + " " + unit);
+        }
+        now.addAndGet(unit.toNanos(duration));
+    }
+
+    /**
+     * Moves the time forward.
+     *
+     * @param duration the time to move by
+     */
+    public void advance(Duration duration) {
+        advance(duration.toNanos(), TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,40 @@
+package src.map.expiry;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * The settings of a {@link SamplingSweeper}.
+ *
+ * @param sampleSize        the number of random entries checked per iteration
+ * @param expiredThreshold  the share of expired entries in a sample above which another iteration is run
+ *                          within the same cycle
+ * @param interval          the time between the start of two cycles
+ * @param cycleBudget       the longest a cycle may keep iterating before it yields until the next interval
+ */
+public record SamplingConfig(int sampleSize, double expiredThreshold, Duration interval, Duration cycleBudget) {
+
+    /**
+     * Samples 20 entries ten times a second and keeps going while more than 25% of them have expired,
+     * for at most 25ms per cycle.
+     */
+    public static final SamplingConfig DEFAULT =
+            new SamplingConfig(20, 0.25, Duration.ofMillis(100), Duration.ofMillis(25));
+
+    public SamplingConfig {
+        Objects.requireNonNull(interval);
+        Objects.requireNonNull(cycleBudget);
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("Sample size must be positive: " + sampleSize);
+        }
+        if (expiredThreshold < 0 || expiredThreshold >= 1) {
+            throw new IllegalArgumentException("Expired threshold must be in [0, 1): " + expiredThreshold);
+        }
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        if (cycleBudget.isNegative()) {
+            throw new IllegalArgumentException("Cycle budget must not be negative: " + cycleBudget);
+        }
+    }
+}
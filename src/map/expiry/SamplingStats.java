@@ -0,0 +1,21 @@
+package src.map.expiry;
+
+/**
+ * A snapshot of the work done by a {@link SamplingSweeper} since it was started.
+ *
+ * @param cycles                the number of cycles run
+ * @param iterations            the number of samples taken over all cycles
+ * @param sampled               the number of entries checked
+ * @param expired               the number of expired entries found and removed
+ * @param budgetExhaustedCycles the number of cycles cut short by the cycle budget while the expired share was
+ *                              still above the threshold
+ * @param cpuTimeNanos          the CPU time spent sweeping, or the wall clock time if the JVM cannot measure
+ *                              thread CPU time
+ */
+public record SamplingStats(long cycles,
+                            long iterations,
+                            long sampled,
+                            long expired,
+                            long budgetExhaustedCycles,
+                            long cpuTimeNanos) {
+}
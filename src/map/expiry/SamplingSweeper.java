@@ -0,0 +1,157 @@
+package src.map.expiry;
+
+import src.utilities.Common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes expired entries in the background by sampling, in the way Redis expires keys actively.
+ * <p>
+ * Once per interval a cycle starts, which checks {@link SamplingConfig#sampleSize()} random entries and removes
+ * the expired ones. While more than {@link SamplingConfig#expiredThreshold()} of a sample had expired, the cycle
+ * takes another sample, until it runs out of its {@link SamplingConfig#cycleBudget()}. This keeps the share of
+ * expired entries left in memory around the threshold without tracking each deadline.
+ */
+public class SamplingSweeper implements AutoCloseable {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(SamplingSweeper.class);
+    }
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The table being swept.
+     */
+    @FunctionalInterface
+    public interface Target {
+
+        /**
+         * Checks up to the given number of random entries and removes the expired ones.
+         *
+         * @param count  the number of entries to check
+         * @param random the source of randomness to pick the entries with
+         * @return the number of entries checked and removed
+         */
+        Sample sampleAndExpire(int count, SplittableRandom random);
+    }
+
+    /**
+     * The outcome of one sample.
+     *
+     * @param sampled the number of entries checked, lower than requested if the table is nearly empty
+     * @param expired the number of expired entries removed
+     */
+    public record Sample(int sampled, int expired) {
+    }
+
+    private final Target target;
+
+    private final SamplingConfig config;
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    private final Thread thread;
+
+    private final boolean cpuTimeSupported;
+
+    private volatile boolean running = true;
+
+    // Only written by the sweeper thread
+    private volatile long cycles;
+
+    private volatile long iterations;
+
+    private volatile long sampled;
+
+    private volatile long expired;
+
+    private volatile long budgetExhaustedCycles;
+
+    private volatile long cpuTimeNanos;
+
+    public SamplingSweeper(Target target, SamplingConfig config, String name) {
+        this.target = target;
+        this.config = config;
+        this.cpuTimeSupported = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the work done so far.
+     *
+     * @return a snapshot of the counters of this sweeper
+     */
+    public SamplingStats stats() {
+        return new SamplingStats(cycles, iterations, sampled, expired, budgetExhaustedCycles, cpuTimeNanos);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        long intervalNanos = config.interval().toNanos();
+        long next = System.nanoTime() + intervalNanos;
+        while (running) {
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            next += intervalNanos;
+            try {
+                runCycle();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Sampling cycle failed", e);
+            }
+        }
+    }
+
+    private void runCycle() {
+        long start = System.nanoTime();
+        long cpuStart = cpuTime(start);
+        long deadline = start + config.cycleBudget().toNanos();
+        int cycleExpired = 0;
+        boolean again;
+        do {
+            Sample sample = target.sampleAndExpire(config.sampleSize(), random);
+            iterations++;
+            sampled += sample.sampled();
+            expired += sample.expired();
+            cycleExpired += sample.expired();
+            again = sample.sampled() > 0 && sample.expired() > sample.sampled() * config.expiredThreshold();
+            if (again && System.nanoTime() - deadline >= 0) {
+                budgetExhaustedCycles++;
+                break;
+            }
+        } while (again);
+        cycles++;
+        long end = System.nanoTime();
+        cpuTimeNanos += cpuTime(end) - cpuStart;
+        if (cycleExpired > 0) {
+            int finalExpired = cycleExpired;
+            LOGGER.fine(() -> String.format(
+                    "Thread:%s => %d keys removed due to TTL in %d us.",
+                    Common.getThreadName(),
+                    finalExpired,
+                    (end - start) / 1000
+            ));
+        }
+    }
+
+    private long cpuTime(long wallClock) {
+        return cpuTimeSupported ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : wallClock;
+    }
+}
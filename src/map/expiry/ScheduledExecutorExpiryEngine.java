@@ -0,0 +1,81 @@
+package src.map.expiry;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An expiry engine that submits one task per item to a {@link ScheduledThreadPoolExecutor}.
+ * This is the approach {@code MapWithTtlV3} originally used; every schedule and cancel costs O(log n) in the
+ * executor's delay queue and every pending item holds a task object.
+ * It is kept as a baseline to compare other engines against.
+ *
+ * @param <T> the type of the items being tracked
+ */
+public class ScheduledExecutorExpiryEngine<T> implements ExpiryEngine<T> {
+
+    /**
+     * The default number of threads of the underlying executor.
+     */
+    public static final int DEFAULT_POOL_SIZE = 12;
+
+    private final ExpiryHandler<T> handler;
+
+    private final ScheduledExecutorService executor;
+
+    public ScheduledExecutorExpiryEngine(ExpiryHandler<T> handler) {
+        this(handler, DEFAULT_POOL_SIZE);
+    }
+
+    public ScheduledExecutorExpiryEngine(ExpiryHandler<T> handler, int poolSize) {
+        this.handler = handler;
+        this.executor = new ScheduledThreadPoolExecutor(poolSize);
+    }
+
+    @Override
+    public ExpiryHandle schedule(T item, long delay, TimeUnit unit) {
+        Task task = new Task(item);
+        task.future = executor.schedule(task, delay, unit);
+        return task;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The task scheduled for a single item, which doubles as its handle.
+     */
+    private final class Task implements ExpiryHandle, Runnable {
+
+        private final T item;
+
+        private volatile ScheduledFuture<?> future;
+
+        private Task(T item) {
+            this.item = item;
+        }
+
+        @Override
+        public void run() {
+            handler.onExpired(List.of(item));
+        }
+
+        @Override
+        public boolean cancel() {
+            return future.cancel(false);
+        }
+
+        @Override
+        public boolean reschedule(long delay, TimeUnit unit) {
+            if (!future.cancel(false)) {
+                return false;
+            }
+            future = executor.schedule(this, delay, unit);
+            return true;
+        }
+    }
+}
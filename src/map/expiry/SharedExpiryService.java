@@ -0,0 +1,272 @@
+package src.map.expiry;
+
+import src.utilities.Common;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the deadlines of many maps with a single {@link TimingWheelExpiryEngine} and runs their expiry handlers
+ * on a bounded pool of workers, so that the number of threads does not grow with the number of maps.
+ * <p>
+ * A map registers through {@link #register(ExpiryHandler)}, which can serve as an {@link ExpiryEngineFactory},
+ * e.g. {@code new MapWithTtlV3<>(SharedExpiryService.getDefault()::register)}. The wheel thread splits every batch
+ * of expired items by registration and queues each part on its registration. A registration delivers its queued
+ * parts one at a time on one worker, in the order they expired, so the handler of a map never runs concurrently
+ * with itself and needs no more thread-safety than the map already has. When all workers are busy and the queue
+ * is full, the wheel thread runs the handler itself, which slows the wheel down instead of dropping items.
+ * <p>
+ * Every registration counts the items scheduled and expired through it and the time spent in its handler.
+ * All threads are daemon threads.
+ */
+public final class SharedExpiryService implements AutoCloseable {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(SharedExpiryService.class);
+    }
+
+    /**
+     * The default number of workers running expiry handlers, at most 4.
+     */
+    public static final int DEFAULT_WORKERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The default number of batches waiting for a worker.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final class DefaultHolder {
+        private static final SharedExpiryService INSTANCE =
+                new SharedExpiryService(DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    private final TimingWheelExpiryEngine<Scheduled<?>> wheel;
+
+    private final ThreadPoolExecutor workers;
+
+    private final Set<Registration<?>> registrations = ConcurrentHashMap.newKeySet();
+
+    public SharedExpiryService(int workers, int queueCapacity) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Workers must be positive: " + workers);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.workers.allowCoreThreadTimeOut(true);
+        this.wheel = new TimingWheelExpiryEngine<>(this::dispatch);
+    }
+
+    /**
+     * Returns the process-wide service with {@link #DEFAULT_WORKERS} workers, starting its wheel on first use.
+     *
+     * @return the default shared expiry service
+     */
+    public static SharedExpiryService getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Registers a map whose expired items are to be reported to the given handler.
+     *
+     * @param <T>     the type of the items being tracked
+     * @param handler the handler to be notified of expired items, on a worker thread, one batch at a time
+     * @return the registration, which schedules items like an expiry engine
+     */
+    public <T> Registration<T> register(ExpiryHandler<T> handler) {
+        Registration<T> registration = new Registration<>(this, handler);
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Returns the registrations that have not been closed, e.g. to read their statistics.
+     *
+     * @return a snapshot of the open registrations
+     */
+    public List<Registration<?>> registrations() {
+        return new ArrayList<>(registrations);
+    }
+
+    /**
+     * Stops the wheel and the workers. Pending items are discarded without being reported.
+     * The default service is shared and should not be closed.
+     */
+    @Override
+    public void close() {
+        wheel.close();
+        workers.shutdownNow();
+        registrations.clear();
+    }
+
+    /**
+     * Splits a batch reported by the wheel by registration and queues each part on its registration.
+     * Called on the wheel thread.
+     */
+    private void dispatch(List<Scheduled<?>> expired) {
+        Map<Registration<?>, List<Object>> batches = new IdentityHashMap<>();
+        for (Scheduled<?> scheduled : expired) {
+            if (!scheduled.registration.closed) {
+                batches.computeIfAbsent(scheduled.registration, r -> new ArrayList<>()).add(scheduled.item);
+            }
+        }
+        for (Map.Entry<Registration<?>, List<Object>> batch : batches.entrySet()) {
+            batch.getKey().enqueue(batch.getValue());
+        }
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "ttl-expiry-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A map registered with the service. Schedules its items on the shared wheel and keeps the statistics of the
+     * map. Closing it unregisters the map; items still pending are dropped when they come due.
+     *
+     * @param <T> the type of the items being tracked
+     */
+    public static final class Registration<T> implements ExpiryEngine<T> {
+
+        private final SharedExpiryService service;
+
+        private final ExpiryHandler<T> handler;
+
+        private final LongAdder scheduled = new LongAdder();
+
+        private final LongAdder expired = new LongAdder();
+
+        private final LongAdder batches = new LongAdder();
+
+        private final LongAdder handlerTimeNanos = new LongAdder();
+
+        /**
+         * The batches waiting to be delivered, in the order they expired.
+         */
+        private final ConcurrentLinkedQueue<List<Object>> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Whether a drain has been handed to the workers and not finished yet.
+         */
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        private volatile boolean closed;
+
+        private Registration(SharedExpiryService service, ExpiryHandler<T> handler) {
+            this.service = service;
+            this.handler = handler;
+        }
+
+        @Override
+        public ExpiryHandle schedule(T item, long delay, TimeUnit unit) {
+            scheduled.increment();
+            return service.wheel.schedule(new Scheduled<>(this, item), delay, unit);
+        }
+
+        @Override
+        public ExpiryHandle[] scheduleAll(List<? extends T> items, long delay, TimeUnit unit) {
+            scheduled.add(items.size());
+            // Wraps the items as the wheel inserts them, rather than copying the batch
+            return service.wheel.scheduleAll(new AbstractList<Scheduled<T>>() {
+                @Override
+                public Scheduled<T> get(int index) {
+                    return new Scheduled<>(Registration.this, items.get(index));
+                }
+
+                @Override
+                public int size() {
+                    return items.size();
+                }
+            }, delay, unit);
+        }
+
+        /**
+         * Returns the expiry work done for this registration so far.
+         *
+         * @return a snapshot of the counters of this registration
+         */
+        public ExpiryStats stats() {
+            return new ExpiryStats(scheduled.sum(), expired.sum(), batches.sum(), handlerTimeNanos.sum());
+        }
+
+        /**
+         * Unregisters the map. Its handler is not called anymore, although a batch already handed to a worker may
+         * still be delivered.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            service.registrations.remove(this);
+        }
+
+        /**
+         * Queues a batch and makes sure a drain is scheduled. Called on the wheel thread.
+         */
+        private void enqueue(List<Object> items) {
+            pending.add(items);
+            if (draining.compareAndSet(false, true)) {
+                service.workers.execute(this::drain);
+            }
+        }
+
+        /**
+         * Delivers the queued batches until the queue is empty. Only one drain runs at a time.
+         */
+        private void drain() {
+            do {
+                List<Object> items;
+                while ((items = pending.poll()) != null) {
+                    deliver(items);
+                }
+                draining.set(false);
+                // A batch queued after the last poll may have found the drain still running
+            } while (!pending.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliver(List<Object> items) {
+            if (closed) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                handler.onExpired((List<T>) items);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Expiry handler failed", e);
+            }
+            handlerTimeNanos.add(System.nanoTime() - start);
+            expired.add(items.size());
+            batches.increment();
+        }
+    }
+
+    /**
+     * An item scheduled on the shared wheel, along with the registration it belongs to.
+     */
+    private record Scheduled<T>(Registration<T> registration, T item) {
+    }
+}
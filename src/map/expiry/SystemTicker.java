@@ -0,0 +1,15 @@
+package src.map.expiry;
+
+/**
+ * The ticker returned by {@link Ticker#system()}.
+ */
+enum SystemTicker implements Ticker {
+    INSTANCE;
+
+    private static final long ORIGIN = System.nanoTime();
+
+    @Override
+    public long read() {
+        return System.nanoTime() - ORIGIN;
+    }
+}
@@ -0,0 +1,36 @@
+package src.map.expiry;
+
+/**
+ * A source of time for expiry decisions, read as a primitive so that comparing deadlines does not allocate.
+ * Values are nanoseconds since an arbitrary origin fixed by the ticker; they never decrease and never go negative,
+ * and are only meaningful compared to other values of the same ticker.
+ */
+@FunctionalInterface
+public interface Ticker {
+
+    /**
+     * Returns the current time of this ticker.
+     *
+     * @return the nanoseconds elapsed since the origin of this ticker
+     */
+    long read();
+
+    /**
+     * Returns a ticker backed by {@link System#nanoTime()}, precise but paying for a clock read on every call.
+     *
+     * @return the system ticker
+     */
+    static Ticker system() {
+        return SystemTicker.INSTANCE;
+    }
+
+    /**
+     * Returns the process-wide {@link CoarseTicker}, which is updated every millisecond by a background thread.
+     *
+     * @return the default coarse ticker
+     */
+    static Ticker coarse() {
+        return CoarseTicker.getDefault();
+    }
+}
+
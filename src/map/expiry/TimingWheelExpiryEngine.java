@@ -0,0 +1,368 @@
+package src.map.expiry;
+
+import src.utilities.Common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An expiry engine built on a hierarchical hashed timing wheel.
+ * <p>
+ * Time is divided into ticks. The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots each, where a slot
+ * on level {@code n} spans {@code 64^n} ticks, so a deadline of up to {@code 2^36} ticks away (about 795 days with
+ * the default 1ms tick) is placed in a slot with a few shifts. Each slot is an intrusive doubly linked list,
+ * which makes schedule, cancel and reschedule O(1). A single daemon thread advances the wheel once per tick,
+ * moves the entries of a higher level slot down when its time comes, and reports everything that came due
+ * in the tick to the handler as one batch.
+ * <p>
+ * The wheel is striped by the scheduling thread so that concurrent callers rarely share a lock.
+ *
+ * @param <T> the type of the items being tracked
+ */
+public class TimingWheelExpiryEngine<T> implements ExpiryEngine<T> {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(TimingWheelExpiryEngine.class);
+    }
+
+    /**
+     * The default duration of a tick in milliseconds.
+     */
+    public static final long DEFAULT_TICK_MILLIS = 1;
+
+    static final int SLOT_BITS = 6;
+
+    static final int SLOTS = 1 << SLOT_BITS;
+
+    static final int SLOT_MASK = SLOTS - 1;
+
+    static final int LEVELS = 6;
+
+    /**
+     * The furthest distance in ticks covered by the wheel. Items further away are parked in the top level and
+     * placed again when that slot is reached.
+     */
+    static final long MAX_SPAN = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static final int PENDING = 0;
+
+    private static final int CANCELLED = 1;
+
+    private static final int EXPIRED = 2;
+
+    private final ExpiryHandler<T> handler;
+
+    private final long tickNanos;
+
+    private final long startNanos;
+
+    private final Stripe<T>[] stripes;
+
+    private final Thread worker;
+
+    private volatile boolean running = true;
+
+    public TimingWheelExpiryEngine(ExpiryHandler<T> handler) {
+        this(handler, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public TimingWheelExpiryEngine(ExpiryHandler<T> handler, long tickDuration, TimeUnit unit) {
+        this.handler = handler;
+        this.tickNanos = unit.toNanos(tickDuration);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration + " " + unit);
+        }
+        int stripeCount = 1;
+        while (stripeCount < Runtime.getRuntime().availableProcessors()) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe<>(this);
+        }
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, "ttl-timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public ExpiryHandle schedule(T item, long delay, TimeUnit unit) {
+        Stripe<T> stripe = stripes[stripeIndex()];
+        Node<T> node = new Node<>(item, stripe);
+        long deadlineTick = deadlineTick(delay, unit);
+        stripe.lock();
+        try {
+            node.deadlineTick = deadlineTick;
+            stripe.insert(node);
+        } finally {
+            stripe.unlock();
+        }
+        return node;
+    }
+
+    /**
+     * Inserts the whole batch into the stripe of the calling thread under one lock, with one deadline.
+     */
+    @Override
+    public ExpiryHandle[] scheduleAll(List<? extends T> items, long delay, TimeUnit unit) {
+        Stripe<T> stripe = stripes[stripeIndex()];
+        ExpiryHandle[] handles = new ExpiryHandle[items.size()];
+        long deadlineTick = deadlineTick(delay, unit);
+        stripe.lock();
+        try {
+            for (int i = 0; i < handles.length; i++) {
+                Node<T> node = new Node<>(items.get(i), stripe);
+                node.deadlineTick = deadlineTick;
+                stripe.insert(node);
+                handles[i] = node;
+            }
+        } finally {
+            stripe.unlock();
+        }
+        return handles;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * Converts a delay from now into the first tick at which it has fully elapsed.
+     */
+    private long deadlineTick(long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay));
+        if (deadline < 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.ceilDiv(deadline, tickNanos);
+    }
+
+    private int stripeIndex() {
+        long id = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32) & (stripes.length - 1);
+    }
+
+    /**
+     * The loop of the wheel thread: sleep until the next tick, advance every stripe up to the current tick and
+     * hand the collected items to the handler.
+     */
+    private void run() {
+        List<T> expired = new ArrayList<>();
+        long tick = 0;
+        while (running) {
+            long sleep = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            tick = (System.nanoTime() - startNanos) / tickNanos;
+            for (Stripe<T> stripe : stripes) {
+                stripe.advanceTo(tick, expired);
+            }
+            if (!expired.isEmpty()) {
+                try {
+                    handler.onExpired(expired);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Expiry handler failed", e);
+                }
+                expired.clear();
+            }
+        }
+    }
+
+    /**
+     * One independent wheel guarded by its own lock.
+     *
+     * @param <T> the type of the items being tracked
+     */
+    private static final class Stripe<T> extends ReentrantLock {
+
+        private final TimingWheelExpiryEngine<T> engine;
+
+        private final Node<T>[][] slots;
+
+        private long currentTick;
+
+        @SuppressWarnings("unchecked")
+        private Stripe(TimingWheelExpiryEngine<T> engine) {
+            this.engine = engine;
+            this.slots = new Node[LEVELS][SLOTS];
+            for (Node<T>[] level : slots) {
+                for (int i = 0; i < SLOTS; i++) {
+                    Node<T> sentinel = new Node<>(null, this);
+                    sentinel.prev = sentinel;
+                    sentinel.next = sentinel;
+                    level[i] = sentinel;
+                }
+            }
+        }
+
+        /**
+         * Places the node in the slot matching its deadline. Must be called with the lock held.
+         */
+        private void insert(Node<T> node) {
+            long delta = node.deadlineTick - currentTick;
+            long target = node.deadlineTick;
+            if (delta <= 0) {
+                // The current tick has already been processed
+                delta = 1;
+                target = currentTick + 1;
+            } else if (delta > MAX_SPAN) {
+                delta = MAX_SPAN;
+                target = currentTick + MAX_SPAN;
+            }
+            int level = (63 - Long.numberOfLeadingZeros(delta)) / SLOT_BITS;
+            int slot = (int) (target >>> (SLOT_BITS * level)) & SLOT_MASK;
+            slots[level][slot].link(node);
+        }
+
+        /**
+         * Processes every tick up to the given one, adding the items that came due to the list.
+         */
+        private void advanceTo(long targetTick, List<T> expired) {
+            lock();
+            try {
+                while (currentTick < targetTick) {
+                    long tick = ++currentTick;
+                    for (int level = 1; level < LEVELS; level++) {
+                        if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                            break;
+                        }
+                        cascade(slots[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK]);
+                    }
+                    Node<T> head = slots[0][(int) tick & SLOT_MASK];
+                    Node<T> node = head.detachAll();
+                    while (node != head) {
+                        Node<T> next = node.next;
+                        node.prev = null;
+                        node.next = null;
+                        if (node.deadlineTick > tick) {
+                            insert(node);
+                        } else {
+                            node.state = EXPIRED;
+                            expired.add(node.item);
+                        }
+                        node = next;
+                    }
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Moves the nodes of a higher level slot to the slots matching their remaining time.
+         */
+        private void cascade(Node<T> head) {
+            Node<T> node = head.detachAll();
+            while (node != head) {
+                Node<T> next = node.next;
+                node.prev = null;
+                node.next = null;
+                if (node.deadlineTick <= currentTick) {
+                    // Due in the tick being processed, whose level 0 slot is drained right after cascading
+                    slots[0][(int) currentTick & SLOT_MASK].link(node);
+                } else {
+                    insert(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * A scheduled item, linked into a slot of its stripe. Also serves as the handle returned to the caller.
+     *
+     * @param <T> the type of the item
+     */
+    private static final class Node<T> implements ExpiryHandle {
+
+        private final T item;
+
+        private final Stripe<T> stripe;
+
+        private Node<T> prev;
+
+        private Node<T> next;
+
+        private long deadlineTick;
+
+        private int state = PENDING;
+
+        private Node(T item, Stripe<T> stripe) {
+            this.item = item;
+            this.stripe = stripe;
+        }
+
+        @Override
+        public boolean cancel() {
+            stripe.lock();
+            try {
+                if (state != PENDING) {
+                    return false;
+                }
+                unlink();
+                state = CANCELLED;
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        }
+
+        @Override
+        public boolean reschedule(long delay, TimeUnit unit) {
+            long tick = stripe.engine.deadlineTick(delay, unit);
+            stripe.lock();
+            try {
+                if (state != PENDING) {
+                    return false;
+                }
+                unlink();
+                deadlineTick = tick;
+                stripe.insert(this);
+                return true;
+            } finally {
+                stripe.unlock();
+            }
+        }
+
+        /**
+         * Appends a node to the list this sentinel heads.
+         */
+        private void link(Node<T> node) {
+            node.prev = prev;
+            node.next = this;
+            prev.next = node;
+            prev = node;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+
+        /**
+         * Empties the list this sentinel heads and returns its first node; the chain ends at the sentinel.
+         */
+        private Node<T> detachAll() {
+            Node<T> first = next;
+            prev.next = this;
+            next = this;
+            prev = this;
+            return first;
+        }
+    }
+}
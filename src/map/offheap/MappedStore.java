@@ -0,0 +1,334 @@
+package src.map.offheap;
+
+import src.utilities.Common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The files of a persistent {@link OffHeapTtlMap}: for every segment, one file holding its slabs and one holding
+ * the heads of its chains, both memory-mapped, plus a metadata file.
+ * <p>
+ * The slabs of a segment are mapped in chunks of at least {@value #CHUNK_SIZE} bytes, so a large store needs few
+ * mappings. Mapping a chunk past the end of the file extends it, sparsely on most file systems. A rehash writes the
+ * new heads to a new table file and deletes the old one once every chain has been moved. A table file that cannot be
+ * deleted then, e.g. on Windows while it is still mapped, is deleted when the store is next opened.
+ * <p>
+ * The metadata file holds the layout of the map and the bookkeeping of the segments and their allocators, which is
+ * all that is needed to use the mapped files again: reopening a store maps them without reading them, and the
+ * operating system pages them in as they are used. The metadata is written when the map is closed, after the
+ * mappings have been forced, and is marked open while the map is in use. A store that was not closed, e.g.
+ * because the process crashed, may be inconsistent and is discarded when opened.
+ */
+final class MappedStore {
+
+    private static final Logger LOGGER;
+
+    static {
+        LOGGER = Common.getLogger(MappedStore.class);
+    }
+
+    private static final int MAGIC = 0x54544C4D;
+
+    private static final int VERSION = 1;
+
+    private static final String METADATA = "store.meta";
+
+    private static final long CHUNK_SIZE = 64 << 20;
+
+    private final Path directory;
+
+    private final int slabSize;
+
+    private final int segmentCount;
+
+    private final long chunkSize;
+
+    /**
+     * The bookkeeping of the segments read from a cleanly closed store, null if the store is new.
+     */
+    private final DataInput restored;
+
+    private MappedStore(Path directory, int slabSize, int segmentCount, DataInput restored) {
+        this.directory = directory;
+        this.slabSize = slabSize;
+        this.segmentCount = segmentCount;
+        this.chunkSize = Math.max(1, CHUNK_SIZE / slabSize) * slabSize;
+        this.restored = restored;
+    }
+
+    /**
+     * Opens the store in the directory, creating it if it holds none. The slab size and the number of segments of
+     * an existing store override the given ones.
+     *
+     * @throws IOException if the directory cannot be read or written
+     */
+    static MappedStore open(Path directory, int slabSize, int segmentCount) throws IOException {
+        Files.createDirectories(directory);
+        Path metadata = directory.resolve(METADATA);
+        MappedStore store = null;
+        if (Files.exists(metadata)) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(metadata)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a store of a supported version: " + directory);
+            }
+            if (in.readBoolean()) {
+                store = new MappedStore(directory, in.readInt(), in.readInt(), in);
+            } else {
+                LOGGER.warning("Discarding the store in " + directory + ", which was not closed");
+            }
+        }
+        if (store == null) {
+            deleteFiles(directory);
+            store = new MappedStore(directory, slabSize, segmentCount, null);
+        }
+        store.writeMetadata(false, out -> {
+        });
+        return store;
+    }
+
+    int slabSize() {
+        return slabSize;
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Returns the bookkeeping of the segments, to be read in order, or null if the store is new.
+     */
+    DataInput restored() {
+        return restored;
+    }
+
+    SegmentFiles segment(int index) {
+        return new SegmentFiles(index);
+    }
+
+    /**
+     * Writes the metadata, marking the store closed, after the caller has forced its segments.
+     *
+     * @param segments writes the bookkeeping of the segments in order
+     */
+    void close(StateWriter segments) throws IOException {
+        writeMetadata(true, segments);
+    }
+
+    /**
+     * Writes the bookkeeping of the segments.
+     */
+    @FunctionalInterface
+    interface StateWriter {
+
+        void write(DataOutput out) throws IOException;
+    }
+
+    private void writeMetadata(boolean closed, StateWriter segments) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(closed);
+        out.writeInt(slabSize);
+        out.writeInt(segmentCount);
+        segments.write(out);
+        out.flush();
+        Path temp = directory.resolve(METADATA + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(METADATA), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * The mapped files of one segment. Guarded by the lock of the segment.
+     */
+    final class SegmentFiles {
+
+        private final int index;
+
+        private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+        private FileChannel slabs;
+
+        private MappedByteBuffer table;
+
+        /**
+         * Numbers the table files of the segment, so that a new table never overwrites the one in use.
+         */
+        private int generation;
+
+        /**
+         * The table file replaced by the last new table, until {@link #releasePreviousTable()} deletes it.
+         */
+        private Path previousTable;
+
+        private SegmentFiles(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Returns the slab of the given number, counted from 1, mapping its chunk if needed.
+         */
+        ByteBuffer slab(int number) {
+            long position = (long) (number - 1) * slabSize;
+            int chunk = (int) (position / chunkSize);
+            try {
+                if (slabs == null) {
+                    slabs = FileChannel.open(directory.resolve("segment-" + index + ".slabs"),
+                            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                while (chunks.size() <= chunk) {
+                    chunks.add(slabs.map(FileChannel.MapMode.READ_WRITE, chunks.size() * chunkSize, chunkSize));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map the slabs of segment " + index, e);
+            }
+            return chunks.get(chunk).slice((int) (position - chunk * chunkSize), slabSize);
+        }
+
+        /**
+         * Creates a table file of the given number of chains, all empty. The previous one is left in place, since the
+         * caller may still be reading it, until {@link #releasePreviousTable()}.
+         */
+        ByteBuffer newTable(int capacity) {
+            Path previous = tablePath();
+            generation++;
+            try {
+                table = mapTable(capacity, StandardOpenOption.CREATE_NEW);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create the table of segment " + index, e);
+            }
+            previousTable = previous;
+            return table;
+        }
+
+        /**
+         * Deletes the table file replaced by the last new table, once the caller no longer reads it. A file that
+         * cannot be deleted, e.g. because it is still mapped on a system forbidding it, is deleted when the store is
+         * next opened.
+         */
+        void releasePreviousTable() {
+            if (previousTable == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(previousTable);
+            } catch (IOException e) {
+                LOGGER.fine("Cannot delete " + previousTable + " yet: " + e);
+            }
+            previousTable = null;
+        }
+
+        /**
+         * Drops the slabs, truncating their file. No slab may be used after.
+         */
+        void releaseSlabs() {
+            chunks.clear();
+            try {
+                if (slabs != null) {
+                    slabs.truncate(0);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot truncate the slabs of segment " + index, e);
+            }
+        }
+
+        /**
+         * Writes the mapped pages of the segment that have changed to the files.
+         */
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            if (table != null) {
+                table.force();
+            }
+        }
+
+        void writeState(DataOutput out) throws IOException {
+            out.writeInt(generation);
+        }
+
+        /**
+         * Reads the state written by {@link #writeState(DataOutput)} and maps the table it names.
+         */
+        ByteBuffer readState(DataInput in, int capacity) throws IOException {
+            generation = in.readInt();
+            deleteStaleTables();
+            table = mapTable(capacity);
+            return table;
+        }
+
+        void close() throws IOException {
+            if (slabs != null) {
+                slabs.close();
+            }
+        }
+
+        private MappedByteBuffer mapTable(int capacity, StandardOpenOption... options) throws IOException {
+            try (FileChannel channel = FileChannel.open(tablePath(), withReadWrite(options))) {
+                // A new file is extended with zeros, and NO_ADDRESS is 0
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * Long.BYTES);
+            }
+        }
+
+        /**
+         * Deletes the table files of the segment left behind by earlier generations.
+         */
+        private void deleteStaleTables() throws IOException {
+            Path current = tablePath();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-" + index + "-*.table")) {
+                for (Path file : files) {
+                    if (!file.equals(current)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+
+        private Path tablePath() {
+            return directory.resolve("segment-" + index + "-" + generation + ".table");
+        }
+    }
+
+    private static StandardOpenOption[] withReadWrite(StandardOpenOption... options) {
+        StandardOpenOption[] all = new StandardOpenOption[options.length + 2];
+        all[0] = StandardOpenOption.READ;
+        all[1] = StandardOpenOption.WRITE;
+        System.arraycopy(options, 0, all, 2, options.length);
+        return all;
+    }
+}
@@ -0,0 +1,1080 @@
+package src.map.offheap;
+
+import src.map.TtlMap;
+import src.map.expiry.SamplingConfig;
+import src.map.expiry.SamplingStats;
+import src.map.expiry.SamplingSweeper;
+import src.map.expiry.Ticker;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a thread-safe Map with a Time-To-Live (TTL) feature whose entries live outside the heap.
+ * Keys and values are serialized by the given {@link Serializer}s and stored, along with their deadline, in slots of
+ * native memory handed out by a {@link SlabAllocator}. The hash table links the slots by their addresses and keeps
+ * the heads of its chains in native memory as well, so the heap used by the map does not grow with the number of
+ * entries and the garbage collector never has to trace them. The default TTL is 15000 milliseconds.
+ * <p>
+ * The table is split into segments, each guarded by its own lock and owning its own allocator. Unlike in
+ * {@link src.map.MapWithTtlV4}, reads lock the segment of their key too, because the slot of a removed entry is
+ * reused right away.
+ * <p>
+ * Expiry is lazy: reads drop the expired entries they come across and a {@link SamplingSweeper} removes the rest
+ * by sampling random entries. Either way the slot goes straight back to the free list of its size class. No
+ * {@link src.map.expiry.ExpiryEngine} is used, as it would keep a heap object per entry.
+ * <p>
+ * Keys are compared by their serialized form and hashed from it, and {@link #containsValue(Object)} compares
+ * serialized values. Every read of a value deserializes a new copy of it.
+ * <p>
+ * With {@link Builder#persistent(Path)}, the slabs and the heads of the chains are kept in memory-mapped files
+ * instead, so the map can hold more than fits in memory and survives a restart: closing the map forces the files and
+ * saves the few bytes of bookkeeping of every segment, and building a map on the same directory maps the files
+ * again without reading them, leaving the operating system to page them in as the entries are used. Deadlines are
+ * then kept relative to the wall clock, so entries that expired while the map was closed are dropped by reads and
+ * the sweeper as usual, their slots going back to the free lists in place. A map that was not closed, e.g. because
+ * the process crashed, is not reopened but starts empty.
+ * <p>
+ * Neither keys nor values may be null. An entry must fit in a slab, its header taking 28 bytes.
+ * {@link #size()} counts entries whose TTL has elapsed but which have not been removed yet.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class OffHeapTtlMap<K, V> implements TtlMap<K, V>, AutoCloseable {
+
+    /**
+     * The default TTL in milliseconds.
+     */
+    public static final int DEFAULT_TTL = 15000;
+
+    /**
+     * The default size of a slab, 1 MiB.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    /**
+     * The most chains a segment can have, as their heads must fit in one buffer.
+     */
+    private static final int MAXIMUM_SEGMENT_CAPACITY = 1 << 27;
+
+    private static final int INITIAL_SCRATCH_SIZE = 256;
+
+    /*
+     * The layout of an entry in its slot: the header, then the key and the value.
+     */
+    private static final int NEXT = 0;
+
+    private static final int DEADLINE = 8;
+
+    private static final int HASH = 16;
+
+    private static final int KEY_LENGTH = 20;
+
+    private static final int VALUE_LENGTH = 24;
+
+    private static final int HEADER_SIZE = 28;
+
+    private static final long NO_ADDRESS = SlabAllocator.NO_ADDRESS;
+
+    /**
+     * The segments of the table, indexed by the high bits of the hash.
+     */
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    private final Serializer<K> keySerializer;
+
+    private final Serializer<V> valueSerializer;
+
+    /**
+     * The source of the deadlines stored in the entries, which are compared as plain longs.
+     */
+    private final Ticker ticker;
+
+    private final long ttlNanos;
+
+    private final int slabSize;
+
+    /**
+     * The files holding the entries of a persistent map, null if the map lives in native memory.
+     */
+    private final MappedStore store;
+
+    /**
+     * Added to the ticker to get the time the deadlines are compared with: the wall clock in nanoseconds for a
+     * persistent map, whose deadlines must outlive the ticker, and 0 otherwise.
+     */
+    private final long clockOrigin;
+
+    /**
+     * Removes expired entries by sampling.
+     */
+    private final SamplingSweeper sweeper;
+
+    /**
+     * The buffer every thread serializes its entries into, laid out like a slot so that it is copied in one go.
+     * Grows on demand up to the slab size.
+     */
+    private final ThreadLocal<ByteBuffer> scratch =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_SCRATCH_SIZE));
+
+    private OffHeapTtlMap(Builder<K, V> builder) {
+        int segmentCount = 1;
+        while (segmentCount < builder.concurrencyLevel && segmentCount < 1 << 16) {
+            segmentCount <<= 1;
+        }
+        this.keySerializer = builder.keySerializer;
+        this.valueSerializer = builder.valueSerializer;
+        this.ticker = builder.ticker;
+        this.ttlNanos = builder.ttlNanos > 0 ? builder.ttlNanos : TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL);
+        try {
+            this.store = builder.directory == null
+                    ? null
+                    : MappedStore.open(builder.directory, builder.slabSize, segmentCount);
+            if (store == null) {
+                this.slabSize = builder.slabSize;
+                this.clockOrigin = 0;
+            } else {
+                this.slabSize = store.slabSize();
+                this.clockOrigin = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - ticker.read();
+                segmentCount = store.segmentCount();
+            }
+            this.segments = new Segment[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new Segment(slabSize, store == null ? null : store.segment(i));
+                if (store == null || store.restored() == null) {
+                    segments[i].init();
+                } else {
+                    segments[i].readState(store.restored());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the store in " + builder.directory, e);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.sweeper = new SamplingSweeper(this::sampleAndExpire, builder.samplingConfig, "off-heap-ttl-sweeper");
+    }
+
+    /**
+     * Returns a builder to configure a map storing its entries with the given serializers.
+     *
+     * @param keySerializer   the serializer of the keys, which must write equal keys as equal bytes
+     * @param valueSerializer the serializer of the values
+     * @param <K>             the type of keys maintained by the map
+     * @param <V>             the type of mapped values
+     * @return a new builder with the default settings
+     */
+    public static <K, V> Builder<K, V> builder(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        return new Builder<>(keySerializer, valueSerializer);
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        ByteBuffer buffer = serializeKey(key);
+        Segment segment = segmentFor(buffer.getInt(HASH));
+        segment.lock();
+        try {
+            return findLive(segment, buffer) != NO_ADDRESS;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Returns true if a live entry holds a value with the same serialized form as the given one.
+     * Walks every entry of the map.
+     *
+     * @param value the value whose presence is to be tested
+     * @return true if some key is mapped to the value
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        ByteBuffer buffer = serialize(null, valueOf(value));
+        int length = buffer.getInt(VALUE_LENGTH);
+        long now = now();
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                for (int i = 0; i < segment.capacity; i++) {
+                    for (long e = segment.head(i); e != NO_ADDRESS; e = segment.next(e)) {
+                        ByteBuffer slab = segment.allocator.slab(e);
+                        int offset = SlabAllocator.offset(e);
+                        if (slab.getLong(offset + DEADLINE) > now
+                                && slab.getInt(offset + VALUE_LENGTH) == length
+                                && bytesEqual(slab, offset + HEADER_SIZE + slab.getInt(offset + KEY_LENGTH),
+                                buffer, HEADER_SIZE, length)) {
+                            return true;
+                        }
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the value to which the specified key is mapped, or null if there is no live mapping for
+     * the key. An expired entry found on the way is removed.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the specified key is mapped, or null
+     */
+    @Override
+    public V get(Object key) {
+        ByteBuffer buffer = serializeKey(key);
+        Segment segment = segmentFor(buffer.getInt(HASH));
+        segment.lock();
+        try {
+            long address = findLive(segment, buffer);
+            return address == NO_ADDRESS ? null : readValue(segment, address);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for the key, the old value is replaced, in the same slot if the
+     * new entry fits in it.
+     *
+     * @param key   the key with which the specified value is to be associated
+     * @param value the value to be associated with the specified key
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, ttlNanos, false);
+    }
+
+    @Override
+    public V put(K key, V value, Duration ttl) {
+        return put(key, value, ttlNanos(ttl), false);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return put(key, value, ttlNanos, true);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value, Duration ttl) {
+        return put(key, value, ttlNanos(ttl), true);
+    }
+
+    @Override
+    public boolean expireAt(K key, Instant deadline) {
+        long delay = nanosUntil(deadline);
+        ByteBuffer buffer = serializeKey(key);
+        Segment segment = segmentFor(buffer.getInt(HASH));
+        segment.lock();
+        try {
+            long address = findLive(segment, buffer);
+            if (address == NO_ADDRESS) {
+                return false;
+            }
+            if (delay <= 0) {
+                segment.unlink(address);
+            } else {
+                setDeadline(segment, address, deadline(now(), delay));
+            }
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    @Override
+    public Optional<Instant> getExpiration(K key) {
+        ByteBuffer buffer = serializeKey(key);
+        Segment segment = segmentFor(buffer.getInt(HASH));
+        long validTill;
+        segment.lock();
+        try {
+            long address = findLive(segment, buffer);
+            if (address == NO_ADDRESS) {
+                return Optional.empty();
+            }
+            validTill = deadlineOf(segment, address);
+        } finally {
+            segment.unlock();
+        }
+        return Optional.of(validTill == Long.MAX_VALUE ? Instant.MAX : Instant.now().plusNanos(validTill - now()));
+    }
+
+    @Override
+    public boolean persist(K key) {
+        ByteBuffer buffer = serializeKey(key);
+        Segment segment = segmentFor(buffer.getInt(HASH));
+        segment.lock();
+        try {
+            long address = findLive(segment, buffer);
+            if (address == NO_ADDRESS) {
+                return false;
+            }
+            setDeadline(segment, address, Long.MAX_VALUE);
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Writes an entry for the key, replacing the current one unless it is live and onlyIfAbsent is set.
+     * The entry is serialized before the segment is locked, so that only the copy to its slot happens under
+     * the lock.
+     *
+     * @return the value of the live mapping found, or null if there was none
+     */
+    private V put(K key, V value, long ttlNanos, boolean onlyIfAbsent) {
+        ByteBuffer buffer = serialize(Objects.requireNonNull(key), Objects.requireNonNull(value));
+        int hash = buffer.getInt(HASH);
+        int length = buffer.position();
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            long now = now();
+            buffer.putLong(DEADLINE, deadline(now, ttlNanos));
+            int index = hash & (segment.capacity - 1);
+            long pred = NO_ADDRESS;
+            for (long e = segment.head(index); e != NO_ADDRESS; pred = e, e = segment.next(e)) {
+                if (!keyEquals(segment, e, buffer)) {
+                    continue;
+                }
+                boolean live = deadlineOf(segment, e) > now;
+                if (live && onlyIfAbsent) {
+                    return readValue(segment, e);
+                }
+                V previous = live ? readValue(segment, e) : null;
+                if (segment.allocator.slotSize(e) >= length) {
+                    buffer.putLong(NEXT, segment.next(e));
+                    segment.allocator.slab(e).put(SlabAllocator.offset(e), buffer, 0, length);
+                } else {
+                    long address = segment.allocate(buffer, length);
+                    segment.setNext(address, segment.next(e));
+                    segment.relink(index, pred, address);
+                    segment.allocator.free(e);
+                }
+                return previous;
+            }
+            long address = segment.allocate(buffer, length);
+            segment.setNext(address, segment.head(index));
+            segment.setHead(index, address);
+            if (++segment.count > segment.threshold) {
+                segment.rehash();
+            }
+            return null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping for a key from this map if it is present, freeing its slot.
+     *
+     * @param key the key whose mapping is to be removed from the map
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    @Override
+    public V remove(Object key) {
+        ByteBuffer buffer = serializeKey(key);
+        Segment segment = segmentFor(buffer.getInt(HASH));
+        segment.lock();
+        try {
+            long address = find(segment, buffer);
+            if (address == NO_ADDRESS) {
+                return null;
+            }
+            V previous = deadlineOf(segment, address) > now() ? readValue(segment, address) : null;
+            segment.unlink(address);
+            return previous;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map.
+     * The effect of this call is equivalent to that of calling put(k, v) on this map once for each mapping from key k to value v in the specified map.
+     *
+     * @param m mappings to be stored in this map
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Removes all of the mappings from this map and drops the slabs of every segment, which gives their memory
+     * back once the garbage collector has collected the buffers. The files of a persistent map are truncated.
+     */
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.reset();
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<>();
+        forEachLive((segment, e) -> keys.add(readKey(segment, e)));
+        return keys;
+    }
+
+    @Override
+    public Collection<V> values() {
+        List<V> values = new ArrayList<>();
+        forEachLive((segment, e) -> values.add(readValue(segment, e)));
+        return values;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        Map<K, V> transformedMap = new HashMap<>();
+        forEachLive((segment, e) -> transformedMap.put(readKey(segment, e), readValue(segment, e)));
+        return transformedMap.entrySet();
+    }
+
+    /**
+     * Returns the work done by the sampling sweeper.
+     *
+     * @return the statistics of the sweeper
+     */
+    public SamplingStats samplingStats() {
+        return sweeper.stats();
+    }
+
+    /**
+     * Returns the native memory held by the slots in use, including the part of each slot left over by its
+     * size class.
+     *
+     * @return the bytes in use
+     */
+    public long usedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                used += segment.allocator.usedBytes();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Returns the native memory reserved for entries, in slabs, not counting the heads of the chains.
+     *
+     * @return the bytes reserved
+     */
+    public long reservedBytes() {
+        long reserved = 0;
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                reserved += segment.allocator.reservedBytes();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Stops the background expiry of this map. A map in native memory drops all of its entries along with their
+     * memory; a persistent map writes its entries to its files, from which a new map can be built.
+     *
+     * @throws UncheckedIOException if the files of a persistent map cannot be written
+     */
+    @Override
+    public void close() {
+        sweeper.close();
+        if (store == null) {
+            clear();
+            return;
+        }
+        for (Segment segment : segments) {
+            segment.lock();
+        }
+        try {
+            for (Segment segment : segments) {
+                segment.files.force();
+            }
+            store.close(out -> {
+                for (Segment segment : segments) {
+                    segment.writeState(out);
+                }
+            });
+            for (Segment segment : segments) {
+                segment.files.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close the store", e);
+        } finally {
+            for (Segment segment : segments) {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the address of the live entry of the serialized key, removing it if it has expired.
+     * Must be called with the segment lock held.
+     */
+    private long findLive(Segment segment, ByteBuffer key) {
+        long address = find(segment, key);
+        if (address != NO_ADDRESS && deadlineOf(segment, address) <= now()) {
+            segment.unlink(address);
+            return NO_ADDRESS;
+        }
+        return address;
+    }
+
+    /**
+     * Returns the address of the entry of the serialized key, or {@link #NO_ADDRESS}.
+     * Must be called with the segment lock held.
+     */
+    private static long find(Segment segment, ByteBuffer key) {
+        int hash = key.getInt(HASH);
+        for (long e = segment.head(hash & (segment.capacity - 1)); e != NO_ADDRESS; e = segment.next(e)) {
+            if (keyEquals(segment, e, key)) {
+                return e;
+            }
+        }
+        return NO_ADDRESS;
+    }
+
+    private static boolean keyEquals(Segment segment, long address, ByteBuffer key) {
+        ByteBuffer slab = segment.allocator.slab(address);
+        int offset = SlabAllocator.offset(address);
+        int length = key.getInt(KEY_LENGTH);
+        return slab.getInt(offset + HASH) == key.getInt(HASH)
+                && slab.getInt(offset + KEY_LENGTH) == length
+                && bytesEqual(slab, offset + HEADER_SIZE, key, HEADER_SIZE, length);
+    }
+
+    private static boolean bytesEqual(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (a.getLong(aOffset + i) != b.getLong(bOffset + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (a.get(aOffset + i) != b.get(bOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private K readKey(Segment segment, long address) {
+        ByteBuffer slab = segment.allocator.slab(address);
+        int offset = SlabAllocator.offset(address);
+        return keySerializer.deserialize(slab.slice(offset + HEADER_SIZE, slab.getInt(offset + KEY_LENGTH)));
+    }
+
+    private V readValue(Segment segment, long address) {
+        ByteBuffer slab = segment.allocator.slab(address);
+        int offset = SlabAllocator.offset(address);
+        int valueOffset = offset + HEADER_SIZE + slab.getInt(offset + KEY_LENGTH);
+        return valueSerializer.deserialize(slab.slice(valueOffset, slab.getInt(offset + VALUE_LENGTH)));
+    }
+
+    private static long deadlineOf(Segment segment, long address) {
+        return segment.allocator.slab(address).getLong(SlabAllocator.offset(address) + DEADLINE);
+    }
+
+    private static void setDeadline(Segment segment, long address, long deadline) {
+        segment.allocator.slab(address).putLong(SlabAllocator.offset(address) + DEADLINE, deadline);
+    }
+
+    /**
+     * Serializes a key on its own, for a lookup.
+     */
+    @SuppressWarnings("unchecked")
+    private ByteBuffer serializeKey(Object key) {
+        return serialize((K) Objects.requireNonNull(key), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueOf(Object value) {
+        return (V) Objects.requireNonNull(value);
+    }
+
+    /**
+     * Serializes the key and the value, either of which may be null, into the scratch buffer of the calling thread
+     * after the room for a header. Fills in the lengths and the hash of the key, leaving the position at the end
+     * of the entry. Doubles the buffer until the entry fits, up to the slab size.
+     *
+     * @throws IllegalArgumentException if the entry is larger than a slab
+     */
+    private ByteBuffer serialize(K key, V value) {
+        while (true) {
+            ByteBuffer buffer = scratch.get();
+            try {
+                buffer.clear().position(HEADER_SIZE);
+                if (key != null) {
+                    keySerializer.serialize(key, buffer);
+                }
+                int keyLength = buffer.position() - HEADER_SIZE;
+                if (value != null) {
+                    valueSerializer.serialize(value, buffer);
+                }
+                buffer.putInt(KEY_LENGTH, keyLength);
+                buffer.putInt(VALUE_LENGTH, buffer.position() - HEADER_SIZE - keyLength);
+                buffer.putInt(HASH, hash(buffer, keyLength));
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= slabSize) {
+                    throw new IllegalArgumentException("Entry does not fit in a slab of " + slabSize + " bytes", e);
+                }
+                scratch.set(ByteBuffer.allocate((int) Math.min((long) buffer.capacity() * 2, slabSize)));
+            }
+        }
+    }
+
+    /**
+     * Checks random entries and removes the expired ones, for the sampling sweeper.
+     * Picks a random chain of a random segment and checks it whole under the segment lock, until enough entries
+     * have been seen. Gives up after a bounded number of empty chains, so that a sparse table does not keep it
+     * spinning.
+     */
+    private SamplingSweeper.Sample sampleAndExpire(int count, SplittableRandom random) {
+        if (isEmpty()) {
+            return new SamplingSweeper.Sample(0, 0);
+        }
+        int sampled = 0;
+        int expired = 0;
+        int emptyProbes = 0;
+        while (sampled < count && emptyProbes < count * 8) {
+            Segment segment = segments[random.nextInt(segments.length)];
+            segment.lock();
+            try {
+                long now = now();
+                long e = segment.head(random.nextInt(segment.capacity));
+                if (e == NO_ADDRESS) {
+                    emptyProbes++;
+                    continue;
+                }
+                while (e != NO_ADDRESS && sampled < count) {
+                    long next = segment.next(e);
+                    sampled++;
+                    if (deadlineOf(segment, e) <= now) {
+                        segment.unlink(e);
+                        expired++;
+                    }
+                    e = next;
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+        return new SamplingSweeper.Sample(sampled, expired);
+    }
+
+    /**
+     * Walks every entry whose TTL has not elapsed, one segment at a time under its lock.
+     */
+    private void forEachLive(EntryVisitor action) {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                long now = now();
+                for (int i = 0; i < segment.capacity; i++) {
+                    for (long e = segment.head(i); e != NO_ADDRESS; e = segment.next(e)) {
+                        if (deadlineOf(segment, e) > now) {
+                            action.accept(segment, e);
+                        }
+                    }
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Receives the address of an entry and its segment, whose lock is held.
+     */
+    @FunctionalInterface
+    private interface EntryVisitor {
+
+        void accept(Segment segment, long address);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(int) ((hash & 0xFFFFFFFFL) >>> segmentShift) & (segments.length - 1)];
+    }
+
+    /**
+     * Hashes the serialized key that follows the header of the buffer.
+     */
+    private static int hash(ByteBuffer buffer, int keyLength) {
+        int h = 1;
+        for (int i = HEADER_SIZE; i < HEADER_SIZE + keyLength; i++) {
+            h = 31 * h + buffer.get(i);
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private long now() {
+        return ticker.read() + clockOrigin;
+    }
+
+    private static long deadline(long now, long ttlNanos) {
+        return ttlNanos >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlNanos;
+    }
+
+    private static long ttlNanos(Duration ttl) {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl);
+        }
+        return saturatedNanos(ttl);
+    }
+
+    private static long nanosUntil(Instant deadline) {
+        return saturatedNanos(Duration.between(Instant.now(), deadline));
+    }
+
+    private static long saturatedNanos(Duration duration) {
+        try {
+            return duration.toNanos();
+        } catch (ArithmeticException e) {
+            return duration.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Configures and creates an {@link OffHeapTtlMap}.
+     *
+     * @param <K> the type of keys maintained by the map
+     * @param <V> the type of mapped values
+     */
+    public static final class Builder<K, V> {
+
+        private final Serializer<K> keySerializer;
+
+        private final Serializer<V> valueSerializer;
+
+        private long ttlNanos;
+
+        private int concurrencyLevel = Runtime.getRuntime().availableProcessors() * 4;
+
+        private Ticker ticker = Ticker.coarse();
+
+        private int slabSize = DEFAULT_SLAB_SIZE;
+
+        private SamplingConfig samplingConfig = SamplingConfig.DEFAULT;
+
+        private Path directory;
+
+        private Builder(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+            this.keySerializer = Objects.requireNonNull(keySerializer);
+            this.valueSerializer = Objects.requireNonNull(valueSerializer);
+        }
+
+        /**
+         * Sets the time after which an entry expires, 15000 milliseconds by default.
+         *
+         * @param ttl  the TTL
+         * @param unit the unit of the TTL
+         * @return this builder
+         */
+        public Builder<K, V> ttl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+            }
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the expected number of concurrently writing threads, rounded up to a power of two to give the
+         * number of segments. Four times the number of processors by default.
+         *
+         * @param concurrencyLevel the concurrency level
+         * @return this builder
+         */
+        public Builder<K, V> concurrencyLevel(int concurrencyLevel) {
+            if (concurrencyLevel <= 0) {
+                throw new IllegalArgumentException("Concurrency level must be positive: " + concurrencyLevel);
+            }
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        /**
+         * Sets the source of time for expiry, the shared {@link Ticker#coarse()} ticker by default.
+         *
+         * @param ticker the ticker to be used
+         * @return this builder
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = Objects.requireNonNull(ticker);
+            return this;
+        }
+
+        /**
+         * Sets the size of the slabs of native memory reserved by each segment, {@value OffHeapTtlMap#DEFAULT_SLAB_SIZE}
+         * bytes by default. It bounds the size of an entry, and every segment reserves at least one slab per size class
+         * in use.
+         *
+         * @param slabSize the slab size in bytes
+         * @return this builder
+         */
+        public Builder<K, V> slabSize(int slabSize) {
+            if (slabSize < HEADER_SIZE + SlabAllocator.MINIMUM_SLOT_SIZE) {
+                throw new IllegalArgumentException("Slab size must be at least "
+                        + (HEADER_SIZE + SlabAllocator.MINIMUM_SLOT_SIZE) + ": " + slabSize);
+            }
+            this.slabSize = slabSize;
+            return this;
+        }
+
+        /**
+         * Sets how the background sweeper samples the table for expired entries, {@link SamplingConfig#DEFAULT}
+         * by default.
+         *
+         * @param samplingConfig the settings of the sweeper
+         * @return this builder
+         */
+        public Builder<K, V> sampling(SamplingConfig samplingConfig) {
+            this.samplingConfig = Objects.requireNonNull(samplingConfig);
+            return this;
+        }
+
+        /**
+         * Keeps the entries in memory-mapped files in the given directory, which is created if needed. If the
+         * directory holds the files of a map that was closed, the new map starts with its entries, and with its
+         * number of segments and slab size rather than the ones set here. The serializers must be the same.
+         *
+         * @param directory the directory of the files, used by one map at a time
+         * @return this builder
+         */
+        public Builder<K, V> persistent(Path directory) {
+            this.directory = Objects.requireNonNull(directory);
+            return this;
+        }
+
+        /**
+         * Creates a map with the settings of this builder.
+         *
+         * @return a new map
+         * @throws UncheckedIOException if the files of a persistent map cannot be opened
+         */
+        public OffHeapTtlMap<K, V> build() {
+            return new OffHeapTtlMap<>(this);
+        }
+    }
+
+    /**
+     * A hash table of chained slots guarded by its own lock. The heads of the chains are kept in a direct buffer,
+     * or a mapped file, and every slot holds the address of the next one, so the segment has a fixed number of heap
+     * objects.
+     */
+    private static final class Segment extends ReentrantLock {
+
+        private final SlabAllocator allocator;
+
+        /**
+         * The files of the segment of a persistent map, null otherwise.
+         */
+        private final MappedStore.SegmentFiles files;
+
+        /**
+         * The addresses of the first slot of every chain.
+         */
+        private ByteBuffer table;
+
+        private int capacity;
+
+        private volatile int count;
+
+        private int threshold;
+
+        private Segment(int slabSize, MappedStore.SegmentFiles files) {
+            this.files = files;
+            this.allocator = files == null ? new SlabAllocator(slabSize) : new SlabAllocator(slabSize, files::slab);
+        }
+
+        /**
+         * Starts the segment empty.
+         */
+        private void init() {
+            table = newTable(INITIAL_SEGMENT_CAPACITY);
+            releasePreviousTable();
+            capacity = INITIAL_SEGMENT_CAPACITY;
+            threshold = INITIAL_SEGMENT_CAPACITY * 3 / 4;
+            count = 0;
+        }
+
+        /**
+         * Writes what a persistent segment needs besides its files to be restored.
+         */
+        private void writeState(DataOutput out) throws IOException {
+            out.writeInt(capacity);
+            out.writeInt(count);
+            files.writeState(out);
+            allocator.writeState(out);
+        }
+
+        /**
+         * Restores a persistent segment from the state written by {@link #writeState(DataOutput)}.
+         */
+        private void readState(DataInput in) throws IOException {
+            capacity = in.readInt();
+            count = in.readInt();
+            threshold = capacity >= MAXIMUM_SEGMENT_CAPACITY ? Integer.MAX_VALUE : capacity * 3 / 4;
+            table = files.readState(in, capacity);
+            allocator.readState(in);
+        }
+
+        private long head(int index) {
+            return table.getLong(index * Long.BYTES);
+        }
+
+        private void setHead(int index, long address) {
+            table.putLong(index * Long.BYTES, address);
+        }
+
+        private long next(long address) {
+            return allocator.slab(address).getLong(SlabAllocator.offset(address) + NEXT);
+        }
+
+        private void setNext(long address, long next) {
+            allocator.slab(address).putLong(SlabAllocator.offset(address) + NEXT, next);
+        }
+
+        /**
+         * Allocates a slot and copies the first bytes of the buffer, a serialized entry, to it.
+         */
+        private long allocate(ByteBuffer entry, int length) {
+            long address = allocator.allocate(length);
+            allocator.slab(address).put(SlabAllocator.offset(address), entry, 0, length);
+            return address;
+        }
+
+        /**
+         * Points the predecessor of a slot, or the head of its chain if it has none, to the given address.
+         */
+        private void relink(int index, long pred, long address) {
+            if (pred == NO_ADDRESS) {
+                setHead(index, address);
+            } else {
+                setNext(pred, address);
+            }
+        }
+
+        /**
+         * Removes the slot from its chain and frees it.
+         */
+        private void unlink(long address) {
+            int index = allocator.slab(address).getInt(SlabAllocator.offset(address) + HASH) & (capacity - 1);
+            long pred = NO_ADDRESS;
+            for (long e = head(index); e != NO_ADDRESS; pred = e, e = next(e)) {
+                if (e == address) {
+                    relink(index, pred, next(e));
+                    allocator.free(e);
+                    count--;
+                    return;
+                }
+            }
+        }
+
+        private void reset() {
+            allocator.release();
+            if (files != null) {
+                files.releaseSlabs();
+            }
+            init();
+        }
+
+        /**
+         * Doubles the number of chains, moving every slot to the head of its new chain.
+         */
+        private void rehash() {
+            if (capacity >= MAXIMUM_SEGMENT_CAPACITY) {
+                threshold = Integer.MAX_VALUE;
+                return;
+            }
+            int newCapacity = capacity << 1;
+            ByteBuffer newTable = newTable(newCapacity);
+            for (int i = 0; i < capacity; i++) {
+                long e = head(i);
+                while (e != NO_ADDRESS) {
+                    long next = next(e);
+                    int index = allocator.slab(e).getInt(SlabAllocator.offset(e) + HASH) & (newCapacity - 1);
+                    setNext(e, newTable.getLong(index * Long.BYTES));
+                    newTable.putLong(index * Long.BYTES, e);
+                    e = next;
+                }
+            }
+            table = newTable;
+            releasePreviousTable();
+            capacity = newCapacity;
+            threshold = newCapacity * 3 / 4;
+        }
+
+        private ByteBuffer newTable(int capacity) {
+            if (files != null) {
+                return files.newTable(capacity);
+            }
+            // Direct buffers are zeroed, and NO_ADDRESS is 0
+            return ByteBuffer.allocateDirect(capacity * Long.BYTES);
+        }
+
+        /**
+         * Deletes the file of the table replaced by the last new table, once nothing reads it anymore.
+         */
+        private void releasePreviousTable() {
+            if (files != null) {
+                files.releasePreviousTable();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package src.map.offheap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts keys or values to and from the bytes stored outside the heap by an {@link OffHeapTtlMap}, or written
+ * to a snapshot by {@link src.map.MapWithTtlV3#snapshot}.
+ * <p>
+ * Keys are compared by their serialized form, so a key serializer must write equal keys as equal bytes.
+ *
+ * @param <T> the type of the objects serialized
+ */
+public interface Serializer<T> {
+
+    /**
+     * Writes the object at the position of the buffer, advancing it.
+     * If the buffer is too small, throws {@link java.nio.BufferOverflowException}; the map then retries with a
+     * bigger buffer.
+     *
+     * @param value  the object to be written
+     * @param target the buffer to write to
+     */
+    void serialize(T value, ByteBuffer target);
+
+    /**
+     * Reads an object from the remaining bytes of the buffer, which are exactly the bytes written for it.
+     *
+     * @param source the buffer to read from
+     * @return the object read
+     */
+    T deserialize(ByteBuffer source);
+
+    /**
+     * Returns a serializer storing byte arrays as they are.
+     *
+     * @return the byte array serializer
+     */
+    static Serializer<byte[]> bytes() {
+        return Serializers.BYTES;
+    }
+
+    /**
+     * Returns a serializer storing strings as UTF-8.
+     *
+     * @return the string serializer
+     */
+    static Serializer<String> string() {
+        return Serializers.STRING;
+    }
+
+    /**
+     * Returns a serializer storing longs as 8 bytes.
+     *
+     * @return the long serializer
+     */
+    static Serializer<Long> longs() {
+        return Serializers.LONG;
+    }
+
+    /**
+     * Returns a serializer storing integers as 4 bytes.
+     *
+     * @return the integer serializer
+     */
+    static Serializer<Integer> ints() {
+        return Serializers.INT;
+    }
+}
@@ -0,0 +1,64 @@
+package src.map.offheap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The serializers returned by the factory methods of {@link Serializer}.
+ */
+final class Serializers {
+
+    static final Serializer<byte[]> BYTES = new Serializer<>() {
+        @Override
+        public void serialize(byte[] value, ByteBuffer target) {
+            target.put(value);
+        }
+
+        @Override
+        public byte[] deserialize(ByteBuffer source) {
+            byte[] value = new byte[source.remaining()];
+            source.get(value);
+            return value;
+        }
+    };
+
+    static final Serializer<String> STRING = new Serializer<>() {
+        @Override
+        public void serialize(String value, ByteBuffer target) {
+            target.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String deserialize(ByteBuffer source) {
+            return new String(BYTES.deserialize(source), StandardCharsets.UTF_8);
+        }
+    };
+
+    static final Serializer<Long> LONG = new Serializer<>() {
+        @Override
+        public void serialize(Long value, ByteBuffer target) {
+            target.putLong(value);
+        }
+
+        @Override
+        public Long deserialize(ByteBuffer source) {
+            return source.getLong();
+        }
+    };
+
+    static final Serializer<Integer> INT = new Serializer<>() {
+        @Override
+        public void serialize(Integer value, ByteBuffer target) {
+            target.putInt(value);
+        }
+
+        @Override
+        public Integer deserialize(ByteBuffer source) {
+            return source.getInt();
+        }
+    };
+
+    private Serializers() {
+        throw new IllegalStateException("Utility class");
+    }
+}
@@ -0,0 +1,239 @@
+package src.map.offheap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Hands out fixed-size slots of native memory, in the way memcached manages its memory.
+ * <p>
+ * Requests are rounded up to a size class; the classes grow by alternating factors of 1.5 and 4/3 from
+ * {@value #MINIMUM_SLOT_SIZE} bytes up to the slab size, so no more than a third of a slot is wasted. Memory is
+ * reserved in slabs of the slab size, direct buffers or parts of a mapped file, each of which is carved into the
+ * slots of one class.
+ * A freed slot is pushed on the free list of its class, the address of the next free slot being stored in the slot
+ * itself, so neither allocating nor freeing creates heap objects. Slabs are only released all at once by
+ * {@link #release()}; a slab whose slots are all free stays assigned to its class.
+ * <p>
+ * An address packs the number of the slab, counted from 1, and the offset of the slot in it, so that
+ * {@link #NO_ADDRESS} is never a valid address. As addresses do not depend on where the slabs are, the slabs of a
+ * mapped file can be mapped again by a later process, which then only needs the bookkeeping saved by
+ * {@link #writeState(DataOutput)} to carry on.
+ * <p>
+ * Not thread-safe, every segment of a map owns its allocator and guards it with its lock.
+ */
+final class SlabAllocator {
+
+    /**
+     * The address meaning no slot.
+     */
+    static final long NO_ADDRESS = 0;
+
+    static final int MINIMUM_SLOT_SIZE = 32;
+
+    private final int slabSize;
+
+    /**
+     * Returns the slab of the given number, counted from 1, reserving it if it is new.
+     */
+    private final IntFunction<ByteBuffer> slabSource;
+
+    private final int[] sizeClasses;
+
+    /**
+     * The first free slot of every class, or {@link #NO_ADDRESS}.
+     */
+    private final long[] freeHeads;
+
+    /**
+     * The next slot never handed out of the last slab of every class, or {@link #NO_ADDRESS} if that slab is full.
+     */
+    private final long[] carveAddresses;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    /**
+     * The size class of every slab, indexed like {@link #slabs}.
+     */
+    private int[] slabClasses = new int[16];
+
+    private long usedBytes;
+
+    SlabAllocator(int slabSize) {
+        this(slabSize, number -> ByteBuffer.allocateDirect(slabSize));
+    }
+
+    SlabAllocator(int slabSize, IntFunction<ByteBuffer> slabSource) {
+        if (slabSize < MINIMUM_SLOT_SIZE) {
+            throw new IllegalArgumentException("Slab size must be at least " + MINIMUM_SLOT_SIZE + ": " + slabSize);
+        }
+        this.slabSize = slabSize;
+        this.slabSource = slabSource;
+        this.sizeClasses = sizeClasses(slabSize);
+        this.freeHeads = new long[sizeClasses.length];
+        this.carveAddresses = new long[sizeClasses.length];
+    }
+
+    /**
+     * Returns the largest slot that can be allocated, which is the slab size.
+     */
+    int maximumSlotSize() {
+        return slabSize;
+    }
+
+    /**
+     * Allocates a slot of at least the given size.
+     *
+     * @return the address of the slot
+     * @throws IllegalArgumentException if the size is larger than the slab size
+     */
+    long allocate(int size) {
+        int sizeClass = sizeClassOf(size);
+        long address = freeHeads[sizeClass];
+        if (address != NO_ADDRESS) {
+            freeHeads[sizeClass] = slab(address).getLong(offset(address));
+        } else {
+            address = carve(sizeClass);
+        }
+        usedBytes += sizeClasses[sizeClass];
+        return address;
+    }
+
+    /**
+     * Puts a slot back on the free list of its class.
+     */
+    void free(long address) {
+        int sizeClass = slabClasses[slabNumber(address) - 1];
+        slab(address).putLong(offset(address), freeHeads[sizeClass]);
+        freeHeads[sizeClass] = address;
+        usedBytes -= sizeClasses[sizeClass];
+    }
+
+    /**
+     * Returns the size of the slot at the given address, which may be more than was asked for.
+     */
+    int slotSize(long address) {
+        return sizeClasses[slabClasses[slabNumber(address) - 1]];
+    }
+
+    /**
+     * Returns the slab holding the slot at the given address, to be read and written at {@link #offset(long)}.
+     */
+    ByteBuffer slab(long address) {
+        return slabs.get(slabNumber(address) - 1);
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Returns the bytes held by slots in use.
+     */
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the bytes reserved in slabs.
+     */
+    long reservedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * Drops every slab, leaving their memory to be freed along with the buffers. No address may be used after.
+     */
+    void release() {
+        slabs.clear();
+        Arrays.fill(freeHeads, NO_ADDRESS);
+        Arrays.fill(carveAddresses, NO_ADDRESS);
+        usedBytes = 0;
+    }
+
+    /**
+     * Writes the size class of every slab, the free lists, the carving positions and the bytes in use.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(sizeClasses.length);
+        out.writeInt(slabs.size());
+        for (int i = 0; i < slabs.size(); i++) {
+            out.writeInt(slabClasses[i]);
+        }
+        for (int i = 0; i < sizeClasses.length; i++) {
+            out.writeLong(freeHeads[i]);
+            out.writeLong(carveAddresses[i]);
+        }
+        out.writeLong(usedBytes);
+    }
+
+    /**
+     * Reads the state written by {@link #writeState(DataOutput)} into an empty allocator of the same slab size,
+     * taking the slabs it names from the slab source again.
+     *
+     * @throws IOException if the state is not one of an allocator of this slab size
+     */
+    void readState(DataInput in) throws IOException {
+        if (in.readInt() != sizeClasses.length) {
+            throw new IOException("Allocator state of another slab size");
+        }
+        int slabCount = in.readInt();
+        slabClasses = Arrays.copyOf(slabClasses, Math.max(slabClasses.length, slabCount));
+        for (int i = 0; i < slabCount; i++) {
+            slabs.add(slabSource.apply(i + 1));
+            slabClasses[i] = in.readInt();
+        }
+        for (int i = 0; i < sizeClasses.length; i++) {
+            freeHeads[i] = in.readLong();
+            carveAddresses[i] = in.readLong();
+        }
+        usedBytes = in.readLong();
+    }
+
+    private long carve(int sizeClass) {
+        int slotSize = sizeClasses[sizeClass];
+        long address = carveAddresses[sizeClass];
+        if (address == NO_ADDRESS) {
+            ByteBuffer slab = slabSource.apply(slabs.size() + 1);
+            slabs.add(slab);
+            if (slabs.size() > slabClasses.length) {
+                slabClasses = Arrays.copyOf(slabClasses, slabClasses.length * 2);
+            }
+            slabClasses[slabs.size() - 1] = sizeClass;
+            address = (long) slabs.size() << 32;
+        }
+        int next = offset(address) + slotSize;
+        carveAddresses[sizeClass] = next + slotSize <= slabSize ? (address & ~0xFFFFFFFFL) | next : NO_ADDRESS;
+        return address;
+    }
+
+    private int sizeClassOf(int size) {
+        if (size > slabSize) {
+            throw new IllegalArgumentException("Cannot allocate " + size + " bytes, the slab size is " + slabSize);
+        }
+        int index = Arrays.binarySearch(sizeClasses, size);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static int slabNumber(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int[] sizeClasses(int slabSize) {
+        int[] classes = new int[64];
+        int count = 0;
+        long size = MINIMUM_SLOT_SIZE;
+        while (size < slabSize) {
+            classes[count++] = (int) size;
+            // 32, 48, 64, 96, 128, ... rounded to 8 bytes
+            size = (count % 2 == 1 ? size * 3 / 2 : size * 4 / 3) + 7 & ~7L;
+        }
+        classes[count++] = slabSize;
+        return Arrays.copyOf(classes, count);
+    }
+}
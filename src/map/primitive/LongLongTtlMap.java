@@ -0,0 +1,288 @@
+package src.map.primitive;
+
+import src.map.expiry.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe map from long keys to long values with a Time-To-Live (TTL) feature, which neither boxes nor
+ * allocates on get or put.
+ * <p>
+ * Keys, values and deadlines are stored in three parallel arrays of an open-addressing table, so a slot costs
+ * 24 bytes and there is no object per entry. The table is kept at most three quarters full.
+ * Expired entries are never returned and are removed by later writes, see {@link #expire()}.
+ * The default TTL is 15000 milliseconds.
+ */
+public class LongLongTtlMap extends PrimitiveTtlTable {
+
+    private long[] keys;
+
+    private long[] values;
+
+    /**
+     * Creates a map with the default TTL.
+     */
+    public LongLongTtlMap() {
+        this(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a map with the given TTL.
+     *
+     * @param ttl  the time after which an entry expires
+     * @param unit the unit of the TTL
+     */
+    public LongLongTtlMap(long ttl, TimeUnit unit) {
+        this(ttl, unit, DEFAULT_EXPECTED_SIZE, Ticker.coarse());
+    }
+
+    /**
+     * Creates a map with the given TTL, sized to hold the expected number of entries without growing.
+     *
+     * @param ttl          the time after which an entry expires
+     * @param unit         the unit of the TTL
+     * @param expectedSize the number of entries the map is expected to hold
+     * @param ticker       the source of time for expiry
+     */
+    public LongLongTtlMap(long ttl, TimeUnit unit, int expectedSize, Ticker ticker) {
+        super(ttl, unit, expectedSize, ticker);
+        this.keys = new long[deadlines.length];
+        this.values = new long[deadlines.length];
+    }
+
+    /**
+     * Returns true if the key has a live mapping.
+     *
+     * @param key the key whose presence is to be tested
+     * @return true if the key has a live mapping
+     */
+    public boolean containsKey(long key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long[] keys = this.keys;
+            long[] deadlines = this.deadlines;
+            if (keys.length == deadlines.length) {
+                boolean found = indexOf(keys, deadlines, key, now()) >= 0;
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return indexOf(keys, deadlines, key, now()) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the value to which the key is mapped, or the default value if there is no live mapping for the key.
+     *
+     * @param key          the key whose associated value is to be returned
+     * @param defaultValue the value to return if the key has no live mapping
+     * @return the value to which the key is mapped, or the default value
+     */
+    public long getOrDefault(long key, long defaultValue) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long[] keys = this.keys;
+            long[] values = this.values;
+            long[] deadlines = this.deadlines;
+            if (keys.length == deadlines.length && values.length == deadlines.length) {
+                int index = indexOf(keys, deadlines, key, now());
+                long value = index < 0 ? defaultValue : values[index];
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            int index = indexOf(keys, deadlines, key, now());
+            return index < 0 ? defaultValue : values[index];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Associates the value with the key, expiring after the default TTL.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return true if the key had a live mapping, which has been replaced
+     */
+    public boolean put(long key, long value) {
+        return put(key, value, ttlNanos, false);
+    }
+
+    /**
+     * Associates the value with the key, expiring after the given TTL.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @param ttl   the time after which the mapping expires
+     * @param unit  the unit of the TTL
+     * @return true if the key had a live mapping, which has been replaced
+     */
+    public boolean put(long key, long value, long ttl, TimeUnit unit) {
+        return put(key, value, ttlNanos(ttl, unit), false);
+    }
+
+    /**
+     * Associates the value with the key, expiring after the default TTL, unless the key has a live mapping.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return true if the value has been put, false if the key already had a live mapping
+     */
+    public boolean putIfAbsent(long key, long value) {
+        return !put(key, value, ttlNanos, true);
+    }
+
+    /**
+     * Removes the mapping for the key if it is present.
+     *
+     * @param key the key whose mapping is to be removed
+     * @return true if the key had a live mapping
+     */
+    public boolean remove(long key) {
+        long stamp = lock.writeLock();
+        try {
+            int index = slotOf(key);
+            if (index < 0) {
+                return false;
+            }
+            boolean live = deadlines[index] > now();
+            removeAt(index);
+            return live;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes the mapping unless the key has a live mapping and onlyIfAbsent is set.
+     *
+     * @return true if the key had a live mapping
+     */
+    private boolean put(long key, long value, long ttlNanos, boolean onlyIfAbsent) {
+        long stamp = lock.writeLock();
+        try {
+            long now = now();
+            int index = slotOf(key);
+            if (index >= 0) {
+                boolean live = deadlines[index] > now;
+                if (!(live && onlyIfAbsent)) {
+                    values[index] = value;
+                    deadlines[index] = deadline(now, ttlNanos);
+                }
+                cleanUp(now);
+                return live;
+            }
+            if (size >= threshold) {
+                rebuild(now);
+            }
+            index = insert(keys, deadlines, key);
+            keys[index] = key;
+            values[index] = value;
+            deadlines[index] = deadline(now, ttlNanos);
+            size++;
+            cleanUp(now);
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the slot of the key, live or expired, or -1. Must be called with a lock held.
+     */
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        for (int index = hash(key) & mask; deadlines[index] != EMPTY; index = (index + 1) & mask) {
+            if (keys[index] == key) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the live mapping of the key, or -1. Gives up after probing every slot, which only
+     * happens on an inconsistent view under an optimistic read.
+     */
+    private static int indexOf(long[] keys, long[] deadlines, long key, long now) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long deadline = deadlines[index];
+            if (deadline == EMPTY) {
+                return -1;
+            }
+            if (keys[index] == key) {
+                return deadline > now ? index : -1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first free slot of the run of the key.
+     */
+    private static int insert(long[] keys, long[] deadlines, long key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (deadlines[index] != EMPTY) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Copies the live entries to new arrays, twice as large if they fill more than half of the table.
+     */
+    private void rebuild(long now) {
+        int capacity = rebuiltCapacity(countLive(now));
+        long[] newKeys = new long[capacity];
+        long[] newValues = new long[capacity];
+        long[] newDeadlines = new long[capacity];
+        int live = 0;
+        for (int i = 0; i < deadlines.length; i++) {
+            if (deadlines[i] > now) {
+                int index = insert(newKeys, newDeadlines, keys[i]);
+                newKeys[index] = keys[i];
+                newValues[index] = values[i];
+                newDeadlines[index] = deadlines[i];
+                live++;
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+        deadlines = newDeadlines;
+        size = live;
+        threshold = thresholdOf(capacity);
+        cursor = 0;
+    }
+
+    @Override
+    int homeOf(int index) {
+        return hash(keys[index]) & (keys.length - 1);
+    }
+
+    @Override
+    void moveSlot(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+    }
+
+    @Override
+    void clearValues() {
+    }
+
+    @Override
+    void clearValue(int index) {
+    }
+}
@@ -0,0 +1,283 @@
+package src.map.primitive;
+
+import src.map.expiry.Ticker;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe map from long keys to objects with a Time-To-Live (TTL) feature, which neither boxes the key nor
+ * allocates on get or put.
+ * <p>
+ * Keys, values and deadlines are stored in three parallel arrays of an open-addressing table, so a slot costs
+ * 16 bytes plus a reference and there is no object per entry besides the value itself. The table is kept at most
+ * three quarters full. Expired entries are never returned and are removed by later writes, see {@link #expire()}.
+ * The default TTL is 15000 milliseconds.
+ * <p>
+ * Values may not be null.
+ *
+ * @param <V> the type of mapped values
+ */
+public class LongObjectTtlMap<V> extends PrimitiveTtlTable {
+
+    private long[] keys;
+
+    private Object[] values;
+
+    /**
+     * Creates a map with the default TTL.
+     */
+    public LongObjectTtlMap() {
+        this(DEFAULT_TTL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a map with the given TTL.
+     *
+     * @param ttl  the time after which an entry expires
+     * @param unit the unit of the TTL
+     */
+    public LongObjectTtlMap(long ttl, TimeUnit unit) {
+        this(ttl, unit, DEFAULT_EXPECTED_SIZE, Ticker.coarse());
+    }
+
+    /**
+     * Creates a map with the given TTL, sized to hold the expected number of entries without growing.
+     *
+     * @param ttl          the time after which an entry expires
+     * @param unit         the unit of the TTL
+     * @param expectedSize the number of entries the map is expected to hold
+     * @param ticker       the source of time for expiry
+     */
+    public LongObjectTtlMap(long ttl, TimeUnit unit, int expectedSize, Ticker ticker) {
+        super(ttl, unit, expectedSize, ticker);
+        this.keys = new long[deadlines.length];
+        this.values = new Object[deadlines.length];
+    }
+
+    /**
+     * Returns true if the key has a live mapping.
+     *
+     * @param key the key whose presence is to be tested
+     * @return true if the key has a live mapping
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value to which the key is mapped, or null if there is no live mapping for the key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @return the value to which the key is mapped, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long[] keys = this.keys;
+            Object[] values = this.values;
+            long[] deadlines = this.deadlines;
+            if (keys.length == deadlines.length && values.length == deadlines.length) {
+                int index = indexOf(keys, deadlines, key, now());
+                Object value = index < 0 ? null : values[index];
+                if (lock.validate(stamp)) {
+                    return (V) value;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            int index = indexOf(keys, deadlines, key, now());
+            return index < 0 ? null : (V) values[index];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Associates the value with the key, expiring after the default TTL.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    public V put(long key, V value) {
+        return put(key, value, ttlNanos, false);
+    }
+
+    /**
+     * Associates the value with the key, expiring after the given TTL.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @param ttl   the time after which the mapping expires
+     * @param unit  the unit of the TTL
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    public V put(long key, V value, long ttl, TimeUnit unit) {
+        return put(key, value, ttlNanos(ttl, unit), false);
+    }
+
+    /**
+     * Associates the value with the key, expiring after the default TTL, unless the key has a live mapping.
+     *
+     * @param key   the key with which the value is to be associated
+     * @param value the value to be associated with the key
+     * @return the current value associated with key, or null if there was none and the value has been put
+     */
+    public V putIfAbsent(long key, V value) {
+        return put(key, value, ttlNanos, true);
+    }
+
+    /**
+     * Removes the mapping for the key if it is present.
+     *
+     * @param key the key whose mapping is to be removed
+     * @return the previous value associated with key, or null if there was no live mapping for key
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        long stamp = lock.writeLock();
+        try {
+            int index = slotOf(key);
+            if (index < 0) {
+                return null;
+            }
+            V previous = deadlines[index] > now() ? (V) values[index] : null;
+            removeAt(index);
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes the mapping unless the key has a live mapping and onlyIfAbsent is set.
+     *
+     * @return the value of the live mapping found, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    private V put(long key, V value, long ttlNanos, boolean onlyIfAbsent) {
+        Objects.requireNonNull(value);
+        long stamp = lock.writeLock();
+        try {
+            long now = now();
+            int index = slotOf(key);
+            if (index >= 0) {
+                V previous = deadlines[index] > now ? (V) values[index] : null;
+                if (previous == null || !onlyIfAbsent) {
+                    values[index] = value;
+                    deadlines[index] = deadline(now, ttlNanos);
+                }
+                cleanUp(now);
+                return previous;
+            }
+            if (size >= threshold) {
+                rebuild(now);
+            }
+            index = insert(keys, deadlines, key);
+            keys[index] = key;
+            values[index] = value;
+            deadlines[index] = deadline(now, ttlNanos);
+            size++;
+            cleanUp(now);
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the slot of the key, live or expired, or -1. Must be called with a lock held.
+     */
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        for (int index = hash(key) & mask; deadlines[index] != EMPTY; index = (index + 1) & mask) {
+            if (keys[index] == key) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the live mapping of the key, or -1. Gives up after probing every slot, which only
+     * happens on an inconsistent view under an optimistic read.
+     */
+    private static int indexOf(long[] keys, long[] deadlines, long key, long now) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long deadline = deadlines[index];
+            if (deadline == EMPTY) {
+                return -1;
+            }
+            if (keys[index] == key) {
+                return deadline > now ? index : -1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first free slot of the run of the key.
+     */
+    private static int insert(long[] keys, long[] deadlines, long key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (deadlines[index] != EMPTY) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Copies the live entries to new arrays, twice as large if they fill more than half of the table.
+     */
+    private void rebuild(long now) {
+        int capacity = rebuiltCapacity(countLive(now));
+        long[] newKeys = new long[capacity];
+        Object[] newValues = new Object[capacity];
+        long[] newDeadlines = new long[capacity];
+        int live = 0;
+        for (int i = 0; i < deadlines.length; i++) {
+            if (deadlines[i] > now) {
+                int index = insert(newKeys, newDeadlines, keys[i]);
+                newKeys[index] = keys[i];
+                newValues[index] = values[i];
+                newDeadlines[index] = deadlines[i];
+                live++;
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+        deadlines = newDeadlines;
+        size = live;
+        threshold = thresholdOf(capacity);
+        cursor = 0;
+    }
+
+    @Override
+    int homeOf(int index) {
+        return hash(keys[index]) & (keys.length - 1);
+    }
+
+    @Override
+    void moveSlot(int from, int to) {
+        keys[to] = keys[from];
+        values[to] = values[from];
+    }
+
+    @Override
+    void clearValues() {
+        Arrays.fill(values, null);
+    }
+
+    @Override
+    void clearValue(int index) {
+        values[index] = null;
+    }
+}
@@ -0,0 +1,258 @@
+package src.map.primitive;
+
+import src.map.expiry.Ticker;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The state shared by the primitive-keyed maps: the deadlines of the slots, the lock and the clock.
+ * <p>
+ * The subclasses keep their keys and values in arrays parallel to {@link #deadlines}, in an open-addressing table
+ * with linear probing. A slot is empty when its deadline is 0, which no entry can have as tickers never go negative
+ * and TTLs are positive, so no array of states is needed. Removals shift the following entries of the run back
+ * instead of leaving tombstones. Expired entries are never returned; they are removed a few at a time by writes,
+ * all at once when the table fills up, or by {@code expire()}.
+ * <p>
+ * Writes take the write lock of a {@link StampedLock}; reads first try an optimistic read and only take the read
+ * lock if a write got in the way, so neither reads nor writes allocate.
+ */
+abstract class PrimitiveTtlTable {
+
+    /**
+     * The default TTL in milliseconds.
+     */
+    static final int DEFAULT_TTL = 15000;
+
+    static final int DEFAULT_EXPECTED_SIZE = 16;
+
+    /**
+     * The number of slots a write checks for expired entries.
+     */
+    static final int CLEANUP_STEPS = 2;
+
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    static final long EMPTY = 0;
+
+    final StampedLock lock = new StampedLock();
+
+    /**
+     * The source of the deadlines, which are compared as plain longs.
+     */
+    final Ticker ticker;
+
+    final long ttlNanos;
+
+    /**
+     * The deadline of the entry in every slot, {@link Long#MAX_VALUE} if it never expires, {@link #EMPTY} if
+     * the slot is free.
+     */
+    long[] deadlines;
+
+    /**
+     * The number of entries, live or expired, read without locking.
+     */
+    volatile int size;
+
+    /**
+     * The number of entries above which the table is rebuilt, three quarters of its capacity.
+     */
+    int threshold;
+
+    /**
+     * The next slot checked for an expired entry by a write.
+     */
+    int cursor;
+
+    PrimitiveTtlTable(long ttl, TimeUnit unit, int expectedSize, Ticker ticker) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Expected size must not be negative: " + expectedSize);
+        }
+        this.ttlNanos = ttlNanos(ttl, unit);
+        this.ticker = Objects.requireNonNull(ticker);
+        int capacity = capacityFor(expectedSize);
+        this.deadlines = new long[capacity];
+        this.threshold = thresholdOf(capacity);
+    }
+
+    /**
+     * Returns the number of entries, including expired entries not removed yet.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every expired entry now instead of waiting for writes to come across them.
+     *
+     * @return the number of entries removed
+     */
+    public int expire() {
+        long stamp = lock.writeLock();
+        try {
+            long now = now();
+            int removed = 0;
+            // A removal shifts a later entry into the slot, which is then checked again
+            for (int index = 0; index < deadlines.length; ) {
+                long deadline = deadlines[index];
+                if (deadline != EMPTY && deadline <= now) {
+                    removeAt(index);
+                    removed++;
+                } else {
+                    index++;
+                }
+            }
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes all of the entries, keeping the capacity of the table.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            Arrays.fill(deadlines, EMPTY);
+            clearValues();
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the slot the key in the given occupied slot hashes to.
+     */
+    abstract int homeOf(int index);
+
+    /**
+     * Copies the key and the value of a slot to another one.
+     */
+    abstract void moveSlot(int from, int to);
+
+    /**
+     * Drops the references held by the values of every slot, if any.
+     */
+    abstract void clearValues();
+
+    /**
+     * Drops the reference held by the value of a slot being freed, if any.
+     */
+    abstract void clearValue(int index);
+
+    /**
+     * Removes the entry in the given slot by shifting back the entries that follow it in its run, which may sit
+     * in the slot only because it was taken. Must be called with the write lock held.
+     */
+    void removeAt(int index) {
+        int mask = deadlines.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (deadlines[next] != EMPTY) {
+            if (!inRange(homeOf(next), hole, next)) {
+                moveSlot(next, hole);
+                deadlines[hole] = deadlines[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        deadlines[hole] = EMPTY;
+        clearValue(hole);
+        size--;
+    }
+
+    /**
+     * Checks the next few slots after a write and removes the expired entries found, so that expired entries do
+     * not pile up in a map that is written to. Must be called with the write lock held.
+     */
+    void cleanUp(long now) {
+        for (int step = 0; step < CLEANUP_STEPS; step++) {
+            int index = cursor;
+            long deadline = deadlines[index];
+            if (deadline != EMPTY && deadline <= now) {
+                removeAt(index);
+            } else {
+                cursor = (index + 1) & (deadlines.length - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries whose deadline is after now.
+     */
+    int countLive(long now) {
+        int live = 0;
+        for (long deadline : deadlines) {
+            if (deadline > now) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    long now() {
+        return ticker.read();
+    }
+
+    /**
+     * Returns the capacity of a table being rebuilt for the given number of live entries: doubled if they fill it
+     * more than half, the same otherwise.
+     */
+    int rebuiltCapacity(int live) {
+        int capacity = deadlines.length;
+        if (live >= capacity / 2) {
+            if (capacity >= MAXIMUM_CAPACITY) {
+                throw new IllegalStateException("Map is full: " + live + " entries");
+            }
+            return capacity << 1;
+        }
+        return capacity;
+    }
+
+    static long deadline(long now, long ttlNanos) {
+        return ttlNanos >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlNanos;
+    }
+
+    static long ttlNanos(long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl + " " + unit);
+        }
+        return unit.toNanos(ttl);
+    }
+
+    /**
+     * Returns whether the slot at the given index, already found to be occupied, lies cyclically in (from, to].
+     * Used by the backward shift of a removal to tell whether an entry may move to an earlier slot.
+     */
+    static boolean inRange(int index, int from, int to) {
+        return from <= to ? from < index && index <= to : from < index || index <= to;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static int thresholdOf(int capacity) {
+        return capacity / 4 * 3;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long needed = Math.max(DEFAULT_EXPECTED_SIZE, (long) expectedSize * 4 / 3 + 1);
+        if (needed >= MAXIMUM_CAPACITY) {
+            return MAXIMUM_CAPACITY;
+        }
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+}